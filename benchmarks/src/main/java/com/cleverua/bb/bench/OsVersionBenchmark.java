@@ -0,0 +1,46 @@
+package com.cleverua.bb.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cleverua.bb.utils.SoftwareVersionUtils.OsVersion;
+
+/**
+ * {@link OsVersion} parsing and comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OsVersionBenchmark {
+    
+    private final String version = "6.0.0.246";
+    private final OsVersion older = new OsVersion("5.0.0.1036");
+    private final OsVersion newer = new OsVersion("6.0.0.246");
+    
+    @Benchmark
+    public OsVersion parse() {
+        return new OsVersion(version);
+    }
+    
+    @Benchmark
+    public boolean isGreaterThan() {
+        return newer.isGreaterThan(older);
+    }
+    
+    @Benchmark
+    public boolean isEqualToMajor() {
+        return newer.isEqualTo(older, 1);
+    }
+}
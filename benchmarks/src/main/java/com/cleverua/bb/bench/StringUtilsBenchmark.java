@@ -0,0 +1,57 @@
+package com.cleverua.bb.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cleverua.bb.utils.StringUtils;
+
+/**
+ * {@link StringUtils#split(String, String)}, {@link StringUtils#replaceAll(String, String, String)} 
+ * and {@link StringUtils#join(String, Object[])} on a 100 token string.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StringUtilsBenchmark {
+    
+    private String csv;
+    private String[] tokens;
+    
+    @Setup
+    public void setUp() {
+        final StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < 100; i++) {
+            sb.append("token").append(i).append(", ");
+        }
+        csv = sb.toString();
+        tokens = StringUtils.split(csv, ", ");
+    }
+    
+    @Benchmark
+    public String[] split() {
+        return StringUtils.split(csv, ", ");
+    }
+    
+    @Benchmark
+    public String replaceAll() {
+        return StringUtils.replaceAll(csv, "token", "t");
+    }
+    
+    @Benchmark
+    public String join() {
+        return StringUtils.join(", ", tokens);
+    }
+}
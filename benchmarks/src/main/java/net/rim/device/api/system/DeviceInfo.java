@@ -0,0 +1,13 @@
+package net.rim.device.api.system;
+
+/**
+ * Desktop stand-in of the RIM class (the methods the benchmarked utils use), for the benchmarks only.
+ */
+public final class DeviceInfo {
+
+    private DeviceInfo() {}
+
+    public static String getSoftwareVersion() {
+        return "6.0.0.246";
+    }
+}
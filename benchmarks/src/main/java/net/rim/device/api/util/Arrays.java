@@ -0,0 +1,13 @@
+package net.rim.device.api.util;
+
+/**
+ * Desktop stand-in of the RIM class (the methods the benchmarked utils use), for the benchmarks only.
+ */
+public final class Arrays {
+
+    private Arrays() {}
+
+    public static int[] copy(int[] array) {
+        return (int[]) array.clone();
+    }
+}
@@ -0,0 +1,9 @@
+package net.rim.device.api.util;
+
+/**
+ * Desktop stand-in of the RIM interface, for the benchmarks only.
+ */
+public interface Comparator {
+
+    int compare(Object o1, Object o2);
+}
@@ -0,0 +1,26 @@
+package net.rim.device.api.util;
+
+/**
+ * Desktop stand-in of the RIM class, for the benchmarks only.
+ */
+public final class StringComparator implements Comparator {
+
+    private static final StringComparator CASE_SENSITIVE   = new StringComparator(false);
+    private static final StringComparator CASE_INSENSITIVE = new StringComparator(true);
+
+    private final boolean ignoreCase;
+
+    private StringComparator(boolean ignoreCase) {
+        this.ignoreCase = ignoreCase;
+    }
+
+    public static StringComparator getInstance(boolean ignoreCase) {
+        return ignoreCase ? CASE_INSENSITIVE : CASE_SENSITIVE;
+    }
+
+    public int compare(Object o1, Object o2) {
+        final String s1 = (String) o1;
+        final String s2 = (String) o2;
+        return ignoreCase ? s1.compareToIgnoreCase(s2) : s1.compareTo(s2);
+    }
+}
@@ -0,0 +1,209 @@
+package com.cleverua.bb.example;
+
+import java.io.ByteArrayInputStream;
+import java.util.Vector;
+
+import com.cleverua.bb.utils.IOUtils;
+import com.cleverua.bb.utils.Logger;
+import com.cleverua.bb.utils.SoftwareVersionUtils.OsVersion;
+import com.cleverua.bb.utils.StringUtils;
+
+/**
+ * A micro benchmark harness for the hot paths of the utils, run on a device or a simulator.
+ * 
+ * <p>
+ * The file IO utils depend on the RIM API, so they are benchmarked on the device only 
+ * (StringUtils and OsVersion are also benchmarked with JMH on a desktop JVM, see 
+ * the "benchmarks" module). Each benchmark
+ * is calibrated until a round takes at least {@link #MIN_ROUND_MILLIS}, warmed up with
+ * one round and then measured in {@link #ROUNDS} rounds, the best and the median
+ * time per operation are reported.
+ * </p>
+ * 
+ * <p>
+ * The numbers depend heavily on the device model, OS version and media, so compare
+ * the results of the same device only (e.g. before and after a change).
+ * </p>
+ */
+class Benchmarks {
+    
+    private static final int ROUNDS = 5;
+    private static final long MIN_ROUND_MILLIS = 200;
+    private static final int MAX_CALIBRATION_OPS = 1 << 20;
+    
+    private static final String FILES_DIR = IOUtils.DEVICE_MEMORY_ROOT + "home/user/benchmarks/";
+    private static final int FILE_SIZE = 256 * 1024; /* 256KB */
+    
+    /** Results of the benchmarked calls are accumulated here, so the calls can not be optimized out. */
+    private static int sink;
+    
+    /**
+     * Runs all the benchmarks in the calling thread (it takes a while,
+     * so do not call it on the event thread).
+     * 
+     * @return the report, one line per benchmark.
+     */
+    static String runAll() {
+        final Benchmark[] benchmarks = createBenchmarks();
+        final StringBuffer report = new StringBuffer();
+        
+        for (int i = 0; i < benchmarks.length; i++) {
+            final String line = run(benchmarks[i]);
+            Logger.debug(Benchmarks.class, line);
+            report.append(line).append('\n');
+        }
+        
+        try {
+            IOUtils.deleteDir(FILES_DIR);
+        } catch (Exception e) {
+            Logger.debug(Benchmarks.class, "failed to delete " + FILES_DIR + ": " + e);
+        }
+        return report.toString();
+    }
+    
+    private static String run(Benchmark benchmark) {
+        try {
+            benchmark.setUp();
+            
+            int ops = 1;
+            long millis;
+            while ((millis = benchmark.measure(ops)) < MIN_ROUND_MILLIS && ops < MAX_CALIBRATION_OPS) {
+                ops <<= 1;
+            }
+            benchmark.measure(ops); /* warm up */
+            
+            final long[] rounds = new long[ROUNDS];
+            for (int i = 0; i < ROUNDS; i++) {
+                rounds[i] = benchmark.measure(ops);
+            }
+            sort(rounds);
+            
+            return benchmark.name + ": best " + formatMicros(rounds[0], ops)
+                + ", median " + formatMicros(rounds[ROUNDS / 2], ops) + " us/op (" + ops + " ops/round)";
+        } catch (Exception e) {
+            return benchmark.name + ": failed - " + e;
+        } finally {
+            benchmark.tearDown();
+        }
+    }
+    
+    private static Benchmark[] createBenchmarks() {
+        final StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < 100; i++) {
+            sb.append("token").append(i).append(", ");
+        }
+        final String csv = sb.toString();
+        final String[] tokens = StringUtils.split(csv, ", ");
+        
+        final Vector benchmarks = new Vector();
+        
+        benchmarks.addElement(new Benchmark("StringUtils.split (100 tokens)") {
+            void run() {
+                sink += StringUtils.split(csv, ", ").length;
+            }
+        });
+        
+        benchmarks.addElement(new Benchmark("StringUtils.replaceAll (100 matches)") {
+            void run() {
+                sink += StringUtils.replaceAll(csv, "token", "t").length();
+            }
+        });
+        
+        benchmarks.addElement(new Benchmark("StringUtils.join (100 tokens)") {
+            void run() {
+                sink += StringUtils.join(", ", tokens).length();
+            }
+        });
+        
+        final OsVersion older = new OsVersion("5.0.0.1036");
+        final OsVersion newer = new OsVersion("6.0.0.246");
+        benchmarks.addElement(new Benchmark("OsVersion.isGreaterThan") {
+            void run() {
+                if (newer.isGreaterThan(older)) {
+                    sink++;
+                }
+            }
+        });
+        
+        benchmarks.addElement(new Benchmark("new OsVersion(String)") {
+            void run() {
+                sink += new OsVersion("6.0.0.246").getParts().length;
+            }
+        });
+        
+        final byte[] data = new byte[FILE_SIZE];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        final String sourceUrl = FILES_DIR + "source.bin";
+        final String copyUrl = FILES_DIR + "copy.bin";
+        
+        benchmarks.addElement(new Benchmark("IOUtils.saveDataToFile(InputStream) (256KB)") {
+            void setUp() throws Exception {
+                IOUtils.createDirIncludingAncestors(FILES_DIR);
+            }
+            void run() throws Exception {
+                IOUtils.saveDataToFile(copyUrl, new ByteArrayInputStream(data));
+            }
+        });
+        
+        benchmarks.addElement(new Benchmark("IOUtils.copyFile (256KB)") {
+            void setUp() throws Exception {
+                IOUtils.createDirIncludingAncestors(FILES_DIR);
+                IOUtils.saveDataToFile(sourceUrl, data);
+            }
+            void run() throws Exception {
+                IOUtils.copyFile(sourceUrl, copyUrl);
+            }
+        });
+        
+        final Benchmark[] result = new Benchmark[benchmarks.size()];
+        benchmarks.copyInto(result);
+        return result;
+    }
+    
+    private static String formatMicros(long millis, int ops) {
+        final long nanosPerOp = millis * 1000000 / ops;
+        final long micros = nanosPerOp / 1000;
+        final long fraction = (nanosPerOp % 1000) / 10;
+        return micros + "." + (fraction < 10 ? "0" : "") + fraction;
+    }
+    
+    private static void sort(long[] values) {
+        for (int i = 1; i < values.length; i++) {
+            final long value = values[i];
+            int j = i - 1;
+            while (j >= 0 && values[j] > value) {
+                values[j + 1] = values[j];
+                j--;
+            }
+            values[j + 1] = value;
+        }
+    }
+    
+    private static abstract class Benchmark {
+        
+        final String name;
+        
+        Benchmark(String name) {
+            this.name = name;
+        }
+        
+        void setUp() throws Exception {}
+        
+        void tearDown() {}
+        
+        abstract void run() throws Exception;
+        
+        /**
+         * @return time in milliseconds the <code>ops</code> calls took.
+         */
+        long measure(int ops) throws Exception {
+            final long start = System.currentTimeMillis();
+            for (int i = 0; i < ops; i++) {
+                run();
+            }
+            return System.currentTimeMillis() - start;
+        }
+    }
+}
@@ -4,6 +4,7 @@ import com.cleverua.bb.utils.Logger;
 
 import net.rim.device.api.ui.Field;
 import net.rim.device.api.ui.FieldChangeListener;
+import net.rim.device.api.ui.UiApplication;
 import net.rim.device.api.ui.component.ButtonField;
 import net.rim.device.api.ui.component.Dialog;
 import net.rim.device.api.ui.container.MainScreen;
@@ -12,8 +13,10 @@ public class PlaceholderScreen extends MainScreen {
 
     private static final String SCREEN_TITLE = "Utils Testing";
     private static final String BUTTON_LABEL = "Test";
+    private static final String BENCHMARKS_BUTTON_LABEL = "Run benchmarks";
 
     private ButtonField testLoggerButton;
+    private ButtonField benchmarksButton;
 
     public PlaceholderScreen() {
         super();
@@ -37,6 +40,29 @@ public class PlaceholderScreen extends MainScreen {
         });
 
         add(testLoggerButton);
+
+        benchmarksButton = new ButtonField(BENCHMARKS_BUTTON_LABEL, FIELD_HCENTER);
+
+        benchmarksButton.setChangeListener(new FieldChangeListener() {
+            public void fieldChanged(Field f, int c) {
+                runBenchmarks();
+            }
+        });
+
+        add(benchmarksButton);
+    }
+
+    private void runBenchmarks() {
+        new Thread() {
+            public void run() {
+                final String report = Benchmarks.runAll();
+                UiApplication.getUiApplication().invokeLater(new Runnable() {
+                    public void run() {
+                        Dialog.inform(report);
+                    }
+                });
+            }
+        }.start();
     }
 
     protected boolean onSavePrompt() {
@@ -0,0 +1,295 @@
+package com.cleverua.bb.utils;
+
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+import javax.microedition.io.Connector;
+import javax.microedition.io.file.FileConnection;
+
+import net.rim.device.api.io.file.FileIOException;
+import net.rim.device.api.system.Characters;
+
+/**
+ * Copies many files in one go.
+ * 
+ * <p>
+ * Compared to a series of {@link IOUtils#copyFile(String, String)} calls:
+ * </p>
+ * <ul>
+ * <li>free space is checked once per destination file system root, before anything is copied
+ * (files overwriting existing destination files need only the difference);</li>
+ * <li>each source directory is opened once (to list its content), each destination 
+ * directory is created once;</li>
+ * <li>progress, throughput and ETA are reported via a {@link BatchCopyListener};</li>
+ * <li>a failure of a single file does not stop the batch, the failures are collected
+ * in the returned {@link BatchCopyResult}.</li>
+ * </ul>
+ */
+public class BatchCopy {
+    
+    private static final int REQUIRED_BYTES        = 0;
+    private static final int MAX_OVERWRITTEN_BYTES = 1;
+    
+    /**
+     * Copies each source file to the destination with the same index. 
+     * Destination files that already exist are overwritten.
+     * Destination directories must exist.
+     * 
+     * @param sourceUrls - urls of the source files.
+     * @param destinationUrls - urls of the destination files.
+     * @param listener - gets notified about the progress, can be null.
+     * @return summary of the batch.
+     * 
+     * @throws IllegalArgumentException if the arrays have different lengths 
+     * or any of the urls is invalid.
+     * @throws FileIOException with {@link FileIOException#FILESYSTEM_FULL} code 
+     * if the files do not fit into a destination file system.
+     * @throws IOException if the free space check fails.
+     */
+    public static BatchCopyResult copyFiles(String[] sourceUrls, String[] destinationUrls, 
+            BatchCopyListener listener) throws IOException {
+        
+        if (sourceUrls.length != destinationUrls.length) {
+            throw new IllegalArgumentException("got " + sourceUrls.length + " sources and " 
+                    + destinationUrls.length + " destinations");
+        }
+        
+        final Hashtable requiredSpace = new Hashtable();
+        long bytesTotal = 0;
+        for (int i = 0; i < sourceUrls.length; i++) {
+            long size;
+            try {
+                size = IOUtils.getFileSize(sourceUrls[i]);
+            } catch (IOException e) {
+                size = -1; /* it will fail again while copying and get reported */
+            }
+            if (size > 0) {
+                bytesTotal += size;
+                addRequiredSpace(requiredSpace, destinationUrls[i], size);
+                addOverwrittenSpace(requiredSpace, destinationUrls[i], getExistingSize(destinationUrls[i]));
+            }
+        }
+        checkFreeSpace(requiredSpace);
+        
+        return copy(sourceUrls, destinationUrls, bytesTotal, listener);
+    }
+    
+    /**
+     * Copies the content of the source directory (including subdirectories) to the destination 
+     * directory. The destination directory and its subdirectories are created if needed, 
+     * destination files that already exist are overwritten.
+     * 
+     * @param sourceDirUrl - url of the source directory, e.g. <code>"file:///SDCard/photos/"</code>.
+     * @param destinationDirUrl - url of the destination directory, e.g. <code>"file:///store/home/user/photos/"</code>.
+     * @param listener - gets notified about the progress, can be null.
+     * @return summary of the batch.
+     * 
+     * @throws IllegalArgumentException if any of the urls is invalid.
+     * @throws FileIOException with {@link FileIOException#FILESYSTEM_FULL} code 
+     * if the source directory does not fit into the destination file system.
+     * @throws IOException if the source tree can not be listed or a destination directory 
+     * can not be created.
+     */
+    public static BatchCopyResult copyTree(String sourceDirUrl, String destinationDirUrl, 
+            BatchCopyListener listener) throws IOException {
+        
+        final long bytesTotal = IOUtils.getDirectorySize(sourceDirUrl, true);
+        if (bytesTotal < 0) {
+            throw new FileIOException(FileIOException.DIRECTORY_NOT_FOUND);
+        }
+        
+        final Vector sources = new Vector();
+        final Vector destinations = new Vector();
+        
+        // relative paths of the subdirectories to create, parents first
+        final Vector createdDirs = new Vector();
+        
+        // relative paths of the directories to list, e.g. "" (the root itself), "2010/", "2010/may/"
+        final Vector dirs = new Vector();
+        dirs.addElement("");
+        
+        while (!dirs.isEmpty()) {
+            final int last = dirs.size() - 1;
+            final String dir = (String) dirs.elementAt(last);
+            dirs.removeElementAt(last);
+            
+            if (dir.length() > 0) {
+                createdDirs.addElement(dir);
+            }
+            
+            FileConnection fc = null;
+            try {
+                fc = IOUtils.open(sourceDirUrl + dir, Connector.READ);
+                for (Enumeration e = fc.list(); e.hasMoreElements();) {
+                    final String name = IOUtils.removeEncExtension((String) e.nextElement());
+                    if (name.charAt(name.length() - 1) == Characters.SOLIDUS) {
+                        dirs.addElement(dir + name);
+                    } else {
+                        sources.addElement(sourceDirUrl + dir + name);
+                        destinations.addElement(destinationDirUrl + dir + name);
+                    }
+                }
+            } finally {
+                IOUtils.safelyCloseStream(fc);
+            }
+        }
+        
+        final Hashtable requiredSpace = new Hashtable();
+        addRequiredSpace(requiredSpace, destinationDirUrl, bytesTotal);
+        if (IOUtils.isPresent(destinationDirUrl)) {
+            final int size = destinations.size();
+            for (int i = 0; i < size; i++) {
+                final String destinationUrl = (String) destinations.elementAt(i);
+                addOverwrittenSpace(requiredSpace, destinationUrl, getExistingSize(destinationUrl));
+            }
+        }
+        checkFreeSpace(requiredSpace);
+        
+        IOUtils.createDirIncludingAncestors(destinationDirUrl);
+        final int dirsCount = createdDirs.size();
+        for (int i = 0; i < dirsCount; i++) {
+            IOUtils.createDir(destinationDirUrl + createdDirs.elementAt(i));
+        }
+        
+        final String[] sourceUrls = new String[sources.size()];
+        sources.copyInto(sourceUrls);
+        final String[] destinationUrls = new String[destinations.size()];
+        destinations.copyInto(destinationUrls);
+        
+        return copy(sourceUrls, destinationUrls, bytesTotal, listener);
+    }
+    
+    private static BatchCopyResult copy(String[] sourceUrls, String[] destinationUrls, 
+            long bytesTotal, BatchCopyListener listener) {
+        
+        final BatchCopyResult result = new BatchCopyResult();
+        final ProgressTracker tracker = new ProgressTracker(bytesTotal, listener);
+        
+        for (int i = 0; i < sourceUrls.length; i++) {
+            Throwable error = null;
+            try {
+                IOUtils.copyFile(sourceUrls[i], destinationUrls[i], tracker);
+                result.addCopied(tracker.getFileBytesDone());
+            } catch (IOException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                error = e;
+            }
+            if (error != null) {
+                Logger.debug(BatchCopy.class, "failed to copy " + sourceUrls[i] + ": " + error);
+                result.addFailed(sourceUrls[i], error);
+            }
+            tracker.fileFinished();
+            if (listener != null) {
+                listener.fileFinished(sourceUrls[i], destinationUrls[i], error);
+            }
+        }
+        
+        result.setElapsedMillis(tracker.getElapsedMillis());
+        return result;
+    }
+    
+    private static void addRequiredSpace(Hashtable requiredSpace, String destinationUrl, long bytes) {
+        getRequiredSpace(requiredSpace, destinationUrl)[REQUIRED_BYTES] += bytes;
+    }
+    
+    /**
+     * The overwritten file is deleted once its copy is written, so its size is subtracted. 
+     * The copy is written next to it though, so the largest overwritten file is needed on top.
+     */
+    private static void addOverwrittenSpace(Hashtable requiredSpace, String destinationUrl, long bytes) {
+        if (bytes <= 0) {
+            return;
+        }
+        final long[] required = getRequiredSpace(requiredSpace, destinationUrl);
+        required[REQUIRED_BYTES] -= bytes;
+        required[MAX_OVERWRITTEN_BYTES] = Math.max(required[MAX_OVERWRITTEN_BYTES], bytes);
+    }
+    
+    /**
+     * @return { required bytes, max overwritten bytes } of the destination root.
+     */
+    private static long[] getRequiredSpace(Hashtable requiredSpace, String destinationUrl) {
+        final String root = IOUtils.getRootUrl(destinationUrl);
+        long[] required = (long[]) requiredSpace.get(root);
+        if (required == null) {
+            required = new long[2];
+            requiredSpace.put(root, required);
+        }
+        return required;
+    }
+    
+    /**
+     * @return size of the destination file, 0 if there is none.
+     */
+    private static long getExistingSize(String destinationUrl) {
+        try {
+            return Math.max(IOUtils.getFileSize(destinationUrl), 0);
+        } catch (IOException e) {
+            return 0; /* e.g. a directory, the copy will fail and get reported */
+        }
+    }
+    
+    /**
+     * Checks the required space against {@link IOUtils#SPACE_LEDGER}, so the space reserved 
+     * by the other writes in progress is taken into account. The reservation is given back 
+     * right away, each copy reserves the space of its file.
+     */
+    private static void checkFreeSpace(Hashtable requiredSpace) throws IOException {
+        for (Enumeration e = requiredSpace.keys(); e.hasMoreElements();) {
+            final String root = (String) e.nextElement();
+            final long[] space = (long[]) requiredSpace.get(root);
+            final long required = Math.max(space[REQUIRED_BYTES] + space[MAX_OVERWRITTEN_BYTES], 0);
+            IOUtils.SPACE_LEDGER.reserve(root, required).release(false);
+        }
+    }
+    
+    /**
+     * Turns per-file progress into the batch progress.
+     */
+    private static class ProgressTracker implements IOProgressListener {
+        
+        private final long bytesTotal;
+        private final BatchCopyListener listener;
+        private final long startTime = System.currentTimeMillis();
+        
+        /** Bytes copied by the already finished files. */
+        private long bytesDoneBefore;
+        private long fileBytesDone;
+        
+        ProgressTracker(long bytesTotal, BatchCopyListener listener) {
+            this.bytesTotal = bytesTotal;
+            this.listener = listener;
+        }
+        
+        public void progressChanged(long bytesDone, long fileBytesTotal) {
+            fileBytesDone = bytesDone;
+            if (listener == null) {
+                return;
+            }
+            
+            final long done = bytesDoneBefore + fileBytesDone;
+            final long total = Math.max(bytesTotal, done);
+            final long elapsed = getElapsedMillis();
+            final long bytesPerSecond = elapsed == 0 ? 0 : done * 1000 / elapsed;
+            final long eta = bytesPerSecond == 0 ? -1 : (total - done) * 1000 / bytesPerSecond;
+            
+            listener.progressChanged(done, total, bytesPerSecond, eta);
+        }
+        
+        long getFileBytesDone() {
+            return fileBytesDone;
+        }
+        
+        void fileFinished() {
+            bytesDoneBefore += fileBytesDone;
+            fileBytesDone = 0;
+        }
+        
+        long getElapsedMillis() {
+            return System.currentTimeMillis() - startTime;
+        }
+    }
+}
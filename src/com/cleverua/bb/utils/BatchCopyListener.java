@@ -0,0 +1,27 @@
+package com.cleverua.bb.utils;
+
+/**
+ * Receives notifications from {@link BatchCopy} operations.
+ * The methods are called on the thread running the batch copy.
+ */
+public interface BatchCopyListener {
+    
+    /**
+     * Called each time a chunk of data has been copied.
+     * 
+     * @param bytesDone - amount of bytes copied so far by the whole batch.
+     * @param bytesTotal - total amount of bytes to copy.
+     * @param bytesPerSecond - average throughput since the batch has been started.
+     * @param etaMillis - estimated time left in milliseconds, or -1 if unknown yet.
+     */
+    void progressChanged(long bytesDone, long bytesTotal, long bytesPerSecond, long etaMillis);
+    
+    /**
+     * Called once per file after it has been copied or has failed to be copied.
+     * 
+     * @param sourceUrl - url of the source file.
+     * @param destinationUrl - url of the destination file.
+     * @param error - the exception the file has failed with, or null if it has been copied.
+     */
+    void fileFinished(String sourceUrl, String destinationUrl, Throwable error);
+}
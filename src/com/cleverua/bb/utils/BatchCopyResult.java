@@ -0,0 +1,91 @@
+package com.cleverua.bb.utils;
+
+import java.util.Vector;
+
+/**
+ * Summary of a {@link BatchCopy} operation.
+ */
+public class BatchCopyResult {
+    
+    private final Vector failedSources = new Vector();
+    private final Vector errors = new Vector();
+    
+    private int filesCopied;
+    private long bytesCopied;
+    private long elapsedMillis;
+    
+    BatchCopyResult() {}
+    
+    /**
+     * @return number of files copied successfully.
+     */
+    public int getFilesCopied() {
+        return filesCopied;
+    }
+    
+    /**
+     * @return number of files that failed to be copied.
+     */
+    public int getFilesFailed() {
+        return failedSources.size();
+    }
+    
+    /**
+     * @return true if all the files have been copied successfully.
+     */
+    public boolean isSuccessful() {
+        return failedSources.isEmpty();
+    }
+    
+    /**
+     * @return urls of the source files that failed to be copied.
+     */
+    public String[] getFailedSources() {
+        final String[] result = new String[failedSources.size()];
+        failedSources.copyInto(result);
+        return result;
+    }
+    
+    /**
+     * @return the exceptions, in the same order as {@link #getFailedSources()}.
+     */
+    public Throwable[] getErrors() {
+        final Throwable[] result = new Throwable[errors.size()];
+        errors.copyInto(result);
+        return result;
+    }
+    
+    public long getBytesCopied() {
+        return bytesCopied;
+    }
+    
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+    
+    /**
+     * @return average throughput in bytes per second.
+     */
+    public long getBytesPerSecond() {
+        return elapsedMillis == 0 ? bytesCopied : bytesCopied * 1000 / elapsedMillis;
+    }
+    
+    public String toString() {
+        return "BatchCopyResult [filesCopied=" + filesCopied + ", filesFailed=" + getFilesFailed() 
+            + ", bytesCopied=" + bytesCopied + ", elapsedMillis=" + elapsedMillis + ']';
+    }
+    
+    void addCopied(long bytes) {
+        filesCopied++;
+        bytesCopied += bytes;
+    }
+    
+    void addFailed(String sourceUrl, Throwable error) {
+        failedSources.addElement(sourceUrl);
+        errors.addElement(error);
+    }
+    
+    void setElapsedMillis(long elapsedMillis) {
+        this.elapsedMillis = elapsedMillis;
+    }
+}
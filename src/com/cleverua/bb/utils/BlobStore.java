@@ -0,0 +1,412 @@
+package com.cleverua.bb.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+import javax.microedition.io.Connector;
+import javax.microedition.io.file.FileConnection;
+
+import net.rim.device.api.crypto.SHA1Digest;
+
+/**
+ * A content-addressed store of blobs on top of {@link IOUtils}.
+ * 
+ * <p>
+ * Each distinct content is stored once, in a file named after its SHA-1 digest 
+ * (<code>rootUrl + "blobs/" + hexDigest</code>). Clients refer to the content by logical 
+ * names; a blob is deleted once the last name referring to it is removed. Saving the same 
+ * content under another name costs a hash pass and an index update only:
+ * </p>
+ * <ul>
+ * <li>{@link #put(String, byte[])} hashes the data before writing anything;</li>
+ * <li>{@link #putFile(String, String)} hashes the source file and copies it only if the 
+ * content is new;</li>
+ * <li>{@link #put(String, InputStream)} can not read a stream twice, so it streams the data 
+ * to a staging file while hashing it, and drops the staging file if the content is known.</li>
+ * </ul>
+ * 
+ * <p>
+ * The index (name -> digest) is kept in RAM and saved to <code>rootUrl + "index"</code> 
+ * after each change with the tmp-file-and-rename pattern. Blobs are written before the index 
+ * refers to them and deleted after the index stops referring to them, so a crash can 
+ * leave orphan blobs only, see {@link #collectGarbage()}.
+ * </p>
+ * 
+ * <p>The class is thread safe.</p>
+ */
+public class BlobStore {
+    
+    private static final String BLOBS_DIR  = "blobs/";
+    private static final String INDEX_FILE = "index";
+    private static final String STAGING_PREFIX = "staging-";
+    
+    private static final int FORMAT_VERSION = 1;
+    
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    
+    private final String rootUrl;
+    private final String blobsUrl;
+    private final String indexUrl;
+    
+    /** name -> hex digest */
+    private final Hashtable names = new Hashtable();
+    
+    /** hex digest -> int[1] reference count */
+    private final Hashtable refCounts = new Hashtable();
+    
+    private int stagingCounter;
+    
+    /**
+     * Opens the store, creating its directories if needed and loading the index.
+     * 
+     * @param rootUrl - url of the store directory, e.g. <code>"file:///SDCard/myapp/blobs/"</code>.
+     * 
+     * @throws IllegalArgumentException if the <code>rootUrl</code> is invalid.
+     * @throws IOException if the directories can not be created or the index can not be read.
+     */
+    public BlobStore(String rootUrl) throws IOException {
+        this.rootUrl  = rootUrl;
+        this.blobsUrl = rootUrl + BLOBS_DIR;
+        this.indexUrl = rootUrl + INDEX_FILE;
+        
+        IOUtils.createDirIncludingAncestors(blobsUrl);
+        loadIndex();
+    }
+    
+    /**
+     * Stores the data under the name, replacing the previous content of the name.
+     * 
+     * @param name - logical name.
+     * @param data - content.
+     * @return hex SHA-1 digest of the content.
+     * 
+     * @throws IOException if the blob or the index can not be written.
+     */
+    public synchronized String put(String name, byte[] data) throws IOException {
+        final SHA1Digest digest = new SHA1Digest();
+        digest.update(data, 0, data.length);
+        final String hex = toHex(digest.getDigest());
+        
+        if (!refCounts.containsKey(hex)) {
+            IOUtils.saveDataToFile(blobsUrl + hex, data);
+        }
+        bind(name, hex);
+        return hex;
+    }
+    
+    /**
+     * Stores the content of the file under the name, replacing the previous content of the name.
+     * The file is read once to compute its digest and copied only if the content is new.
+     * 
+     * @param name - logical name.
+     * @param sourceFileUrl - url of the file to store.
+     * @return hex SHA-1 digest of the content.
+     * 
+     * @throws IOException if the file can not be read, the blob or the index can not be written.
+     */
+    public synchronized String putFile(String name, String sourceFileUrl) throws IOException {
+        final SHA1Digest digest = new SHA1Digest();
+        final FileChunkReader reader = new FileChunkReader(sourceFileUrl);
+        final byte[] buf = IOUtils.BUFFER_POOL.acquire(BufferPool.getChunkSize(reader.getFileSize()));
+        try {
+            int len;
+            while ((len = reader.read(buf)) != -1) {
+                digest.update(buf, 0, len);
+            }
+        } finally {
+            IOUtils.BUFFER_POOL.release(buf);
+            reader.close();
+        }
+        final String hex = toHex(digest.getDigest());
+        
+        if (!refCounts.containsKey(hex)) {
+            IOUtils.copyFile(sourceFileUrl, blobsUrl + hex);
+        }
+        bind(name, hex);
+        return hex;
+    }
+    
+    /**
+     * Stores the data read from the stream under the name, replacing the previous content 
+     * of the name. The stream is closed.
+     * 
+     * @param name - logical name.
+     * @param is - stream to read the content from.
+     * @return hex SHA-1 digest of the content.
+     * 
+     * @throws IOException if the stream can not be read, the blob or the index can not be written.
+     */
+    public synchronized String put(String name, InputStream is) throws IOException {
+        final String stagingName = STAGING_PREFIX + (stagingCounter++);
+        final String stagingUrl = blobsUrl + stagingName;
+        final HashingInputStream hashingIn = new HashingInputStream(is);
+        
+        final String hex;
+        try {
+            IOUtils.saveDataToFile(stagingUrl, hashingIn);
+            hex = toHex(hashingIn.digest.getDigest());
+            if (!refCounts.containsKey(hex)) {
+                IOUtils.delete(blobsUrl + hex); /* an orphan left by a crash */
+                IOUtils.rename(stagingUrl, hex);
+            }
+        } finally {
+            IOUtils.delete(stagingUrl);
+        }
+        bind(name, hex);
+        return hex;
+    }
+    
+    /**
+     * @return url of the blob stored under the name (to read it with {@link IOUtils} 
+     * or {@link FileChunkReader}), or null if there is no such name. 
+     * The blob must not be modified.
+     */
+    public synchronized String getUrl(String name) {
+        final String hex = (String) names.get(name);
+        return hex == null ? null : blobsUrl + hex;
+    }
+    
+    /**
+     * @return content stored under the name, or null if there is no such name.
+     * 
+     * @throws IOException if the blob can not be read.
+     */
+    public byte[] getData(String name) throws IOException {
+        final String url = getUrl(name);
+        return url == null ? null : IOUtils.getFileData(url);
+    }
+    
+    /**
+     * @return hex SHA-1 digest of the content stored under the name, or null if there is no such name.
+     */
+    public synchronized String getDigest(String name) {
+        return (String) names.get(name);
+    }
+    
+    public synchronized boolean contains(String name) {
+        return names.containsKey(name);
+    }
+    
+    /**
+     * @return number of names referring to the content with the digest.
+     */
+    public synchronized int getReferenceCount(String hexDigest) {
+        final int[] count = (int[]) refCounts.get(hexDigest);
+        return count == null ? 0 : count[0];
+    }
+    
+    /**
+     * @return all the stored names.
+     */
+    public synchronized String[] getNames() {
+        final String[] result = new String[names.size()];
+        int i = 0;
+        for (Enumeration e = names.keys(); e.hasMoreElements();) {
+            result[i++] = (String) e.nextElement();
+        }
+        return result;
+    }
+    
+    /**
+     * @return number of distinct blobs.
+     */
+    public synchronized int getBlobsCount() {
+        return refCounts.size();
+    }
+    
+    /**
+     * Removes the name. The blob is deleted if no other name refers to it.
+     * Does nothing if there is no such name.
+     * 
+     * @throws IOException if the index can not be written or the blob can not be deleted.
+     */
+    public synchronized void remove(String name) throws IOException {
+        final String hex = (String) names.remove(name);
+        if (hex == null) {
+            return;
+        }
+        final boolean unreferenced = release(hex);
+        try {
+            saveIndex();
+        } catch (IOException e) {
+            // keep the memory in line with the index file
+            names.put(name, hex);
+            retain(hex);
+            throw e;
+        }
+        if (unreferenced) {
+            IOUtils.delete(blobsUrl + hex);
+        }
+    }
+    
+    /**
+     * Deletes the blobs (and staging files) no name refers to. Such files may be left 
+     * if the app is killed in the middle of a put or a remove.
+     * 
+     * @return number of deleted files.
+     * 
+     * @throws IOException if the blobs directory can not be listed or a file can not be deleted.
+     */
+    public synchronized int collectGarbage() throws IOException {
+        final Vector orphans = new Vector();
+        FileConnection fc = null;
+        try {
+            fc = IOUtils.open(blobsUrl, Connector.READ);
+            for (Enumeration e = fc.list(); e.hasMoreElements();) {
+                final String fileName = IOUtils.removeEncExtension((String) e.nextElement());
+                if (!refCounts.containsKey(fileName)) {
+                    orphans.addElement(fileName);
+                }
+            }
+        } finally {
+            IOUtils.safelyCloseStream(fc);
+        }
+        
+        final int size = orphans.size();
+        for (int i = 0; i < size; i++) {
+            IOUtils.delete(blobsUrl + orphans.elementAt(i));
+        }
+        return size;
+    }
+    
+    public String getRootUrl() {
+        return rootUrl;
+    }
+    
+    private void bind(String name, String hex) throws IOException {
+        final String previous = (String) names.put(name, hex);
+        if (hex.equals(previous)) {
+            return;
+        }
+        
+        retain(hex);
+        final boolean unreferenced = previous != null && release(previous);
+        try {
+            saveIndex();
+        } catch (IOException e) {
+            // keep the memory in line with the index file
+            if (previous == null) {
+                names.remove(name);
+            } else {
+                names.put(name, previous);
+                retain(previous);
+            }
+            release(hex);
+            throw e;
+        }
+        if (unreferenced) {
+            IOUtils.delete(blobsUrl + previous);
+        }
+    }
+    
+    /**
+     * Increments the reference count.
+     */
+    private void retain(String hex) {
+        final int[] count = (int[]) refCounts.get(hex);
+        if (count == null) {
+            refCounts.put(hex, new int[] { 1 });
+        } else {
+            count[0]++;
+        }
+    }
+    
+    /**
+     * Decrements the reference count.
+     * 
+     * @return true if nothing refers to the blob anymore.
+     */
+    private boolean release(String hex) {
+        final int[] count = (int[]) refCounts.get(hex);
+        if (count == null || --count[0] > 0) {
+            return false;
+        }
+        refCounts.remove(hex);
+        return true;
+    }
+    
+    private void loadIndex() throws IOException {
+        if (!IOUtils.isPresent(indexUrl)) {
+            return;
+        }
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(IOUtils.getFileData(indexUrl)));
+        try {
+            final int version = in.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("unsupported index version " + version + ": " + indexUrl);
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String name = in.readUTF();
+                final String hex = in.readUTF();
+                names.put(name, hex);
+                retain(hex);
+            }
+        } finally {
+            IOUtils.safelyCloseStream(in);
+        }
+    }
+    
+    private void saveIndex() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(names.size());
+        for (Enumeration e = names.keys(); e.hasMoreElements();) {
+            final String name = (String) e.nextElement();
+            out.writeUTF(name);
+            out.writeUTF((String) names.get(name));
+        }
+        out.flush();
+        IOUtils.saveDataToFile(indexUrl, bytes.toByteArray());
+    }
+    
+    private static String toHex(byte[] bytes) {
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i]     = HEX_DIGITS[(bytes[i] >> 4) & 0x0F];
+            chars[2 * i + 1] = HEX_DIGITS[bytes[i] & 0x0F];
+        }
+        return new String(chars);
+    }
+    
+    /**
+     * Computes SHA-1 of the data read through it.
+     */
+    private static class HashingInputStream extends InputStream {
+        
+        private final InputStream in;
+        final SHA1Digest digest = new SHA1Digest();
+        
+        HashingInputStream(InputStream in) {
+            this.in = in;
+        }
+        
+        public int read() throws IOException {
+            final int b = in.read();
+            if (b >= 0) {
+                digest.update(b);
+            }
+            return b;
+        }
+        
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int result = in.read(b, off, len);
+            if (result > 0) {
+                digest.update(b, off, result);
+            }
+            return result;
+        }
+        
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.cleverua.bb.utils;
+
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * A pool of reusable <code>byte[]</code> buffers for IO operations.
+ *
+ * <p>
+ * Buffer sizes are always a power of two between {@link #MIN_BUFFER_SIZE} and
+ * {@link #MAX_BUFFER_SIZE}, so a buffer released after copying one file can be
+ * reused for the next one of a similar size. The total amount of bytes kept by
+ * the pool (idle buffers only) never exceeds the limit passed to the constructor,
+ * the extra buffers are just left to the GC.
+ * </p>
+ *
+ * <p>
+ * Each thread has its own slot holding the last buffer it released,
+ * so a thread doing a series of copies gets the very same buffer back
+ * without touching the shared free lists.
+ * </p>
+ *
+ * <p>The class is thread safe.</p>
+ */
+public class BufferPool {
+
+    /** 1 KB, the smallest buffer the pool hands out. */
+    public static final int MIN_BUFFER_SIZE = 1024;
+
+    /** 64 KB, the largest buffer the pool hands out. */
+    public static final int MAX_BUFFER_SIZE = 64 * 1024;
+
+    /** 4 KB, the chunk size used when the size of the data to copy is unknown. */
+    public static final int DEFAULT_CHUNK_SIZE = 4 * 1024;
+
+    /** The data is copied in at least this number of chunks (unless the chunk size is capped). */
+    private static final int CHUNKS_PER_FILE = 16;
+
+    private final int maxBytesHeld;
+
+    /** Buffer size (Integer) -> Vector of idle buffers of that size. */
+    private final Hashtable freeLists = new Hashtable();
+
+    /** Thread -> the last buffer released by that thread. */
+    private final Hashtable threadSlots = new Hashtable();
+
+    private long bytesHeld;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param maxBytesHeld - max total size in bytes of the idle buffers kept by the pool.
+     *
+     * @throws IllegalArgumentException if <code>maxBytesHeld</code> is negative.
+     */
+    public BufferPool(int maxBytesHeld) {
+        if (maxBytesHeld < 0) {
+            throw new IllegalArgumentException("invalid maxBytesHeld " + maxBytesHeld);
+        }
+        this.maxBytesHeld = maxBytesHeld;
+    }
+
+    /**
+     * Picks a chunk size for copying data of the given size. The bigger the data is
+     * the bigger the chunk is, so large files are copied with fewer read/write calls.
+     *
+     * @param dataSize - size of the data to be copied, or a negative value if unknown.
+     * @return a power of two in the [{@link #MIN_BUFFER_SIZE}..{@link #MAX_BUFFER_SIZE}] range.
+     */
+    public static int getChunkSize(long dataSize) {
+        if (dataSize < 0) {
+            return DEFAULT_CHUNK_SIZE;
+        }
+        return normalizeSize((int) Math.min(dataSize / CHUNKS_PER_FILE, MAX_BUFFER_SIZE));
+    }
+
+    /**
+     * Returns a buffer at least <code>minSize</code> bytes long (unless <code>minSize</code>
+     * is greater than {@link #MAX_BUFFER_SIZE}, then the buffer is {@link #MAX_BUFFER_SIZE} long).
+     *
+     * <p>
+     * The buffer should be given back via {@link #release(byte[])} when it is no longer used.
+     * The content of the returned buffer is undefined.
+     * </p>
+     *
+     * @param minSize - desired buffer size in bytes.
+     * @return a buffer taken from the pool, or a newly allocated one if the pool has
+     * no buffer of the needed size.
+     */
+    public synchronized byte[] acquire(int minSize) {
+        final int size = normalizeSize(minSize);
+        final Thread thread = Thread.currentThread();
+
+        byte[] buf = (byte[]) threadSlots.get(thread);
+        if (buf != null && buf.length == size) {
+            threadSlots.remove(thread);
+            bytesHeld -= size;
+            hits++;
+            return buf;
+        }
+
+        final Vector freeList = (Vector) freeLists.get(new Integer(size));
+        if (freeList != null && !freeList.isEmpty()) {
+            final int last = freeList.size() - 1;
+            buf = (byte[]) freeList.elementAt(last);
+            freeList.removeElementAt(last);
+            bytesHeld -= size;
+            hits++;
+            return buf;
+        }
+
+        misses++;
+        return new byte[size];
+    }
+
+    /**
+     * Gives the buffer back to the pool. If the pool is full, the buffer is just dropped.
+     * Buffers that have not been taken from a pool (i.e. their size is not a power of two
+     * in the supported range) are dropped as well.
+     *
+     * <p>The caller must not use the buffer after this call.</p>
+     *
+     * @param buf - buffer to release, null is ignored.
+     */
+    public synchronized void release(byte[] buf) {
+        if (buf == null || buf.length != normalizeSize(buf.length)) {
+            return;
+        }
+
+        final int size = buf.length;
+        if (bytesHeld + size > maxBytesHeld) {
+            purgeDeadThreadSlots();
+            if (bytesHeld + size > maxBytesHeld) {
+                return;
+            }
+        }
+
+        final Thread thread = Thread.currentThread();
+        final byte[] previous = (byte[]) threadSlots.put(thread, buf);
+        bytesHeld += size;
+
+        if (previous != null) {
+            // the slot holds one buffer only, move the previous one to the shared list
+            final Integer key = new Integer(previous.length);
+            Vector freeList = (Vector) freeLists.get(key);
+            if (freeList == null) {
+                freeList = new Vector();
+                freeLists.put(key, freeList);
+            }
+            freeList.addElement(previous);
+        }
+    }
+
+    /**
+     * Drops all the idle buffers, so they can be garbage collected. Statistics are kept.
+     */
+    public synchronized void clear() {
+        freeLists.clear();
+        threadSlots.clear();
+        bytesHeld = 0;
+    }
+
+    /**
+     * @return number of {@link #acquire(int)} calls served with an idle buffer.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return number of {@link #acquire(int)} calls that had to allocate a new buffer.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return total size in bytes of the idle buffers currently kept by the pool.
+     */
+    public synchronized long getBytesHeld() {
+        return bytesHeld;
+    }
+
+    /**
+     * @return max total size in bytes of the idle buffers the pool may keep.
+     */
+    public int getMaxBytesHeld() {
+        return maxBytesHeld;
+    }
+
+    public synchronized String toString() {
+        return "BufferPool [hits=" + hits + ", misses=" + misses
+            + ", bytesHeld=" + bytesHeld + ", maxBytesHeld=" + maxBytesHeld + ']';
+    }
+
+    /**
+     * The slots of finished threads would hold their buffers forever,
+     * so they are dropped once the pool gets full.
+     */
+    private void purgeDeadThreadSlots() {
+        final Vector deadThreads = new Vector();
+        for (Enumeration e = threadSlots.keys(); e.hasMoreElements();) {
+            final Thread thread = (Thread) e.nextElement();
+            if (!thread.isAlive()) {
+                deadThreads.addElement(thread);
+            }
+        }
+        final int deadThreadsCount = deadThreads.size();
+        for (int i = 0; i < deadThreadsCount; i++) {
+            final byte[] buf = (byte[]) threadSlots.remove(deadThreads.elementAt(i));
+            bytesHeld -= buf.length;
+        }
+    }
+
+    private static int normalizeSize(int size) {
+        if (size <= MIN_BUFFER_SIZE) {
+            return MIN_BUFFER_SIZE;
+        }
+        if (size >= MAX_BUFFER_SIZE) {
+            return MAX_BUFFER_SIZE;
+        }
+        int result = MIN_BUFFER_SIZE;
+        while (result < size) {
+            result <<= 1;
+        }
+        return result;
+    }
+}
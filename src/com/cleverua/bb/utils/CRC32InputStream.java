@@ -0,0 +1,64 @@
+package com.cleverua.bb.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import net.rim.device.api.util.CRC32;
+
+/**
+ * An input stream computing the CRC32 checksum and counting the bytes 
+ * of the data read through it.
+ */
+public class CRC32InputStream extends InputStream {
+    
+    private final InputStream in;
+    private int crc = CRC32.INITIAL_VALUE;
+    private long count;
+    
+    /**
+     * @param in - stream to read the data from.
+     */
+    public CRC32InputStream(InputStream in) {
+        this.in = in;
+    }
+    
+    public int read() throws IOException {
+        final int b = in.read();
+        if (b >= 0) {
+            crc = CRC32.update(crc, b);
+            count++;
+        }
+        return b;
+    }
+    
+    public int read(byte[] b, int off, int len) throws IOException {
+        final int result = in.read(b, off, len);
+        if (result > 0) {
+            crc = CRC32.update(crc, b, off, result);
+            count += result;
+        }
+        return result;
+    }
+    
+    public int available() throws IOException {
+        return in.available();
+    }
+    
+    public void close() throws IOException {
+        in.close();
+    }
+    
+    /**
+     * @return CRC32 of the data read so far.
+     */
+    public int getCrc() {
+        return crc;
+    }
+    
+    /**
+     * @return number of bytes read so far.
+     */
+    public long getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,195 @@
+package com.cleverua.bb.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import net.rim.device.api.util.CRC32;
+
+/**
+ * Checksummed atomic writes and fast integrity verification of files.
+ * 
+ * <p>
+ * The data is saved with {@link IOUtils#saveDataToFile(String, InputStream)} 
+ * (".tmp" file, then rename), its CRC32 and length are computed on the fly and stored 
+ * in a small sidecar file next to the data file (<code>url + ".crc"</code>). The data file 
+ * itself is not modified, so it stays readable by any other code.
+ * </p>
+ * 
+ * <p>
+ * {@link #verify(String)} checks a file in one streaming pass, so after a crash cached 
+ * files can be validated cheaply instead of being discarded. The old sidecar is deleted 
+ * before the data is written and the new one is written after the data is renamed into 
+ * place, so an interrupted save never leaves a file that passes the verification.
+ * </p>
+ */
+public class ChecksumUtils {
+    
+    /** Extension of the sidecar file holding the checksum. */
+    public static final String CHECKSUM_EXT = ".crc";
+    
+    private static final int FORMAT_VERSION = 1;
+    
+    /**
+     * Saves byte array data to file with a given url together with its checksum.
+     * If the destination file has been already present, then it is overwritten.
+     * 
+     * @param url - url of the destination file.
+     * @param data - Array of bytes to save.
+     * 
+     * @throws IllegalArgumentException if the <code>url</code> is invalid.
+     * @throws SecurityException if the security of the application does not have 
+     * both read and write access for the connection's target.
+     * @throws IOException see {@link IOUtils#saveDataToFile(String, InputStream, long)}.
+     */
+    public static void saveDataToFile(String url, byte[] data) throws IOException {
+        saveDataToFile(url, new ByteArrayInputStream(data), data.length);
+    }
+    
+    /**
+     * Saves data from InputStream to file with a given url together with its checksum.
+     * If the destination file has been already present, then it is overwritten. 
+     * The stream is closed.
+     * 
+     * @param url - url of the destination file.
+     * @param is - to read the data to save from.
+     * 
+     * @throws IllegalArgumentException if the <code>url</code> is invalid.
+     * @throws SecurityException if the security of the application does not have 
+     * both read and write access for the connection's target.
+     * @throws IOException see {@link IOUtils#saveDataToFile(String, InputStream)}.
+     */
+    public static void saveDataToFile(String url, InputStream is) throws IOException {
+        saveDataToFile(url, is, -1);
+    }
+    
+    /**
+     * Saves data of the known length from InputStream to file with a given url together 
+     * with its checksum, the free space is reserved up front like 
+     * {@link IOUtils#saveDataToFile(String, InputStream, long)} does.
+     * If the destination file has been already present, then it is overwritten. 
+     * The stream is closed.
+     * 
+     * @param url - url of the destination file.
+     * @param is - to read the data to save from.
+     * @param length - amount of bytes the stream provides.
+     * 
+     * @throws IllegalArgumentException if the <code>url</code> is invalid.
+     * @throws SecurityException if the security of the application does not have 
+     * both read and write access for the connection's target.
+     * @throws IOException see {@link IOUtils#saveDataToFile(String, InputStream, long)}.
+     */
+    public static void saveDataToFile(String url, InputStream is, long length) throws IOException {
+        final String checksumUrl = getChecksumUrl(url);
+        try {
+            IOUtils.delete(checksumUrl);
+        } catch (IOException e) {
+            IOUtils.safelyCloseStream(is);
+            throw e;
+        }
+        
+        final CRC32InputStream crcIn = new CRC32InputStream(is);
+        IOUtils.saveDataToFile(url, crcIn, length);
+        
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(FORMAT_VERSION);
+        out.writeLong(crcIn.getCount());
+        out.writeInt(crcIn.getCrc());
+        out.flush();
+        IOUtils.saveDataToFile(checksumUrl, bytes.toByteArray());
+    }
+    
+    /**
+     * Checks the file against the checksum saved by one of the <code>saveDataToFile</code> methods.
+     * The file length is checked first, so a truncated file is rejected without reading it.
+     * 
+     * @param url - url of the file to check.
+     * @return true if the file and its checksum sidecar exist and the file content matches 
+     * the checksum, false otherwise.
+     * 
+     * @throws IllegalArgumentException if the <code>url</code> is invalid.
+     * @throws SecurityException if the security of the application does not have 
+     * read access for the file.
+     * @throws IOException if the file can not be read.
+     */
+    public static boolean verify(String url) throws IOException {
+        final String checksumUrl = getChecksumUrl(url);
+        if (!IOUtils.isPresent(url) || !IOUtils.isPresent(checksumUrl)) {
+            return false;
+        }
+        
+        final long expectedLength;
+        final int expectedCrc;
+        final DataInputStream in = 
+            new DataInputStream(new ByteArrayInputStream(IOUtils.getFileData(checksumUrl)));
+        try {
+            if (in.readInt() != FORMAT_VERSION) {
+                return false;
+            }
+            expectedLength = in.readLong();
+            expectedCrc    = in.readInt();
+        } catch (IOException e) {
+            return false; /* a broken sidecar */
+        } finally {
+            IOUtils.safelyCloseStream(in);
+        }
+        
+        if (IOUtils.getFileSize(url) != expectedLength) {
+            return false;
+        }
+        return computeChecksum(url) == expectedCrc;
+    }
+    
+    /**
+     * Computes CRC32 of the file content in one streaming pass.
+     * 
+     * @param url - url of the file.
+     * @return the CRC32 value.
+     * 
+     * @throws IllegalArgumentException if the <code>url</code> is invalid.
+     * @throws SecurityException if the security of the application does not have 
+     * read access for the file.
+     * @throws IOException if the file does not exist, is a directory or can not be read.
+     */
+    public static int computeChecksum(String url) throws IOException {
+        final FileChunkReader reader = new FileChunkReader(url);
+        final byte[] buf = IOUtils.BUFFER_POOL.acquire(BufferPool.getChunkSize(reader.getFileSize()));
+        try {
+            int crc = CRC32.INITIAL_VALUE;
+            int len;
+            while ((len = reader.read(buf)) != -1) {
+                crc = CRC32.update(crc, buf, 0, len);
+            }
+            return crc;
+        } finally {
+            IOUtils.BUFFER_POOL.release(buf);
+            reader.close();
+        }
+    }
+    
+    /**
+     * Deletes the file and its checksum sidecar. Missing files are ignored.
+     * 
+     * @param url - url of the file.
+     * 
+     * @throws IllegalArgumentException if the <code>url</code> is invalid.
+     * @throws SecurityException if the security of the application does not have 
+     * both read and write access for the file.
+     * @throws IOException if a file can not be deleted.
+     */
+    public static void delete(String url) throws IOException {
+        IOUtils.delete(getChecksumUrl(url));
+        IOUtils.delete(url);
+    }
+    
+    /**
+     * @return url of the checksum sidecar for the file url.
+     */
+    public static String getChecksumUrl(String url) {
+        return url + CHECKSUM_EXT;
+    }
+}
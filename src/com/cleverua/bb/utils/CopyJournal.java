@@ -0,0 +1,83 @@
+package com.cleverua.bb.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A checkpoint of {@link IOUtils#copyFileResumable(String, String, IOProgressListener)}
+ * kept in a small file next to the ".tmp" destination file.
+ * 
+ * <p>
+ * It remembers which source file is being copied (url, size and modification time, 
+ * so a changed source is not resumed), how many bytes have been committed to the 
+ * ".tmp" file and the CRC32 of those bytes (so a damaged prefix is not resumed either).
+ * </p>
+ */
+class CopyJournal {
+    
+    private static final int FORMAT_VERSION = 1;
+    
+    final String sourceUrl;
+    final long sourceSize;
+    final long sourceLastModified;
+    
+    long committedOffset;
+    int committedCrc;
+    
+    CopyJournal(String sourceUrl, long sourceSize, long sourceLastModified) {
+        this.sourceUrl          = sourceUrl;
+        this.sourceSize         = sourceSize;
+        this.sourceLastModified = sourceLastModified;
+    }
+    
+    /**
+     * @return true if the journal has been written for the same (unchanged) source file.
+     */
+    boolean matches(String sourceUrl, long sourceSize, long sourceLastModified) {
+        return this.sourceUrl.equals(sourceUrl) && this.sourceSize == sourceSize 
+            && this.sourceLastModified == sourceLastModified 
+            && committedOffset >= 0 && committedOffset <= sourceSize;
+    }
+    
+    void save(String url) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(FORMAT_VERSION);
+        out.writeUTF(sourceUrl);
+        out.writeLong(sourceSize);
+        out.writeLong(sourceLastModified);
+        out.writeLong(committedOffset);
+        out.writeInt(committedCrc);
+        out.flush();
+        IOUtils.saveDataToFile(url, bytes.toByteArray());
+    }
+    
+    /**
+     * @return the journal read from the file, or null if there is no journal file 
+     * or it is not readable.
+     */
+    static CopyJournal load(String url) {
+        DataInputStream in = null;
+        try {
+            if (!IOUtils.isPresent(url)) {
+                return null;
+            }
+            in = new DataInputStream(new ByteArrayInputStream(IOUtils.getFileData(url)));
+            if (in.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+            final CopyJournal journal = new CopyJournal(in.readUTF(), in.readLong(), in.readLong());
+            journal.committedOffset = in.readLong();
+            journal.committedCrc    = in.readInt();
+            return journal;
+        } catch (IOException e) {
+            Logger.debug(CopyJournal.class, "failed to read copy journal " + url + ": " + e);
+            return null;
+        } finally {
+            IOUtils.safelyCloseStream(in);
+        }
+    }
+}
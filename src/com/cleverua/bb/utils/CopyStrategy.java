@@ -0,0 +1,196 @@
+package com.cleverua.bb.utils;
+
+import java.io.IOException;
+
+import javax.microedition.io.file.FileConnection;
+
+import com.cleverua.bb.utils.SoftwareVersionUtils.OsVersion;
+
+/**
+ * A file copy algorithm used by {@link IOUtils#copyFile(String, String, IOProgressListener, CopyStrategy)}.
+ *
+ * <p>
+ * The available strategies:
+ * </p>
+ * <ul>
+ * <li>{@link #SMALL_BUFFER} - streams the file through a 4KB buffer, the least RAM;</li>
+ * <li>{@link #LARGE_BUFFER} - streams the file through a pooled buffer growing with the file
+ * size up to 64KB, fewer read/write calls for large files;</li>
+ * <li>{@link #CHUNK_VERIFIED} - {@link IOUtils#copyFileChunkVerified(String, String, IOProgressListener)}, works around
+ * the OS 6 bug corrupting copied files in bounded RAM;</li>
+ * <li>{@link #WHOLE_FILE} - {@link IOUtils#copyFileForTorchHack(String, String)}, works around
+ * the same bug with a single read and a single write, needs RAM for the whole file,
+ * the progress is notified once the copy is finished.</li>
+ * </ul>
+ *
+ * <p>
+ * {@link #select(long, boolean)} picks one of them automatically. Custom strategies may be implemented
+ * by subclassing. The strategies are stateless and thread safe.
+ * </p>
+ */
+public abstract class CopyStrategy {
+
+    public static final CopyStrategy SMALL_BUFFER = new CopyStrategy("small buffer") {
+        public void copy(String sourceFileUrl, String destinationFileUrl, IOProgressListener listener)
+                throws IOException {
+            IOUtils.copyFile(sourceFileUrl, destinationFileUrl, listener, this);
+        }
+
+        void copy(FileConnection source, String destinationFileUrl, IOProgressListener listener)
+                throws IOException {
+            IOUtils.copyFileStreaming(source, destinationFileUrl, listener, BufferPool.DEFAULT_CHUNK_SIZE);
+        }
+    };
+
+    public static final CopyStrategy LARGE_BUFFER = new CopyStrategy("large buffer") {
+        public void copy(String sourceFileUrl, String destinationFileUrl, IOProgressListener listener)
+                throws IOException {
+            IOUtils.copyFile(sourceFileUrl, destinationFileUrl, listener, this);
+        }
+
+        void copy(FileConnection source, String destinationFileUrl, IOProgressListener listener)
+                throws IOException {
+            IOUtils.copyFileStreaming(source, destinationFileUrl, listener, BufferPool.MAX_BUFFER_SIZE);
+        }
+    };
+
+    public static final CopyStrategy CHUNK_VERIFIED = new CopyStrategy("chunk verified") {
+        public void copy(String sourceFileUrl, String destinationFileUrl, IOProgressListener listener)
+                throws IOException {
+            IOUtils.copyFile(sourceFileUrl, destinationFileUrl, listener, this);
+        }
+
+        void copy(FileConnection source, String destinationFileUrl, IOProgressListener listener)
+                throws IOException {
+            IOUtils.copyFileChunkVerified(source, destinationFileUrl, listener);
+        }
+    };
+
+    public static final CopyStrategy WHOLE_FILE = new CopyStrategy("whole file") {
+        public void copy(String sourceFileUrl, String destinationFileUrl, IOProgressListener listener)
+                throws IOException {
+            IOUtils.copyFile(sourceFileUrl, destinationFileUrl, listener, this);
+        }
+
+        void copy(FileConnection source, String destinationFileUrl, IOProgressListener listener)
+                throws IOException {
+            IOUtils.copyFileForTorchHack(source, destinationFileUrl);
+            notifyFinished(destinationFileUrl, listener);
+        }
+    };
+
+    /** Files up to this size are copied with {@link #WHOLE_FILE} on the affected OS versions. */
+    private static final long WHOLE_FILE_MAX_SIZE = 256 * 1024; /* 256KB */
+
+    /** {@link #WHOLE_FILE} may take up to this fraction (1 / N) of the free heap. */
+    private static final int WHOLE_FILE_HEAP_FRACTION = 4;
+
+    /** Files up to this size do not benefit from a large buffer. */
+    private static final long SMALL_FILE_MAX_SIZE = 16 * BufferPool.DEFAULT_CHUNK_SIZE; /* 64KB */
+
+    /** Below this amount of free heap the large buffers are not used. */
+    private static final long LOW_HEAP = 8 * BufferPool.MAX_BUFFER_SIZE; /* 512KB */
+
+    /** The OS major version whose file IO may corrupt copied files (JAVAAPI-1513). */
+    private static final OsVersion BUGGY_OS_VERSION = new OsVersion("6.0.0.0");
+
+    private final String name;
+
+    protected CopyStrategy(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Copies a file. If the destination file has been already present, then it is overwritten.
+     * The built-in strategies go through {@link IOUtils#copyFile(String, String, IOProgressListener, CopyStrategy)},
+     * so the space is reserved and the copy is recorded in {@link IOMetrics}. A custom strategy
+     * is called by that method and must not call it with itself.
+     *
+     * @param sourceFileUrl - url of the source file.
+     * @param destinationFileUrl - url of the destination file.
+     * @param listener - gets notified of the progress, can be null. Strategies that can not
+     * report the progress on the fly notify it once the copy is finished.
+     *
+     * @throws IOException if the copy fails.
+     */
+    public abstract void copy(String sourceFileUrl, String destinationFileUrl, IOProgressListener listener)
+            throws IOException;
+
+    /**
+     * Copies a file whose connection is already open (the connection is closed),
+     * called by {@link IOUtils#copyFile(String, String, IOProgressListener, CopyStrategy)}
+     * after reserving the space. The built-in strategies reuse the connection, a custom one gets the url.
+     */
+    void copy(FileConnection source, String destinationFileUrl, IOProgressListener listener)
+            throws IOException {
+        final String sourceFileUrl = source.getURL();
+        IOUtils.safelyCloseStream(source);
+        copy(sourceFileUrl, destinationFileUrl, listener);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String toString() {
+        return "CopyStrategy [" + name + ']';
+    }
+
+    /**
+     * Picks a strategy for a file of the given size, based on the free heap
+     * and the running OS version:
+     * <ul>
+     * <li>OS 6 - {@link #WHOLE_FILE} for small files if the free heap allows,
+     * otherwise {@link #CHUNK_VERIFIED};</li>
+     * <li>other versions - {@link #SMALL_BUFFER} for small files or if the free heap is low,
+     * otherwise {@link #LARGE_BUFFER}.</li>
+     * </ul>
+     *
+     * @param fileSize - size of the file to copy in bytes.
+     * @return the strategy.
+     */
+    public static CopyStrategy select(long fileSize) {
+        return select(fileSize, false);
+    }
+
+    /**
+     * The same as {@link #select(long)}, but if <code>progress</code> is true
+     * only the strategies reporting the progress on the fly are picked
+     * ({@link #WHOLE_FILE} is not).
+     *
+     * @param fileSize - size of the file to copy in bytes.
+     * @param progress - true if the copy progress is going to be listened to.
+     * @return the strategy.
+     */
+    public static CopyStrategy select(long fileSize, boolean progress) {
+        final long freeHeap = Runtime.getRuntime().freeMemory();
+
+        if (isCorruptingOsVersion()) {
+            if (!progress && fileSize <= WHOLE_FILE_MAX_SIZE && fileSize <= freeHeap / WHOLE_FILE_HEAP_FRACTION) {
+                return WHOLE_FILE;
+            }
+            return CHUNK_VERIFIED;
+        }
+
+        if (fileSize <= SMALL_FILE_MAX_SIZE || freeHeap < LOW_HEAP) {
+            return SMALL_BUFFER;
+        }
+        return LARGE_BUFFER;
+    }
+
+    private static boolean isCorruptingOsVersion() {
+        try {
+            return SoftwareVersionUtils.OS_VERSION.isEqualTo(BUGGY_OS_VERSION, 1);
+        } catch (RuntimeException e) {
+            return false; /* an unexpected version string */
+        }
+    }
+
+    private static void notifyFinished(String destinationFileUrl, IOProgressListener listener)
+            throws IOException {
+        if (listener != null) {
+            final long size = IOUtils.getFileSize(destinationFileUrl);
+            listener.progressChanged(size, size);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.cleverua.bb.utils;
+
+/**
+ * Receives notifications from a {@link ParallelDirectoryDeleter}.
+ *
+ * <p>
+ * <b>IMPORTANT:</b> the methods are called on the worker threads of the deleter
+ * (<code>progressChanged</code> may be called by several of them at once).
+ * UI must be updated via <code>UiApplication.invokeLater(Runnable)</code>.
+ * </p>
+ */
+public interface DeleteProgressListener {
+
+    /**
+     * Called each time a batch of files or a directory has been deleted.
+     *
+     * @param filesDeleted - number of files deleted so far.
+     * @param dirsDeleted - number of directories deleted so far.
+     */
+    void progressChanged(int filesDeleted, int dirsDeleted);
+
+    /**
+     * Called once when the delete is finished, failed or cancelled.
+     *
+     * @param url - url of the deleted tree.
+     * @param error - the exception the delete has failed with, or null.
+     * @param cancelled - true if the delete has been cancelled.
+     */
+    void deleteFinished(String url, Throwable error, boolean cancelled);
+}
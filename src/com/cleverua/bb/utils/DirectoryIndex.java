@@ -0,0 +1,529 @@
+package com.cleverua.bb.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.Vector;
+
+import javax.microedition.io.Connector;
+import javax.microedition.io.file.FileConnection;
+
+import net.rim.device.api.io.file.FileSystemJournal;
+import net.rim.device.api.io.file.FileSystemJournalEntry;
+import net.rim.device.api.io.file.FileSystemJournalListener;
+import net.rim.device.api.system.Application;
+import net.rim.device.api.system.Characters;
+import net.rim.device.api.util.Arrays;
+import net.rim.device.api.util.Comparator;
+
+/**
+ * Keeps sorted listings of the watched directories in RAM, so a directory does not have to be
+ * listed and sorted again each time its content is shown.
+ *
+ * <pre>
+ * DirectoryIndex index = new DirectoryIndex(Application.getApplication());
+ * String[] photos = index.listPrefix("file:///SDCard/BlackBerry/pictures/", "IMG");
+ * ...
+ * index.close();
+ * </pre>
+ *
+ * <p>
+ * A directory gets watched on the first query for it (or on {@link #watch(String)}): it is listed
+ * once and the names are sorted with {@link StringUtils#STRING_COMPARATOR} (case insensitive).
+ * Then the listing is kept up to date incrementally:
+ * </p>
+ * <ul>
+ * <li>the changes done by {@link IOUtils} are applied right away
+ * (see {@link IOUtils#addFileChangeListener(FileChangeListener)});</li>
+ * <li>the changes done by other means (other applications, the user) are read from the
+ * <code>FileSystemJournal</code> on a background thread shortly after the journal reports them.
+ * If the journal has been overwritten meanwhile, all the listings are listed again on the next query.</li>
+ * </ul>
+ *
+ * <p>
+ * Names of directories end with "/", the ".rem" extension of the encrypted files is removed.
+ * {@link #listPrefix(String, String)} and {@link #listRange(String, String, String)} use a binary
+ * search, so they cost O(log n) plus the size of the result.
+ * </p>
+ *
+ * <p>The class is thread safe.</p>
+ */
+public class DirectoryIndex implements FileChangeListener {
+
+    private static final String FILE_URL_SCHEME = "file://";
+
+    private static final Comparator NAME_COMPARATOR = StringUtils.STRING_COMPARATOR;
+
+    /** Delay of reading the journal after it has reported a change, so a burst of changes is read at once. */
+    private static final long JOURNAL_READ_DELAY_MILLIS = 200;
+
+    /** directory url -> Listing */
+    private final Hashtable listings = new Hashtable();
+
+    private final Application application;
+    private final Timer timer;
+    private TimerTask scheduledJournalRead;
+
+    /** USN of the first journal entry not read yet, accessed by the timer thread only. */
+    private long nextUSN;
+
+    private boolean closed;
+
+    private final FileSystemJournalListener journalListener = new FileSystemJournalListener() {
+        public void fileJournalChanged() {
+            scheduleJournalRead();
+        }
+    };
+
+    /**
+     * Creates the index and starts following the changes.
+     *
+     * @param app - application to get the <code>FileSystemJournal</code> notifications from,
+     * null to follow the changes done via {@link IOUtils} only.
+     */
+    public DirectoryIndex(Application app) {
+        application = app;
+        IOUtils.addFileChangeListener(this);
+        if (app != null) {
+            nextUSN = FileSystemJournal.getNextUSN();
+            timer = new Timer();
+            app.addFileSystemJournalListener(journalListener);
+        } else {
+            timer = null;
+        }
+    }
+
+    /**
+     * Lists the directory unless it is watched already.
+     *
+     * @param dirUrl - url of the directory, e.g. <code>"file:///SDCard/photos/"</code>.
+     *
+     * @throws IllegalStateException if the index is closed.
+     * @throws IOException if the directory can not be listed.
+     */
+    public void watch(String dirUrl) throws IOException {
+        getListing(dirUrl);
+    }
+
+    /**
+     * Stops watching the directory and drops its listing. Does nothing if it is not watched.
+     */
+    public synchronized void unwatch(String dirUrl) {
+        listings.remove(dirUrl);
+    }
+
+    public synchronized boolean isWatched(String dirUrl) {
+        return listings.containsKey(dirUrl);
+    }
+
+    /**
+     * @param dirUrl - url of the directory, e.g. <code>"file:///SDCard/photos/"</code>.
+     * @return names of the directory entries, sorted. Empty if the directory does not exist.
+     *
+     * @throws IllegalStateException if the index is closed.
+     * @throws IOException if the directory is not watched yet and can not be listed.
+     */
+    public String[] list(String dirUrl) throws IOException {
+        return listRange(dirUrl, null, null);
+    }
+
+    /**
+     * @param dirUrl - url of the directory, e.g. <code>"file:///SDCard/photos/"</code>.
+     * @param prefix - prefix of the names to return (case insensitive), e.g. <code>"IMG_"</code>.
+     * @return names of the directory entries starting with the prefix, sorted.
+     *
+     * @throws IllegalStateException if the index is closed.
+     * @throws IOException if the directory is not watched yet and can not be listed.
+     */
+    public String[] listPrefix(String dirUrl, String prefix) throws IOException {
+        final Listing listing = getListing(dirUrl);
+        synchronized (this) {
+            final Vector names = listing.names;
+            final int from = lowerBound(names, prefix);
+            int to = from;
+            final int size = names.size();
+            while (to < size && ((String) names.elementAt(to)).regionMatches(true, 0, prefix, 0, prefix.length())) {
+                to++;
+            }
+            return copy(names, from, to);
+        }
+    }
+
+    /**
+     * @param dirUrl - url of the directory, e.g. <code>"file:///SDCard/photos/"</code>.
+     * @param fromName - the lowest name to return (inclusive), null for no lower bound.
+     * @param toName - the name to stop at (exclusive), null for no upper bound.
+     * @return names of the directory entries in the range, sorted.
+     *
+     * @throws IllegalStateException if the index is closed.
+     * @throws IOException if the directory is not watched yet and can not be listed.
+     */
+    public String[] listRange(String dirUrl, String fromName, String toName) throws IOException {
+        final Listing listing = getListing(dirUrl);
+        synchronized (this) {
+            final Vector names = listing.names;
+            final int from = fromName == null ? 0 : lowerBound(names, fromName);
+            final int to = toName == null ? names.size() : lowerBound(names, toName);
+            return copy(names, from, Math.max(from, to));
+        }
+    }
+
+    /**
+     * Stops following the changes and drops all the listings.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            listings.clear();
+        }
+        IOUtils.removeFileChangeListener(this);
+        if (application != null) {
+            application.removeFileSystemJournalListener(journalListener);
+            timer.cancel();
+        }
+    }
+
+    /**
+     * Applies a change done via {@link IOUtils}, not to be called directly.
+     */
+    public synchronized void fileChanged(int event, String url, String oldUrl) {
+        switch (event) {
+        case FILE_ADDED:
+            add(url);
+            break;
+        case FILE_CHANGED:
+            if (isDirectoryUrl(url)) {
+                /* it is not known what is left of the directory, list it and its parent again */
+                markStale(url);
+                final Listing parent = (Listing) listings.get(IOUtils.getParentUrl(url));
+                if (parent != null) {
+                    parent.stale = true;
+                }
+            } else {
+                add(url);
+            }
+            break;
+        case FILE_DELETED:
+            remove(url);
+            break;
+        case FILE_RENAMED:
+            remove(oldUrl);
+            add(url);
+            if (isDirectoryUrl(url)) {
+                markStale(url);
+            }
+            break;
+        }
+    }
+
+    /**
+     * @return the listing, listed if it is not watched yet or stale.
+     */
+    private Listing getListing(String dirUrl) throws IOException {
+        final Listing listing;
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("index is closed");
+            }
+            Listing existing = (Listing) listings.get(dirUrl);
+            if (existing == null) {
+                existing = new Listing();
+                listings.put(dirUrl, existing);
+            }
+            listing = existing;
+
+            while (listing.pendingOps != null) {
+                /* being listed by another thread */
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("interrupted while waiting for listing of " + dirUrl);
+                }
+            }
+            if (listing.names != null && !listing.stale) {
+                return listing;
+            }
+            listing.stale = false;
+            listing.pendingOps = new Vector();
+        }
+
+        String[] names = null;
+        try {
+            names = readNames(dirUrl);
+        } finally {
+            synchronized (this) {
+                if (names == null) {
+                    listing.stale = true;
+                } else {
+                    listing.setNames(names);
+                }
+                listing.pendingOps = null;
+                notifyAll();
+            }
+        }
+        return listing;
+    }
+
+    private static String[] readNames(String dirUrl) throws IOException {
+        final FileConnection fc = IOUtils.open(dirUrl, Connector.READ);
+        try {
+            if (!fc.exists()) {
+                return new String[0];
+            }
+            if (!fc.isDirectory()) {
+                throw new IOException("not a directory: " + dirUrl);
+            }
+            final Vector names = new Vector();
+            for (Enumeration e = fc.list(); e.hasMoreElements();) {
+                names.addElement(IOUtils.removeEncExtension((String) e.nextElement()));
+            }
+            final String[] result = new String[names.size()];
+            names.copyInto(result);
+            Arrays.sort(result, NAME_COMPARATOR);
+            return result;
+        } finally {
+            IOUtils.safelyCloseStream(fc);
+        }
+    }
+
+    /**
+     * Adds the entry to the listing of its directory if the directory is watched.
+     */
+    private void add(String url) {
+        final Listing listing = (Listing) listings.get(IOUtils.getParentUrl(url));
+        if (listing != null) {
+            final String name = getName(url);
+            /* a journal entry of a directory may have come without the trailing "/" */
+            listing.remove(otherVariant(name));
+            listing.add(name);
+        }
+    }
+
+    /**
+     * Removes the entry from the listing of its directory, marks the listings
+     * of the directory (if it is one) and its subdirectories stale.
+     */
+    private void remove(String url) {
+        final Listing listing = (Listing) listings.get(IOUtils.getParentUrl(url));
+        if (listing != null) {
+            final String name = getName(url);
+            listing.remove(name);
+            listing.remove(otherVariant(name));
+        }
+        markStale(isDirectoryUrl(url) ? url : url + Characters.SOLIDUS);
+    }
+
+    /**
+     * Marks the listings of the directory and all its watched subdirectories stale,
+     * they are listed again on the next query.
+     */
+    private void markStale(String dirUrl) {
+        for (Enumeration e = listings.keys(); e.hasMoreElements();) {
+            final String url = (String) e.nextElement();
+            if (url.startsWith(dirUrl)) {
+                ((Listing) listings.get(url)).stale = true;
+            }
+        }
+    }
+
+    private synchronized void markAllStale() {
+        for (Enumeration e = listings.elements(); e.hasMoreElements();) {
+            ((Listing) e.nextElement()).stale = true;
+        }
+    }
+
+    private synchronized void scheduleJournalRead() {
+        if (closed || scheduledJournalRead != null) {
+            return;
+        }
+        scheduledJournalRead = new TimerTask() {
+            public void run() {
+                synchronized (DirectoryIndex.this) {
+                    scheduledJournalRead = null;
+                }
+                readJournal();
+            }
+        };
+        timer.schedule(scheduledJournalRead, JOURNAL_READ_DELAY_MILLIS);
+    }
+
+    /**
+     * Applies the journal entries written since the last read. Runs on the timer thread.
+     */
+    private void readJournal() {
+        final long lastUSN = FileSystemJournal.getNextUSN();
+        for (long usn = nextUSN; usn < lastUSN; usn++) {
+            final FileSystemJournalEntry entry = FileSystemJournal.getEntry(usn);
+            if (entry == null) {
+                /* the journal has been overwritten, the older entries are lost */
+                Logger.debug(DirectoryIndex.class, "journal entry " + usn + " is lost, relisting");
+                markAllStale();
+                break;
+            }
+            applyJournalEntry(entry);
+        }
+        nextUSN = lastUSN;
+    }
+
+    private void applyJournalEntry(FileSystemJournalEntry entry) {
+        final String url = toUrl(entry.getPath());
+        switch (entry.getEvent()) {
+        case FileSystemJournalEntry.FILE_ADDED:
+        case FileSystemJournalEntry.FILE_CHANGED:
+            fileChanged(FILE_ADDED, resolveDirectory(url), null);
+            break;
+        case FileSystemJournalEntry.FILE_DELETED:
+            fileChanged(FILE_DELETED, url, null);
+            break;
+        case FileSystemJournalEntry.FILE_RENAMED:
+            final String oldUrl = toUrl(entry.getOldPath());
+            fileChanged(oldUrl == null ? FILE_ADDED : FILE_RENAMED, resolveDirectory(url), oldUrl);
+            break;
+        }
+    }
+
+    /**
+     * The journal does not tell directories from files, so checks it for the urls
+     * in the watched directories (the only ones the index cares about).
+     *
+     * @return the url with the trailing "/" if it points to a directory.
+     */
+    private String resolveDirectory(String url) {
+        if (isDirectoryUrl(url) || !isWatched(IOUtils.getParentUrl(url))) {
+            return url;
+        }
+        try {
+            return IOUtils.isDirectory(url) ? url + Characters.SOLIDUS : url;
+        } catch (IOException e) {
+            return url; /* may have been deleted meanwhile, the next journal entry will tell */
+        } catch (RuntimeException e) {
+            return url;
+        }
+    }
+
+    private static String toUrl(String path) {
+        return path == null ? null : IOUtils.removeEncExtension(FILE_URL_SCHEME + path);
+    }
+
+    private static boolean isDirectoryUrl(String url) {
+        return url.charAt(url.length() - 1) == Characters.SOLIDUS;
+    }
+
+    private static String getName(String url) {
+        return url.substring(IOUtils.getParentUrl(url).length());
+    }
+
+    /**
+     * @return the name with the trailing "/" removed if it has one, added otherwise.
+     */
+    private static String otherVariant(String name) {
+        return isDirectoryUrl(name) ? name.substring(0, name.length() - 1) : name + Characters.SOLIDUS;
+    }
+
+    /**
+     * @return index of the first name not less than the key.
+     */
+    private static int lowerBound(Vector names, String key) {
+        int low = 0;
+        int high = names.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (NAME_COMPARATOR.compare(names.elementAt(mid), key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static String[] copy(Vector names, int from, int to) {
+        final String[] result = new String[to - from];
+        for (int i = from; i < to; i++) {
+            result[i - from] = (String) names.elementAt(i);
+        }
+        return result;
+    }
+
+    private static class Listing {
+
+        /** Sorted names, null until the directory is listed. */
+        Vector names;
+
+        /** Changes arrived while the directory is being listed (Object[] { Boolean add, String name }), null otherwise. */
+        Vector pendingOps;
+
+        /** True if the listing must be listed again. */
+        boolean stale;
+
+        /**
+         * Sets the names listed and applies the changes arrived meanwhile.
+         */
+        void setNames(String[] sorted) {
+            names = new Vector(sorted.length);
+            for (int i = 0; i < sorted.length; i++) {
+                names.addElement(sorted[i]);
+            }
+            final Vector ops = pendingOps;
+            pendingOps = null;
+            final int size = ops.size();
+            for (int i = 0; i < size; i++) {
+                final Object[] op = (Object[]) ops.elementAt(i);
+                if (op[0] == Boolean.TRUE) {
+                    add((String) op[1]);
+                } else {
+                    remove((String) op[1]);
+                }
+            }
+        }
+
+        void add(String name) {
+            if (pendingOps != null) {
+                pendingOps.addElement(new Object[] { Boolean.TRUE, name });
+                return;
+            }
+            if (names == null || indexOf(name) >= 0) {
+                return;
+            }
+            names.insertElementAt(name, lowerBound(names, name));
+        }
+
+        void remove(String name) {
+            if (pendingOps != null) {
+                pendingOps.addElement(new Object[] { Boolean.FALSE, name });
+                return;
+            }
+            if (names == null) {
+                return;
+            }
+            final int index = indexOf(name);
+            if (index >= 0) {
+                names.removeElementAt(index);
+            }
+        }
+
+        /**
+         * @return index of the name, -1 if there is no such name.
+         */
+        private int indexOf(String name) {
+            final int size = names.size();
+            /* the comparator ignores the case, so look through all the equal names */
+            for (int i = lowerBound(names, name); i < size; i++) {
+                final String other = (String) names.elementAt(i);
+                if (other.equals(name)) {
+                    return i;
+                }
+                if (NAME_COMPARATOR.compare(other, name) != 0) {
+                    break;
+                }
+            }
+            return -1;
+        }
+    }
+}
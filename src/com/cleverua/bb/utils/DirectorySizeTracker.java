@@ -0,0 +1,561 @@
+package com.cleverua.bb.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.Vector;
+
+import javax.microedition.io.Connector;
+import javax.microedition.io.file.FileConnection;
+
+import net.rim.device.api.system.Characters;
+import net.rim.device.api.util.Arrays;
+import net.rim.device.api.util.Comparator;
+
+/**
+ * Keeps the total size of the tracked directories (including subdirectories) up to date
+ * without walking them again, and enforces per-directory quotas.
+ *
+ * <pre>
+ * DirectorySizeTracker tracker = new DirectorySizeTracker();
+ * tracker.setQuota("file:///SDCard/my_app/cache/", 10 * 1024 * 1024, null);
+ * ...
+ * IOUtils.saveDataToFile("file:///SDCard/my_app/cache/image1.png", data);
+ * // the least recently accessed files get deleted shortly if the cache exceeds 10MB
+ * ...
+ * tracker.touch("file:///SDCard/my_app/cache/image1.png"); // a cache hit
+ * </pre>
+ *
+ * <p>
+ * A directory is walked once (by {@link #track(String)}, or the first query for it),
+ * remembering the size and the last modification time of each file. Then the tracker follows
+ * the changes done by {@link IOUtils} (see {@link IOUtils#addFileChangeListener(FileChangeListener)}):
+ * deleted and renamed files are accounted right away, the size of a written file is read
+ * on the next query (or quota check), so writing a file costs no extra IO. Changes done
+ * by other means are not noticed, use {@link #rescan(String)} after them.
+ * </p>
+ *
+ * <p>
+ * When a directory with a quota gets written, its size is checked shortly after on a background
+ * thread. If the quota is exceeded, the least recently accessed files (the last access is
+ * the last write or {@link #touch(String)}) are offered to the {@link QuotaListener}
+ * and deleted with {@link IOUtils#delete(String)} unless the listener declines.
+ * </p>
+ *
+ * <p>The class is thread safe.</p>
+ */
+public class DirectorySizeTracker implements FileChangeListener {
+
+    /** Delay of a quota check after a write, so a burst of writes is checked at once. */
+    private static final long QUOTA_CHECK_DELAY_MILLIS = 1000;
+
+    private static final Comparator LEAST_RECENT_FIRST = new Comparator() {
+        public int compare(Object o1, Object o2) {
+            final long a1 = ((FileEntry) o1).lastAccess;
+            final long a2 = ((FileEntry) o2).lastAccess;
+            return a1 < a2 ? -1 : (a1 == a2 ? 0 : 1);
+        }
+    };
+
+    /** directory url -> Root */
+    private final Hashtable roots = new Hashtable();
+
+    private final Timer timer = new Timer();
+    private TimerTask scheduledQuotaCheck;
+
+    private boolean closed;
+
+    /**
+     * Creates the tracker and starts following the changes done by {@link IOUtils}.
+     */
+    public DirectorySizeTracker() {
+        IOUtils.addFileChangeListener(this);
+    }
+
+    /**
+     * Walks the directory unless it is tracked already.
+     *
+     * @param dirUrl - url of the directory, e.g. <code>"file:///SDCard/my_app/cache/"</code>.
+     *
+     * @throws IllegalStateException if the tracker is closed.
+     * @throws IOException if the directory can not be walked.
+     */
+    public void track(String dirUrl) throws IOException {
+        getRoot(dirUrl);
+    }
+
+    /**
+     * Stops tracking the directory and drops its quota. Does nothing if it is not tracked.
+     */
+    public synchronized void untrack(String dirUrl) {
+        roots.remove(dirUrl);
+    }
+
+    public synchronized boolean isTracked(String dirUrl) {
+        return roots.containsKey(dirUrl);
+    }
+
+    /**
+     * Walks the directory again, e.g. after it has been changed not via {@link IOUtils}.
+     *
+     * @throws IllegalStateException if the tracker is closed.
+     * @throws IOException if the directory can not be walked.
+     */
+    public void rescan(String dirUrl) throws IOException {
+        final Root root = getRoot(dirUrl);
+        synchronized (this) {
+            root.rescans.put(dirUrl, Boolean.TRUE);
+        }
+        resolve(root);
+    }
+
+    /**
+     * @param dirUrl - url of the directory, e.g. <code>"file:///SDCard/my_app/cache/"</code>.
+     * @return total size of the files in the directory and its subdirectories, in bytes.
+     * 0 if the directory does not exist.
+     *
+     * @throws IllegalStateException if the tracker is closed.
+     * @throws IOException if the directory is not tracked yet and can not be walked,
+     * or the size of a written file can not be read.
+     */
+    public long getSize(String dirUrl) throws IOException {
+        final Root root = getRoot(dirUrl);
+        resolve(root);
+        synchronized (this) {
+            return root.total;
+        }
+    }
+
+    /**
+     * @return number of files in the directory and its subdirectories.
+     *
+     * @throws IllegalStateException if the tracker is closed.
+     * @throws IOException see {@link #getSize(String)}.
+     */
+    public int getFilesCount(String dirUrl) throws IOException {
+        final Root root = getRoot(dirUrl);
+        resolve(root);
+        synchronized (this) {
+            return root.files.size();
+        }
+    }
+
+    /**
+     * Sets the quota of the directory, the directory gets tracked if it is not yet.
+     * The quota is checked right away.
+     *
+     * @param dirUrl - url of the directory, e.g. <code>"file:///SDCard/my_app/cache/"</code>.
+     * @param maxBytes - max size of the directory content in bytes.
+     * @param listener - decides what to do once the quota is exceeded, null to always delete
+     * the least recently accessed files.
+     *
+     * @throws IllegalArgumentException if <code>maxBytes</code> is negative.
+     * @throws IllegalStateException if the tracker is closed.
+     * @throws IOException if the directory can not be walked.
+     */
+    public void setQuota(String dirUrl, long maxBytes, QuotaListener listener) throws IOException {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("invalid maxBytes " + maxBytes);
+        }
+        final Root root = getRoot(dirUrl);
+        synchronized (this) {
+            root.quota = maxBytes;
+            root.quotaListener = listener;
+        }
+        checkQuota(root);
+    }
+
+    /**
+     * Removes the quota of the directory, it stays tracked.
+     */
+    public synchronized void removeQuota(String dirUrl) {
+        final Root root = (Root) roots.get(dirUrl);
+        if (root != null) {
+            root.quota = -1;
+            root.quotaListener = null;
+        }
+    }
+
+    /**
+     * Records an access to the file (e.g. a cache hit), so it is evicted later.
+     * Does nothing if the file is not in a tracked directory.
+     */
+    public synchronized void touch(String fileUrl) {
+        final long now = System.currentTimeMillis();
+        for (Enumeration e = roots.elements(); e.hasMoreElements();) {
+            final FileEntry entry = (FileEntry) ((Root) e.nextElement()).files.get(fileUrl);
+            if (entry != null) {
+                entry.lastAccess = now;
+            }
+        }
+    }
+
+    /**
+     * Checks the quotas of all the tracked directories right away, on the calling thread.
+     * Errors are logged.
+     */
+    public void checkQuotas() {
+        final Vector toCheck = new Vector();
+        synchronized (this) {
+            for (Enumeration e = roots.elements(); e.hasMoreElements();) {
+                final Root root = (Root) e.nextElement();
+                if (root.quota >= 0) {
+                    toCheck.addElement(root);
+                }
+            }
+        }
+        final int size = toCheck.size();
+        for (int i = 0; i < size; i++) {
+            final Root root = (Root) toCheck.elementAt(i);
+            try {
+                checkQuota(root);
+            } catch (IOException e) {
+                Logger.debug(DirectorySizeTracker.class, "quota check of " + root.url + " failed: " + e);
+            }
+        }
+    }
+
+    /**
+     * Stops following the changes and forgets all the directories.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            roots.clear();
+        }
+        IOUtils.removeFileChangeListener(this);
+        timer.cancel();
+    }
+
+    /**
+     * Applies a change done via {@link IOUtils}, not to be called directly.
+     */
+    public synchronized void fileChanged(int event, String url, String oldUrl) {
+        boolean written = false;
+        for (Enumeration e = roots.elements(); e.hasMoreElements();) {
+            final Root root = (Root) e.nextElement();
+            if (event == FILE_RENAMED) {
+                removeFrom(root, oldUrl);
+            }
+            if (event == FILE_DELETED) {
+                removeFrom(root, url);
+                if (root.loading && url.startsWith(root.url)) {
+                    /* the walk may have seen it before it has been deleted */
+                    (isDirectoryUrl(url) ? root.rescans : root.dirty).put(url, Boolean.TRUE);
+                }
+            } else if (url.startsWith(root.url)) {
+                if (isDirectoryUrl(url)) {
+                    if (event != FILE_ADDED) {
+                        /* renamed here or changed in an unknown way */
+                        root.rescans.put(url, Boolean.TRUE);
+                    }
+                } else {
+                    FileEntry entry = (FileEntry) root.files.get(url);
+                    if (entry == null) {
+                        entry = new FileEntry(url, 0, 0); /* the size is read by resolve() */
+                        root.files.put(url, entry);
+                    }
+                    entry.lastAccess = System.currentTimeMillis();
+                    root.dirty.put(url, Boolean.TRUE);
+                }
+                written |= root.quota >= 0;
+            } else if (event != FILE_ADDED && isDirectoryUrl(url) && root.url.startsWith(url)) {
+                /* an ancestor has been renamed to or has changed */
+                root.rescans.put(root.url, Boolean.TRUE);
+                written |= root.quota >= 0;
+            }
+        }
+        if (written) {
+            scheduleQuotaCheck();
+        }
+    }
+
+    /**
+     * @return the root, walked if it is not tracked yet.
+     */
+    private Root getRoot(String dirUrl) throws IOException {
+        final Root root;
+        synchronized (this) {
+            while (true) {
+                if (closed) {
+                    throw new IllegalStateException("tracker is closed");
+                }
+                final Root existing = (Root) roots.get(dirUrl);
+                if (existing == null) {
+                    break;
+                }
+                if (!existing.loading) {
+                    return existing;
+                }
+                /* being walked by another thread */
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("interrupted while waiting for walk of " + dirUrl);
+                }
+            }
+            root = new Root(dirUrl);
+            roots.put(dirUrl, root);
+        }
+
+        boolean walked = false;
+        try {
+            final Vector entries = walk(dirUrl);
+            synchronized (this) {
+                /* the entries changed during the walk are dirty already, the changes are newer */
+                final int size = entries.size();
+                for (int i = 0; i < size; i++) {
+                    final FileEntry entry = (FileEntry) entries.elementAt(i);
+                    if (!root.files.containsKey(entry.url)) {
+                        root.files.put(entry.url, entry);
+                        root.total += entry.size;
+                    }
+                }
+                root.loading = false;
+                notifyAll();
+            }
+            walked = true;
+        } finally {
+            if (!walked) {
+                synchronized (this) {
+                    roots.remove(dirUrl);
+                    notifyAll();
+                }
+            }
+        }
+        return root;
+    }
+
+    /**
+     * @return FileEntry of each file in the directory and its subdirectories.
+     */
+    private static Vector walk(String dirUrl) throws IOException {
+        final Vector entries = new Vector();
+        new DirectoryWalker(Connector.READ).walk(dirUrl, new SimpleDirectoryVisitor() {
+            public int visitFile(String url, FileConnection file, int depth) throws IOException {
+                final long lastModified = file.lastModified();
+                entries.addElement(new FileEntry(url, Math.max(0, file.fileSize()), lastModified));
+                return CONTINUE;
+            }
+        });
+        return entries;
+    }
+
+    /**
+     * Reads the sizes of the written files and walks the changed subdirectories.
+     * If it fails, the rest is left for the next time.
+     */
+    private void resolve(Root root) throws IOException {
+        final Vector rescans = new Vector();
+        final Vector dirty = new Vector();
+        synchronized (this) {
+            takeKeys(root.rescans, rescans);
+            takeKeys(root.dirty, dirty);
+        }
+
+        int rescansDone = 0;
+        int dirtyDone = 0;
+        try {
+            for (; rescansDone < rescans.size(); rescansDone++) {
+                final String dirUrl = (String) rescans.elementAt(rescansDone);
+                final Vector entries = walk(dirUrl);
+                synchronized (this) {
+                    removeEntries(root, dirUrl);
+                    final int size = entries.size();
+                    for (int i = 0; i < size; i++) {
+                        final FileEntry entry = (FileEntry) entries.elementAt(i);
+                        root.files.put(entry.url, entry);
+                        root.total += entry.size;
+                    }
+                }
+            }
+
+            for (; dirtyDone < dirty.size(); dirtyDone++) {
+                final String url = (String) dirty.elementAt(dirtyDone);
+                final long size = IOUtils.getFileSize(url);
+                synchronized (this) {
+                    final FileEntry entry = (FileEntry) root.files.get(url);
+                    if (size < 0) {
+                        /* deleted meanwhile */
+                        if (entry != null) {
+                            root.files.remove(url);
+                            root.total -= entry.size;
+                        }
+                    } else if (entry != null) {
+                        root.total += size - entry.size;
+                        entry.size = size;
+                    } else {
+                        root.files.put(url, new FileEntry(url, size, System.currentTimeMillis()));
+                        root.total += size;
+                    }
+                }
+            }
+        } finally {
+            if (rescansDone < rescans.size() || dirtyDone < dirty.size()) {
+                synchronized (this) {
+                    for (int i = rescansDone; i < rescans.size(); i++) {
+                        root.rescans.put(rescans.elementAt(i), Boolean.TRUE);
+                    }
+                    for (int i = dirtyDone; i < dirty.size(); i++) {
+                        root.dirty.put(dirty.elementAt(i), Boolean.TRUE);
+                    }
+                }
+            }
+        }
+    }
+
+    private void checkQuota(Root root) throws IOException {
+        resolve(root);
+
+        final String[] candidates;
+        final long size;
+        final long quota;
+        final QuotaListener listener;
+        synchronized (this) {
+            if (root.quota < 0 || root.total <= root.quota) {
+                return;
+            }
+            size = root.total;
+            quota = root.quota;
+            listener = root.quotaListener;
+
+            final FileEntry[] entries = new FileEntry[root.files.size()];
+            int i = 0;
+            for (Enumeration e = root.files.elements(); e.hasMoreElements();) {
+                entries[i++] = (FileEntry) e.nextElement();
+            }
+            Arrays.sort(entries, LEAST_RECENT_FIRST);
+
+            long remaining = size;
+            int count = 0;
+            while (count < entries.length && remaining > quota) {
+                remaining -= entries[count++].size;
+            }
+            candidates = new String[count];
+            for (int j = 0; j < count; j++) {
+                candidates[j] = entries[j].url;
+            }
+        }
+
+        Logger.debug(DirectorySizeTracker.class, root.url + " exceeds the quota: " + size + " > " + quota
+                + ", " + candidates.length + " files to evict");
+        if (listener != null && !listener.quotaExceeded(root.url, size, quota, candidates)) {
+            return;
+        }
+        for (int i = 0; i < candidates.length; i++) {
+            try {
+                IOUtils.delete(candidates[i]); /* the tracker is notified about the delete */
+            } catch (IOException e) {
+                Logger.debug(DirectorySizeTracker.class, "failed to evict " + candidates[i] + ": " + e);
+            }
+        }
+    }
+
+    private synchronized void scheduleQuotaCheck() {
+        if (closed || scheduledQuotaCheck != null) {
+            return;
+        }
+        scheduledQuotaCheck = new TimerTask() {
+            public void run() {
+                synchronized (DirectorySizeTracker.this) {
+                    scheduledQuotaCheck = null;
+                }
+                checkQuotas();
+            }
+        };
+        timer.schedule(scheduledQuotaCheck, QUOTA_CHECK_DELAY_MILLIS);
+    }
+
+    /**
+     * Removes the file or the directory content from the root, 
+     * all the root content if the url is an ancestor directory of the root.
+     */
+    private static void removeFrom(Root root, String url) {
+        if (url.startsWith(root.url)) {
+            removeEntries(root, url);
+        } else if (isDirectoryUrl(url) && root.url.startsWith(url)) {
+            removeEntries(root, root.url);
+        }
+    }
+
+    /**
+     * Removes the file, or the directory content, from the root.
+     */
+    private static void removeEntries(Root root, String url) {
+        if (!isDirectoryUrl(url)) {
+            final FileEntry entry = (FileEntry) root.files.remove(url);
+            if (entry != null) {
+                root.total -= entry.size;
+            }
+            return;
+        }
+        final Vector removed = new Vector();
+        for (Enumeration e = root.files.keys(); e.hasMoreElements();) {
+            final String fileUrl = (String) e.nextElement();
+            if (fileUrl.startsWith(url)) {
+                removed.addElement(fileUrl);
+            }
+        }
+        final int size = removed.size();
+        for (int i = 0; i < size; i++) {
+            root.total -= ((FileEntry) root.files.remove(removed.elementAt(i))).size;
+        }
+    }
+
+    private static void takeKeys(Hashtable from, Vector to) {
+        for (Enumeration e = from.keys(); e.hasMoreElements();) {
+            to.addElement(e.nextElement());
+        }
+        from.clear();
+    }
+
+    private static boolean isDirectoryUrl(String url) {
+        return url.charAt(url.length() - 1) == Characters.SOLIDUS;
+    }
+
+    private static class Root {
+
+        final String url;
+
+        /** file url -> FileEntry */
+        final Hashtable files = new Hashtable();
+
+        /** Urls of the files written since the last resolve -> Boolean.TRUE */
+        final Hashtable dirty = new Hashtable();
+
+        /** Urls of the subdirectories to walk again -> Boolean.TRUE */
+        final Hashtable rescans = new Hashtable();
+
+        long total;
+
+        /** The quota in bytes, -1 if none. */
+        long quota = -1;
+        QuotaListener quotaListener;
+
+        /** True until the initial walk is done. */
+        boolean loading = true;
+
+        Root(String url) {
+            this.url = url;
+        }
+    }
+
+    private static class FileEntry {
+
+        final String url;
+        long size;
+        long lastAccess;
+
+        FileEntry(String url, long size, long lastAccess) {
+            this.url = url;
+            this.size = size;
+            this.lastAccess = lastAccess;
+        }
+    }
+}
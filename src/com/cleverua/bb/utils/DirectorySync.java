@@ -0,0 +1,271 @@
+package com.cleverua.bb.utils;
+
+import java.io.IOException;
+import java.util.Hashtable;
+import java.util.Vector;
+
+import javax.microedition.io.Connector;
+import javax.microedition.io.file.FileConnection;
+
+import net.rim.device.api.io.file.FileIOException;
+import net.rim.device.api.system.Characters;
+
+/**
+ * Mirrors a source directory tree into a destination directory, copying only what has changed
+ * (like <code>rsync --delete</code>).
+ *
+ * <pre>
+ * SyncPlan plan = DirectorySync.plan("file:///SDCard/music/", "file:///store/home/user/music/",
+ *         DirectorySync.COMPARE_SIZE_AND_TIME);
+ * Logger.debug(this, plan.toString()); // the dry run
+ * BatchCopyResult result = DirectorySync.apply(plan, listener);
+ * </pre>
+ *
+ * <p>
+ * Both trees are walked once (one connection per entry, no file is read), then:
+ * </p>
+ * <ul>
+ * <li>destination files and directories missing in the source are deleted;</li>
+ * <li>source directories missing in the destination are created;</li>
+ * <li>source files missing in the destination or changed are copied.</li>
+ * </ul>
+ *
+ * <p>
+ * The file system can not set the modification time of a file, so a copy is newer than its
+ * source. With {@link #COMPARE_SIZE_AND_TIME} a file is considered changed if the sizes differ
+ * or the source has been modified after the destination has been written. With
+ * {@link #COMPARE_CHECKSUM} the CRC32 checksums of the files of the same size are compared
+ * (both files are read, so it is much slower, but it also catches the changes
+ * that keep the size and the time).
+ * </p>
+ */
+public class DirectorySync {
+
+    /** Compare files by size and modification time. */
+    public static final int COMPARE_SIZE_AND_TIME = 0;
+
+    /** Compare files by size and CRC32 checksum. */
+    public static final int COMPARE_CHECKSUM = 1;
+
+    /**
+     * Compares the trees and makes a plan of the actions to sync them, nothing is changed.
+     *
+     * @param sourceDirUrl - url of the source directory, e.g. <code>"file:///SDCard/music/"</code>.
+     * @param destinationDirUrl - url of the destination directory, e.g. <code>"file:///store/home/user/music/"</code>.
+     * It is created if it does not exist.
+     * @param compareMode - {@link #COMPARE_SIZE_AND_TIME} or {@link #COMPARE_CHECKSUM}.
+     * @return the plan.
+     *
+     * @throws IllegalArgumentException if any of the urls is invalid or the mode is unknown.
+     * @throws FileIOException with {@link FileIOException#DIRECTORY_NOT_FOUND} code
+     * if the source directory does not exist.
+     * @throws IOException if a tree can not be walked or a checksum can not be computed.
+     */
+    public static SyncPlan plan(String sourceDirUrl, String destinationDirUrl, int compareMode)
+            throws IOException {
+
+        if (compareMode != COMPARE_SIZE_AND_TIME && compareMode != COMPARE_CHECKSUM) {
+            throw new IllegalArgumentException("invalid compareMode " + compareMode);
+        }
+        if (!IOUtils.isPresent(sourceDirUrl)) {
+            throw new FileIOException(FileIOException.DIRECTORY_NOT_FOUND);
+        }
+
+        final Tree source = Tree.walk(sourceDirUrl);
+        final Tree destination = Tree.walk(destinationDirUrl);
+        final SyncPlan plan = new SyncPlan(sourceDirUrl, destinationDirUrl);
+
+        // deletes: the destination entries missing in the source (or of another kind),
+        // the content of a deleted directory is deleted with it
+        final Vector deletedDirs = new Vector();
+        for (int i = 0; i < destination.paths.size(); i++) {
+            final String path = (String) destination.paths.elementAt(i);
+            if (isUnder(path, deletedDirs)) {
+                continue;
+            }
+            if (isDirectoryPath(path)) {
+                if (!source.isDirectory(path)) {
+                    deletedDirs.addElement(path);
+                    plan.addAction(new SyncPlan.Action(SyncPlan.Action.DELETE, null, destinationDirUrl + path, 0));
+                }
+            } else if (!source.isFile(path)) {
+                plan.addAction(new SyncPlan.Action(SyncPlan.Action.DELETE, null, destinationDirUrl + path, 0));
+            }
+        }
+
+        // directories, parents first (the walk is pre-order)
+        if (!destination.exists) {
+            plan.addAction(new SyncPlan.Action(SyncPlan.Action.MKDIR, null, destinationDirUrl, 0));
+        }
+        for (int i = 0; i < source.paths.size(); i++) {
+            final String path = (String) source.paths.elementAt(i);
+            if (isDirectoryPath(path) && (!destination.isDirectory(path) || isUnder(path, deletedDirs))) {
+                plan.addAction(new SyncPlan.Action(SyncPlan.Action.MKDIR, null, destinationDirUrl + path, 0));
+            }
+        }
+
+        // files
+        for (int i = 0; i < source.paths.size(); i++) {
+            final String path = (String) source.paths.elementAt(i);
+            if (isDirectoryPath(path)) {
+                continue;
+            }
+            final long[] sourceFile = source.getFile(path);
+            final long[] destinationFile = isUnder(path, deletedDirs) ? null : destination.getFile(path);
+            if (destinationFile == null
+                    || isChanged(sourceDirUrl + path, sourceFile, destinationDirUrl + path, destinationFile, compareMode)) {
+                plan.addAction(new SyncPlan.Action(SyncPlan.Action.COPY, sourceDirUrl + path,
+                        destinationDirUrl + path, sourceFile[Tree.SIZE]));
+            } else {
+                plan.addUnchanged();
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Applies the plan: deletes, creates directories, then copies the files with
+     * {@link BatchCopy#copyFiles(String[], String[], BatchCopyListener)} (so the free space
+     * is checked before copying, and a failure of a single file does not stop the sync).
+     *
+     * <p>
+     * The plan should be fresh, the trees are not compared again. An action that turns out
+     * to be needless (e.g. the file to delete is gone already) does no harm.
+     * </p>
+     *
+     * @param plan - the plan made by {@link #plan(String, String, int)}.
+     * @param listener - gets notified about the copy progress, can be null.
+     * @return summary of the copies.
+     *
+     * @throws FileIOException with {@link FileIOException#FILESYSTEM_FULL} code
+     * if the files to copy do not fit into the destination file system.
+     * @throws IOException if a delete or a directory creation fails, nothing is copied then.
+     */
+    public static BatchCopyResult apply(SyncPlan plan, BatchCopyListener listener) throws IOException {
+        final SyncPlan.Action[] actions = plan.getActions();
+        final String[] sourceUrls = new String[plan.getCopiesCount()];
+        final String[] destinationUrls = new String[sourceUrls.length];
+        int copies = 0;
+
+        for (int i = 0; i < actions.length; i++) {
+            final SyncPlan.Action action = actions[i];
+            switch (action.type) {
+            case SyncPlan.Action.DELETE:
+                if (isDirectoryPath(action.destinationUrl)) {
+                    IOUtils.deleteDir(action.destinationUrl);
+                } else {
+                    IOUtils.delete(action.destinationUrl);
+                }
+                break;
+            case SyncPlan.Action.MKDIR:
+                IOUtils.createDirIncludingAncestors(action.destinationUrl);
+                break;
+            case SyncPlan.Action.COPY:
+                sourceUrls[copies] = action.sourceUrl;
+                destinationUrls[copies] = action.destinationUrl;
+                copies++;
+                break;
+            }
+        }
+        return BatchCopy.copyFiles(sourceUrls, destinationUrls, listener);
+    }
+
+    /**
+     * Makes a plan and applies it, see {@link #plan(String, String, int)}
+     * and {@link #apply(SyncPlan, BatchCopyListener)}.
+     */
+    public static BatchCopyResult sync(String sourceDirUrl, String destinationDirUrl, int compareMode,
+            BatchCopyListener listener) throws IOException {
+        return apply(plan(sourceDirUrl, destinationDirUrl, compareMode), listener);
+    }
+
+    private static boolean isChanged(String sourceUrl, long[] source, String destinationUrl,
+            long[] destination, int compareMode) throws IOException {
+
+        if (source[Tree.SIZE] != destination[Tree.SIZE]) {
+            return true;
+        }
+        if (compareMode == COMPARE_CHECKSUM) {
+            return ChecksumUtils.computeChecksum(sourceUrl) != ChecksumUtils.computeChecksum(destinationUrl);
+        }
+        return source[Tree.LAST_MODIFIED] > destination[Tree.LAST_MODIFIED];
+    }
+
+    private static boolean isDirectoryPath(String path) {
+        return path.length() > 0 && path.charAt(path.length() - 1) == Characters.SOLIDUS;
+    }
+
+    /**
+     * @return true if the path is in any of the directories.
+     */
+    private static boolean isUnder(String path, Vector dirPaths) {
+        final int size = dirPaths.size();
+        for (int i = 0; i < size; i++) {
+            if (path.startsWith((String) dirPaths.elementAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Entries of a directory tree, by the path relative to the tree root.
+     */
+    private static class Tree {
+
+        static final int SIZE          = 0;
+        static final int LAST_MODIFIED = 1;
+
+        private static final Object DIRECTORY = new Object();
+
+        boolean exists;
+
+        /** Relative paths in the walk (pre-)order, directories end with "/". */
+        final Vector paths = new Vector();
+
+        /** relative path -> long[] { size, lastModified } for a file, DIRECTORY for a directory */
+        final Hashtable entries = new Hashtable();
+
+        static Tree walk(final String rootUrl) throws IOException {
+            final Tree tree = new Tree();
+            final int rootLength = rootUrl.length();
+            new DirectoryWalker(Connector.READ).walk(rootUrl, new SimpleDirectoryVisitor() {
+                public int preVisitDirectory(String url, FileConnection dir, int depth) throws IOException {
+                    if (depth == 0) {
+                        tree.exists = true;
+                    } else {
+                        tree.add(url.substring(rootLength), DIRECTORY);
+                    }
+                    return CONTINUE;
+                }
+
+                public int visitFile(String url, FileConnection file, int depth) throws IOException {
+                    if (depth == 0) {
+                        throw new IOException("not a directory: " + url);
+                    }
+                    tree.add(url.substring(rootLength), new long[] { file.fileSize(), file.lastModified() });
+                    return CONTINUE;
+                }
+            });
+            return tree;
+        }
+
+        void add(String path, Object entry) {
+            paths.addElement(path);
+            entries.put(path, entry);
+        }
+
+        boolean isDirectory(String path) {
+            return entries.get(path) == DIRECTORY;
+        }
+
+        boolean isFile(String path) {
+            return getFile(path) != null;
+        }
+
+        long[] getFile(String path) {
+            final Object entry = entries.get(path);
+            return entry == DIRECTORY ? null : (long[]) entry;
+        }
+    }
+}
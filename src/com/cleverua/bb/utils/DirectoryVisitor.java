@@ -0,0 +1,69 @@
+package com.cleverua.bb.utils;
+
+import java.io.IOException;
+
+import javax.microedition.io.file.FileConnection;
+
+/**
+ * Callbacks of a {@link DirectoryWalker}.
+ * 
+ * <p>
+ * Each callback gets an open {@link FileConnection} to the entry being visited, 
+ * so the visitor can query or modify the entry (e.g. <code>fileSize()</code>, 
+ * <code>delete()</code>) without opening another connection. The connection is 
+ * owned and closed by the walker, visitors must not close it nor keep it.
+ * </p>
+ * 
+ * @see SimpleDirectoryVisitor
+ */
+public interface DirectoryVisitor {
+    
+    /** Continue walking. */
+    int CONTINUE = 0;
+    
+    /** 
+     * Do not walk into the directory (meaningful for {@link #preVisitDirectory}
+     * only, the same as {@link #CONTINUE} for the other callbacks). 
+     * {@link #postVisitDirectory} is not called for the skipped directory. 
+     */
+    int SKIP_SUBTREE = 1;
+    
+    /** Stop walking immediately. */
+    int TERMINATE = 2;
+    
+    /**
+     * Called for a directory before its entries are visited (pre-order).
+     * 
+     * @param url - url of the directory, ends with "/".
+     * @param dir - open connection to the directory.
+     * @param depth - 0 for the walk root, 1 for its entries, etc.
+     * @return {@link #CONTINUE}, {@link #SKIP_SUBTREE} or {@link #TERMINATE}.
+     * 
+     * @throws IOException to stop walking, the exception is passed to the walker caller.
+     */
+    int preVisitDirectory(String url, FileConnection dir, int depth) throws IOException;
+    
+    /**
+     * Called for a file.
+     * 
+     * @param url - url of the file.
+     * @param file - open connection to the file.
+     * @param depth - 0 for the walk root, 1 for its entries, etc.
+     * @return {@link #CONTINUE} or {@link #TERMINATE}.
+     * 
+     * @throws IOException to stop walking, the exception is passed to the walker caller.
+     */
+    int visitFile(String url, FileConnection file, int depth) throws IOException;
+    
+    /**
+     * Called for a directory after all its entries have been visited (post-order).
+     * 
+     * @param url - url of the directory, ends with "/".
+     * @param dir - open connection to the directory.
+     * @param depth - 0 for the walk root, 1 for its entries, etc.
+     * @return {@link #CONTINUE} or {@link #TERMINATE}.
+     * 
+     * @throws IOException to stop walking, the exception is passed to the walker caller.
+     */
+    int postVisitDirectory(String url, FileConnection dir, int depth) throws IOException;
+}
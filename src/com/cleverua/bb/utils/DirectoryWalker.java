@@ -0,0 +1,197 @@
+package com.cleverua.bb.utils;
+
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.Vector;
+
+import javax.microedition.io.file.FileConnection;
+
+import net.rim.device.api.system.Characters;
+
+/**
+ * Walks a directory tree calling a {@link DirectoryVisitor} for each entry.
+ * 
+ * <p>
+ * The walk is not recursive (an explicit stack is used), so deep trees do not exhaust 
+ * the thread stack. Exactly one connection is opened per entry: directories are told 
+ * from files by the trailing "/" <code>FileConnection.list()</code> gives them, 
+ * and the connection to a directory is used both to list it and to visit it 
+ * (so it stays open until the directory is post-visited, i.e. the walker holds 
+ * as many open connections as deep it currently is).
+ * </p>
+ * 
+ * <p>
+ * Example, counting the size of all ".jpg" files in a directory:
+ * </p>
+ * <pre>
+ * final long[] size = new long[1];
+ * new DirectoryWalker(Connector.READ).walk("file:///SDCard/photos/", new SimpleDirectoryVisitor() {
+ *     public int visitFile(String url, FileConnection file, int depth) throws IOException {
+ *         if (url.endsWith(".jpg")) {
+ *             size[0] += file.fileSize();
+ *         }
+ *         return CONTINUE;
+ *     }
+ * });
+ * </pre>
+ */
+public class DirectoryWalker {
+    
+    /** Max depth value meaning "no limit". */
+    public static final int UNLIMITED_DEPTH = Integer.MAX_VALUE;
+    
+    private final int mode;
+    private final int maxDepth;
+    
+    /**
+     * Creates a walker without a depth limit.
+     * 
+     * @param mode - mode the connections are opened with, <code>Connector.READ</code> or 
+     * <code>Connector.READ_WRITE</code> (needed if the visitor modifies the entries).
+     */
+    public DirectoryWalker(int mode) {
+        this(mode, UNLIMITED_DEPTH);
+    }
+    
+    /**
+     * @param mode - mode the connections are opened with, <code>Connector.READ</code> or 
+     * <code>Connector.READ_WRITE</code> (needed if the visitor modifies the entries).
+     * @param maxDepth - max depth of the entries to visit, e.g. 0 - visit the walk root only, 
+     * 1 - visit the root and its entries. The directories at the max depth are pre- and 
+     * post-visited, but not listed.
+     * 
+     * @throws IllegalArgumentException if <code>maxDepth</code> is negative.
+     */
+    public DirectoryWalker(int mode, int maxDepth) {
+        if (maxDepth < 0) {
+            throw new IllegalArgumentException("invalid maxDepth " + maxDepth);
+        }
+        this.mode = mode;
+        this.maxDepth = maxDepth;
+    }
+    
+    /**
+     * Walks the tree starting from the url. If the url points to a file, 
+     * the file only is visited. If the url target does not exist, nothing is visited.
+     * 
+     * @param url - url of a directory (must end with "/") or a file.
+     * @param visitor - visitor to call.
+     * @return false if the walk has been terminated by the visitor, true otherwise.
+     * 
+     * @throws IllegalArgumentException if the <code>url</code> is invalid.
+     * @throws SecurityException if the security of the application does not have 
+     * the required access for the entries.
+     * @throws IOException if an entry can not be opened or listed, or the visitor throws it.
+     */
+    public boolean walk(String url, DirectoryVisitor visitor) throws IOException {
+        final Vector stack = new Vector();
+        try {
+            
+            FileConnection root = IOUtils.open(url, mode);
+            if (!root.exists()) {
+                IOUtils.safelyCloseStream(root);
+                return true;
+            }
+            if (!root.isDirectory()) {
+                try {
+                    return visitor.visitFile(url, root, 0) != DirectoryVisitor.TERMINATE;
+                } finally {
+                    IOUtils.safelyCloseStream(root);
+                }
+            }
+            if (!enterDirectory(stack, url, root, 0, visitor)) {
+                return false;
+            }
+            
+            while (!stack.isEmpty()) {
+                final Frame frame = (Frame) stack.lastElement();
+                
+                if (!frame.children.hasMoreElements()) {
+                    stack.removeElementAt(stack.size() - 1);
+                    try {
+                        if (visitor.postVisitDirectory(frame.url, frame.dir, frame.depth) 
+                                == DirectoryVisitor.TERMINATE) {
+                            return false;
+                        }
+                    } finally {
+                        IOUtils.safelyCloseStream(frame.dir);
+                    }
+                    continue;
+                }
+                
+                final String name = IOUtils.removeEncExtension((String) frame.children.nextElement());
+                final String childUrl = frame.url + name;
+                final int childDepth = frame.depth + 1;
+                final FileConnection child = IOUtils.open(childUrl, mode);
+                
+                if (name.charAt(name.length() - 1) == Characters.SOLIDUS) {
+                    if (!enterDirectory(stack, childUrl, child, childDepth, visitor)) {
+                        return false;
+                    }
+                } else {
+                    try {
+                        if (visitor.visitFile(childUrl, child, childDepth) == DirectoryVisitor.TERMINATE) {
+                            return false;
+                        }
+                    } finally {
+                        IOUtils.safelyCloseStream(child);
+                    }
+                }
+            }
+            return true;
+            
+        } finally {
+            for (int i = stack.size() - 1; i >= 0; i--) {
+                IOUtils.safelyCloseStream(((Frame) stack.elementAt(i)).dir);
+            }
+        }
+    }
+    
+    /**
+     * Pre-visits the directory and pushes it to the stack (or closes it if it is skipped).
+     * 
+     * @return false if the visitor has terminated the walk.
+     */
+    private boolean enterDirectory(Vector stack, String url, FileConnection dir, int depth, 
+            DirectoryVisitor visitor) throws IOException {
+        
+        final int result;
+        try {
+            result = visitor.preVisitDirectory(url, dir, depth);
+        } catch (IOException e) {
+            IOUtils.safelyCloseStream(dir);
+            throw e;
+        } catch (RuntimeException e) {
+            IOUtils.safelyCloseStream(dir);
+            throw e;
+        }
+        
+        if (result != DirectoryVisitor.CONTINUE) {
+            IOUtils.safelyCloseStream(dir);
+            return result != DirectoryVisitor.TERMINATE;
+        }
+        
+        final Frame frame = new Frame(url, dir, depth);
+        stack.addElement(frame);
+        if (depth < maxDepth) {
+            frame.children = dir.list();
+        }
+        return true;
+    }
+    
+    private static class Frame {
+        
+        private static final Enumeration NO_CHILDREN = new Vector().elements();
+        
+        final String url;
+        final FileConnection dir;
+        final int depth;
+        Enumeration children = NO_CHILDREN;
+        
+        Frame(String url, FileConnection dir, int depth) {
+            this.url   = url;
+            this.dir   = dir;
+            this.depth = depth;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.cleverua.bb.utils;
+
+/**
+ * Receives notifications about the files and directories changed by {@link IOUtils}
+ * (and the utils built on it), see {@link IOUtils#addFileChangeListener(FileChangeListener)}.
+ *
+ * <p>
+ * Directory urls end with "/".
+ * </p>
+ *
+ * <p>
+ * <b>IMPORTANT:</b> the method is called on the thread doing the change, right after it is done,
+ * so it must be quick and must not do any IO. UI must be updated via
+ * <code>UiApplication.invokeLater(Runnable)</code>.
+ * </p>
+ */
+public interface FileChangeListener {
+
+    /** A file or a directory has been created. */
+    int FILE_ADDED   = 1;
+
+    /** A file or a directory (with all its content) has been deleted. */
+    int FILE_DELETED = 2;
+
+    /** A file or a directory has been renamed, the old url is passed as well. */
+    int FILE_RENAMED = 3;
+
+    /**
+     * A file has been written (it may have been created as well). For a directory url the content
+     * of the directory has changed in an unspecified way (e.g. a delete of it has failed half way),
+     * it should be read again.
+     */
+    int FILE_CHANGED = 4;
+
+    /**
+     * @param event - what has happened, e.g. {@link #FILE_ADDED}.
+     * @param url - url of the changed file or directory (the new url for {@link #FILE_RENAMED}).
+     * @param oldUrl - the old url for {@link #FILE_RENAMED}, null for other events.
+     */
+    void fileChanged(int event, String url, String oldUrl);
+}
@@ -0,0 +1,144 @@
+package com.cleverua.bb.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.microedition.io.Connector;
+import javax.microedition.io.file.FileConnection;
+
+/**
+ * Reads a file sequentially in chunks into a caller-supplied buffer, 
+ * so a file of any size is processed in constant memory.
+ * 
+ * <pre>
+ * FileChunkReader reader = new FileChunkReader(url);
+ * try {
+ *     byte[] buf = new byte[8 * 1024];
+ *     int len;
+ *     while ((len = reader.read(buf)) != -1) {
+ *         parser.consume(buf, 0, len);
+ *     }
+ * } finally {
+ *     reader.close();
+ * }
+ * </pre>
+ * 
+ * <p>The class is not thread safe.</p>
+ */
+public class FileChunkReader {
+    
+    private final String url;
+    private final long fileSize;
+    
+    private FileConnection fc;
+    private InputStream in;
+    private long position;
+    
+    /**
+     * Opens the file for reading from the beginning.
+     * 
+     * @param url - url of the file.
+     * 
+     * @throws IllegalArgumentException if the <code>url</code> is invalid.
+     * @throws SecurityException if the security of the application does not have 
+     * read access for the file.
+     * @throws IOException if the file does not exist, is a directory or is not accessible.
+     */
+    public FileChunkReader(String url) throws IOException {
+        this(url, 0);
+    }
+    
+    /**
+     * Opens the file for reading from the offset.
+     * 
+     * @param url - url of the file.
+     * @param offset - position of the first byte to read.
+     * 
+     * @throws IllegalArgumentException if the <code>url</code> is invalid 
+     * or the <code>offset</code> is negative.
+     * @throws SecurityException if the security of the application does not have 
+     * read access for the file.
+     * @throws IOException if the file does not exist, is a directory or is not accessible.
+     */
+    public FileChunkReader(String url, long offset) throws IOException {
+        if (offset < 0) {
+            throw new IllegalArgumentException("invalid offset " + offset);
+        }
+        this.url = url;
+        try {
+            fc = IOUtils.open(url, Connector.READ);
+            fileSize = fc.fileSize();
+            in = fc.openInputStream();
+            position = Math.min(offset, fileSize);
+            IOUtils.seek(in, position);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Reads the next chunk. The buffer is filled completely unless the end of file is reached.
+     * 
+     * @param buf - buffer to read into.
+     * @return number of bytes read, or -1 if the end of file has been reached.
+     * 
+     * @throws IOException if an I/O error occurs or the reader is closed.
+     */
+    public int read(byte[] buf) throws IOException {
+        return read(buf, 0, buf.length);
+    }
+    
+    /**
+     * Reads the next chunk. <code>len</code> bytes are read unless the end of file is reached.
+     * 
+     * @param buf - buffer to read into.
+     * @param off - offset in the buffer.
+     * @param len - number of bytes to read.
+     * @return number of bytes read, or -1 if the end of file has been reached.
+     * 
+     * @throws IOException if an I/O error occurs or the reader is closed.
+     */
+    public int read(byte[] buf, int off, int len) throws IOException {
+        if (in == null) {
+            throw new IOException("reader is closed: " + url);
+        }
+        if (len == 0) {
+            return 0;
+        }
+        final int count = IOUtils.readFully(in, buf, off, len);
+        if (count == 0) {
+            return -1;
+        }
+        position += count;
+        return count;
+    }
+    
+    /**
+     * @return position of the next byte to read.
+     */
+    public long getPosition() {
+        return position;
+    }
+    
+    /**
+     * @return size of the file at the moment the reader was opened.
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
+    
+    public String getUrl() {
+        return url;
+    }
+    
+    /**
+     * Closes the reader. It is safe to call it several times.
+     */
+    public void close() {
+        IOUtils.safelyCloseStream(in);
+        IOUtils.safelyCloseStream(fc);
+        in = null;
+        fc = null;
+    }
+}
@@ -0,0 +1,67 @@
+package com.cleverua.bb.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.microedition.io.file.FileConnection;
+
+/**
+ * A file input stream that owns its connection: closing the stream closes the connection.
+ * 
+ * <p>
+ * The bytes already read from the stream to sniff the file format (e.g. the header of 
+ * a compressed file) are passed as a prefix and replayed first, so the stream yields 
+ * the whole file (or the rest of it after the skipped part of the prefix).
+ * </p>
+ */
+class FileConnectionInputStream extends InputStream {
+    
+    private final FileConnection fc;
+    private final InputStream in;
+    private final byte[] prefix;
+    private final int prefixLength;
+    private int prefixPosition;
+    
+    /**
+     * @param prefix - the bytes already read from the stream.
+     * @param prefixOffset - number of the prefix bytes to skip.
+     * @param prefixLength - number of the bytes in the prefix.
+     */
+    FileConnectionInputStream(FileConnection fc, InputStream in, byte[] prefix, int prefixOffset, 
+            int prefixLength) {
+        this.fc = fc;
+        this.in = in;
+        this.prefix = prefix;
+        this.prefixLength = prefixLength;
+        this.prefixPosition = prefixOffset;
+    }
+    
+    public int read() throws IOException {
+        if (prefixPosition < prefixLength) {
+            return prefix[prefixPosition++] & 0xFF;
+        }
+        return in.read();
+    }
+    
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (prefixPosition < prefixLength) {
+            final int count = Math.min(len, prefixLength - prefixPosition);
+            System.arraycopy(prefix, prefixPosition, b, off, count);
+            prefixPosition += count;
+            return count;
+        }
+        return in.read(b, off, len);
+    }
+    
+    public int available() throws IOException {
+        return (prefixLength - prefixPosition) + in.available();
+    }
+    
+    public void close() throws IOException {
+        IOUtils.safelyCloseStream(in);
+        IOUtils.safelyCloseStream(fc);
+    }
+}
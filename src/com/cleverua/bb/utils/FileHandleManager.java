@@ -0,0 +1,323 @@
+package com.cleverua.bb.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+import javax.microedition.io.Connector;
+import javax.microedition.io.file.FileConnection;
+
+import net.rim.device.api.io.file.FileIOException;
+
+/**
+ * Caps the number of file connections opened by the utils at the same time.
+ *
+ * <p>
+ * The device has a limited number of file handles, once they are exhausted opens fail with
+ * {@link FileIOException#NO_FREE_HANDLES} or {@link FileIOException#FILE_HANDLES_OPEN}.
+ * All the connections of {@link IOUtils} are opened via {@link IOUtils#HANDLE_MANAGER}:
+ * when the cap is reached, further opens wait in a FIFO queue (so no thread starves)
+ * until a connection is closed with {@link IOUtils#safelyCloseStream(FileConnection)}.
+ * A connection closed some other way is noticed (via <code>isOpen()</code>) once the cap is reached.
+ * An open that waits longer than the timeout fails with {@link FileIOException#NO_FREE_HANDLES}.
+ * </p>
+ *
+ * <p>
+ * Metadata queries (<code>isPresent</code>, <code>isDirectory</code>, <code>getFileSize</code>)
+ * running concurrently for the same url share a single read only connection, it is closed
+ * when the last of them is done, so no stale state is ever reused.
+ * </p>
+ *
+ * <p>
+ * The cap is unlimited by default, use {@link #setMaxHandles(int)} to set it. The wait
+ * statistics ({@link #getWaitsCount()}, {@link #getTotalWaitMillis()},
+ * {@link #getMaxWaitMillis()}, {@link #getTimeoutsCount()}, {@link #getPeakOpenCount()})
+ * help to tune it.
+ * </p>
+ *
+ * <p>The class is thread safe.</p>
+ */
+public class FileHandleManager {
+
+    public static final int UNLIMITED = Integer.MAX_VALUE;
+
+    private int maxHandles = UNLIMITED;
+    private long timeoutMillis;
+
+    private int openCount;
+
+    /** Tickets of the threads waiting for a handle, in the arrival order. */
+    private final Vector waitQueue = new Vector();
+
+    /** Connections holding a handle -> Boolean.TRUE */
+    private final Hashtable tracked = new Hashtable();
+
+    /** url -> SharedConnection */
+    private final Hashtable sharedByUrl = new Hashtable();
+
+    /** FileConnection -> SharedConnection */
+    private final Hashtable sharedByConnection = new Hashtable();
+
+    private long waitsCount;
+    private long totalWaitMillis;
+    private long maxWaitMillis;
+    private long timeoutsCount;
+    private long sharedHits;
+    private int peakOpenCount;
+
+    /**
+     * @param timeoutMillis - how long an open may wait for a free handle, in milliseconds.
+     */
+    public FileHandleManager(long timeoutMillis) {
+        setTimeoutMillis(timeoutMillis);
+    }
+
+    /**
+     * @param maxHandles - max number of connections open at the same time, {@link #UNLIMITED} to turn
+     * the cap off. Lowering the cap does not close connections, new opens just wait until enough
+     * of them are closed. An operation may hold several connections at once (e.g. 3 for a copy,
+     * one per tree level for a {@link DirectoryWalker}), so the cap should allow for that times
+     * the number of concurrent operations; otherwise they wait for each other until the timeout.
+     *
+     * @throws IllegalArgumentException if <code>maxHandles</code> is not positive.
+     */
+    public synchronized void setMaxHandles(int maxHandles) {
+        if (maxHandles <= 0) {
+            throw new IllegalArgumentException("invalid maxHandles " + maxHandles);
+        }
+        this.maxHandles = maxHandles;
+        notifyAll();
+    }
+
+    public synchronized int getMaxHandles() {
+        return maxHandles;
+    }
+
+    /**
+     * @throws IllegalArgumentException if <code>timeoutMillis</code> is not positive.
+     */
+    public synchronized void setTimeoutMillis(long timeoutMillis) {
+        if (timeoutMillis <= 0) {
+            throw new IllegalArgumentException("invalid timeoutMillis " + timeoutMillis);
+        }
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @return number of connections currently holding a handle.
+     */
+    public synchronized int getOpenCount() {
+        return openCount;
+    }
+
+    /**
+     * @return the highest number of connections that have been open at the same time.
+     */
+    public synchronized int getPeakOpenCount() {
+        return peakOpenCount;
+    }
+
+    /**
+     * @return number of opens that had to wait for a free handle.
+     */
+    public synchronized long getWaitsCount() {
+        return waitsCount;
+    }
+
+    /**
+     * @return total time in milliseconds the opens have waited for a free handle.
+     */
+    public synchronized long getTotalWaitMillis() {
+        return totalWaitMillis;
+    }
+
+    public synchronized long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    /**
+     * @return number of opens failed because they had waited longer than the timeout.
+     */
+    public synchronized long getTimeoutsCount() {
+        return timeoutsCount;
+    }
+
+    /**
+     * @return number of metadata queries served with an already open shared connection.
+     */
+    public synchronized long getSharedHits() {
+        return sharedHits;
+    }
+
+    public synchronized String toString() {
+        return "FileHandleManager [open=" + openCount + ", peak=" + peakOpenCount
+            + ", max=" + (maxHandles == UNLIMITED ? "unlimited" : String.valueOf(maxHandles))
+            + ", waits=" + waitsCount + ", waitMs=" + totalWaitMillis + ", maxWaitMs=" + maxWaitMillis
+            + ", timeouts=" + timeoutsCount + ", sharedHits=" + sharedHits + ']';
+    }
+
+    /**
+     * Takes a handle, waiting for it in the FIFO order if the cap is reached.
+     *
+     * @throws FileIOException with {@link FileIOException#NO_FREE_HANDLES} code
+     * if no handle gets free within the timeout.
+     * @throws InterruptedIOException if the waiting thread is interrupted.
+     */
+    synchronized void acquire() throws IOException {
+        if (waitQueue.isEmpty() && openCount < maxHandles) {
+            take();
+            return;
+        }
+
+        final Object ticket = new Object();
+        waitQueue.addElement(ticket);
+        final long start = System.currentTimeMillis();
+        try {
+            while (waitQueue.firstElement() != ticket || openCount >= maxHandles) {
+                if (openCount >= maxHandles) {
+                    purgeClosedConnections();
+                    if (waitQueue.firstElement() == ticket && openCount < maxHandles) {
+                        break;
+                    }
+                }
+                final long remaining = timeoutMillis - (System.currentTimeMillis() - start);
+                if (remaining <= 0) {
+                    timeoutsCount++;
+                    throw new FileIOException(FileIOException.NO_FREE_HANDLES);
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("interrupted while waiting for a file handle");
+                }
+            }
+        } finally {
+            waitQueue.removeElement(ticket);
+            notifyAll(); /* the next in the queue may go now */
+
+            final long waited = System.currentTimeMillis() - start;
+            waitsCount++;
+            totalWaitMillis += waited;
+            maxWaitMillis = Math.max(maxWaitMillis, waited);
+        }
+        take();
+    }
+
+    /**
+     * Gives back a handle taken by {@link #acquire()} that is not held by a connection
+     * (the open has failed).
+     */
+    synchronized void release() {
+        openCount--;
+        notifyAll();
+    }
+
+    /**
+     * Remembers that the connection holds a handle, it is given back by {@link #closed(FileConnection)}.
+     */
+    synchronized void track(FileConnection fc) {
+        tracked.put(fc, Boolean.TRUE);
+    }
+
+    /**
+     * Gives back the handle of the connection if it holds one.
+     */
+    synchronized void closed(FileConnection fc) {
+        if (tracked.remove(fc) != null) {
+            release();
+        }
+    }
+
+    /**
+     * Opens a read only connection for metadata queries or joins the one already open
+     * for the url. The connection must be given back via {@link #closeShared(FileConnection)}
+     * and must not be used to open streams.
+     */
+    FileConnection openShared(String url) throws IOException {
+        synchronized (this) {
+            final SharedConnection shared = (SharedConnection) sharedByUrl.get(url);
+            if (shared != null) {
+                shared.refs++;
+                sharedHits++;
+                return shared.fc;
+            }
+        }
+
+        final FileConnection fc = IOUtils.open(url, Connector.READ);
+
+        synchronized (this) {
+            final SharedConnection shared = (SharedConnection) sharedByUrl.get(url);
+            if (shared != null) {
+                // another thread has opened it meanwhile
+                shared.refs++;
+                sharedHits++;
+                IOUtils.safelyCloseStream(fc);
+                return shared.fc;
+            }
+            final SharedConnection newShared = new SharedConnection(url, fc);
+            sharedByUrl.put(url, newShared);
+            sharedByConnection.put(fc, newShared);
+            return fc;
+        }
+    }
+
+    /**
+     * Gives back a connection got by {@link #openShared(String)},
+     * the last user closes it. Null is ignored.
+     */
+    void closeShared(FileConnection fc) {
+        if (fc == null) {
+            return;
+        }
+        synchronized (this) {
+            final SharedConnection shared = (SharedConnection) sharedByConnection.get(fc);
+            if (shared == null) {
+                return;
+            }
+            if (--shared.refs > 0) {
+                return;
+            }
+            sharedByConnection.remove(fc);
+            sharedByUrl.remove(shared.url);
+        }
+        IOUtils.safelyCloseStream(fc);
+    }
+
+    private void take() {
+        openCount++;
+        peakOpenCount = Math.max(peakOpenCount, openCount);
+    }
+
+    /**
+     * Gives back the handles of the tracked connections closed without
+     * {@link IOUtils#safelyCloseStream(FileConnection)}.
+     */
+    private void purgeClosedConnections() {
+        final Vector closed = new Vector();
+        for (Enumeration e = tracked.keys(); e.hasMoreElements();) {
+            final FileConnection fc = (FileConnection) e.nextElement();
+            if (!fc.isOpen()) {
+                closed.addElement(fc);
+            }
+        }
+        final int size = closed.size();
+        for (int i = 0; i < size; i++) {
+            tracked.remove(closed.elementAt(i));
+            openCount--;
+        }
+    }
+
+    private static class SharedConnection {
+
+        final String url;
+        final FileConnection fc;
+        int refs = 1;
+
+        SharedConnection(String url, FileConnection fc) {
+            this.url = url;
+            this.fc = fc;
+        }
+    }
+}
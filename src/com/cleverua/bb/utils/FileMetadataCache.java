@@ -0,0 +1,264 @@
+package com.cleverua.bb.utils;
+
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * A cache of file metadata (exists/is directory/file size) keyed by url. 
+ * It is used by {@link IOUtils#isPresent(String)}, {@link IOUtils#isDirectory(String)} 
+ * and {@link IOUtils#getFileSize(String)} to avoid opening a connection per call, 
+ * see {@link IOUtils#METADATA_CACHE}.
+ * 
+ * <p>
+ * Entries expire after the configured TTL, and the least recently used entries are 
+ * evicted once the cache holds the max number of entries. The mutating {@link IOUtils} 
+ * methods invalidate the affected entries automatically. Changes made bypassing 
+ * {@link IOUtils} are noticed only after the TTL expires.
+ * </p>
+ * 
+ * <p>The cache is disabled by default. The class is thread safe.</p>
+ */
+public class FileMetadataCache {
+    
+    private final Hashtable entries = new Hashtable();
+    
+    /** The most recently used entry. */
+    private Entry head;
+    
+    /** The least recently used entry. */
+    private Entry tail;
+    
+    private boolean enabled;
+    private long ttlMillis;
+    private int maxEntries;
+    
+    private long hits;
+    private long misses;
+    
+    /** 
+     * Bumped by every invalidation, so metadata read before an invalidation 
+     * is not put to the cache after it. 
+     */
+    private long generation;
+    
+    /**
+     * Creates a disabled cache.
+     * 
+     * @param ttlMillis - how long an entry is valid, in milliseconds.
+     * @param maxEntries - max number of entries.
+     * 
+     * @throws IllegalArgumentException if <code>ttlMillis</code> or <code>maxEntries</code> 
+     * is not positive.
+     */
+    public FileMetadataCache(long ttlMillis, int maxEntries) {
+        configure(ttlMillis, maxEntries);
+    }
+    
+    /**
+     * Changes the cache parameters. Entries over the new size limit are evicted.
+     * 
+     * @param ttlMillis - how long an entry is valid, in milliseconds.
+     * @param maxEntries - max number of entries.
+     * 
+     * @throws IllegalArgumentException if <code>ttlMillis</code> or <code>maxEntries</code> 
+     * is not positive.
+     */
+    public synchronized void configure(long ttlMillis, int maxEntries) {
+        if (ttlMillis <= 0) {
+            throw new IllegalArgumentException("invalid ttlMillis " + ttlMillis);
+        }
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("invalid maxEntries " + maxEntries);
+        }
+        this.ttlMillis  = ttlMillis;
+        this.maxEntries = maxEntries;
+        evictOverflow();
+    }
+    
+    /**
+     * Enables or disables the cache. Disabling clears it.
+     */
+    public synchronized void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) {
+            clear();
+        }
+    }
+    
+    public synchronized boolean isEnabled() {
+        return enabled;
+    }
+    
+    /**
+     * Removes the entry for the url (both with and without the ".rem" extension).
+     */
+    public synchronized void invalidate(String url) {
+        generation++;
+        removeEntry(url);
+        removeEntry(IOUtils.removeEncExtension(url));
+    }
+    
+    /**
+     * Removes the entries for the url and all the urls starting with it, 
+     * i.e. for a directory and its whole content.
+     */
+    public synchronized void invalidateTree(String url) {
+        final Vector urls = new Vector();
+        for (Enumeration e = entries.keys(); e.hasMoreElements();) {
+            final String key = (String) e.nextElement();
+            if (key.startsWith(url)) {
+                urls.addElement(key);
+            }
+        }
+        final int size = urls.size();
+        for (int i = 0; i < size; i++) {
+            removeEntry((String) urls.elementAt(i));
+        }
+        invalidate(url);
+    }
+    
+    /**
+     * Removes all the entries. Statistics are kept.
+     */
+    public synchronized void clear() {
+        generation++;
+        entries.clear();
+        head = null;
+        tail = null;
+    }
+    
+    public synchronized int size() {
+        return entries.size();
+    }
+    
+    public synchronized long getHits() {
+        return hits;
+    }
+    
+    public synchronized long getMisses() {
+        return misses;
+    }
+    
+    /**
+     * @return percentage of lookups served from the cache (0..100).
+     */
+    public synchronized int getHitRate() {
+        final long lookups = hits + misses;
+        return lookups == 0 ? 0 : (int) (hits * 100 / lookups);
+    }
+    
+    public synchronized String toString() {
+        return "FileMetadataCache [enabled=" + enabled + ", size=" + entries.size() 
+            + ", hits=" + hits + ", misses=" + misses + ", hitRate=" + getHitRate() + "%]";
+    }
+    
+    /**
+     * @return the valid entry for the url, or null if the cache is disabled 
+     * or has no valid entry.
+     */
+    synchronized Entry get(String url) {
+        if (!enabled) {
+            return null;
+        }
+        final Entry entry = (Entry) entries.get(url);
+        if (entry == null || System.currentTimeMillis() - entry.timestamp > ttlMillis) {
+            if (entry != null) {
+                removeEntry(url);
+            }
+            misses++;
+            return null;
+        }
+        hits++;
+        unlink(entry);
+        linkFirst(entry);
+        return entry;
+    }
+    
+    /**
+     * @return the invalidation generation, to be taken before reading the metadata 
+     * passed to {@link #put(String, long, boolean, boolean, long)}.
+     */
+    synchronized long getGeneration() {
+        return generation;
+    }
+    
+    /**
+     * Puts the metadata unless the cache has been invalidated since it was read 
+     * (it may be stale then).
+     * 
+     * @param generation - {@link #getGeneration()} taken before reading the metadata.
+     */
+    synchronized void put(String url, long generation, boolean exists, boolean isDirectory, long fileSize) {
+        if (!enabled || generation != this.generation) {
+            return;
+        }
+        removeEntry(url);
+        final Entry entry = new Entry(url, exists, isDirectory, fileSize);
+        entries.put(url, entry);
+        linkFirst(entry);
+        evictOverflow();
+    }
+    
+    private void evictOverflow() {
+        while (entries.size() > maxEntries && tail != null) {
+            removeEntry(tail.url);
+        }
+    }
+    
+    private void removeEntry(String url) {
+        final Entry entry = (Entry) entries.remove(url);
+        if (entry != null) {
+            unlink(entry);
+        }
+    }
+    
+    private void linkFirst(Entry entry) {
+        entry.prev = null;
+        entry.next = head;
+        if (head != null) {
+            head.prev = entry;
+        }
+        head = entry;
+        if (tail == null) {
+            tail = entry;
+        }
+    }
+    
+    private void unlink(Entry entry) {
+        if (entry.prev == null) {
+            head = entry.next;
+        } else {
+            entry.prev.next = entry.next;
+        }
+        if (entry.next == null) {
+            tail = entry.prev;
+        } else {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+    }
+    
+    static class Entry {
+        
+        final String url;
+        final boolean exists;
+        final boolean isDirectory;
+        
+        /** -1 for a directory or a missing file. */
+        final long fileSize;
+        
+        final long timestamp = System.currentTimeMillis();
+        
+        Entry prev;
+        Entry next;
+        
+        Entry(String url, boolean exists, boolean isDirectory, long fileSize) {
+            this.url         = url;
+            this.exists      = exists;
+            this.isDirectory = isDirectory;
+            this.fileSize    = fileSize;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.cleverua.bb.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A file operation to be run asynchronously by a {@link FileOperationExecutor}.
+ * 
+ * <p>
+ * The static factory methods wrap the blocking {@link IOUtils} methods. 
+ * Custom operations can be created by subclassing.
+ * </p>
+ */
+public abstract class FileOperation {
+    
+    /** Priority for background work, e.g. sync writes. */
+    public static final int PRIORITY_LOW    = 0;
+    
+    public static final int PRIORITY_NORMAL = 5;
+    
+    /** Priority for the operations the user is waiting for, e.g. reads needed to show a screen. */
+    public static final int PRIORITY_HIGH   = 10;
+    
+    private final String name;
+    
+    /**
+     * @param name - operation name, used for logging/debugging only.
+     */
+    protected FileOperation(String name) {
+        this.name = name;
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    public String toString() {
+        return "FileOperation " + name;
+    }
+    
+    /**
+     * Does the actual work. Called on a worker thread of the executor.
+     * 
+     * @param handle - handle of the operation. It is an {@link IOProgressListener}, 
+     * so it can be passed to the IO methods accepting one. Its 
+     * {@link FileOperationHandle#progressChanged(long, long) progressChanged} throws 
+     * {@link java.io.InterruptedIOException} once the operation is cancelled, 
+     * long running operations should call it regularly.
+     * 
+     * @return operation result (available via {@link FileOperationHandle#getResult()}), can be null.
+     * 
+     * @throws IOException if the operation failed.
+     */
+    protected abstract Object execute(FileOperationHandle handle) throws IOException;
+    
+    /**
+     * @return operation wrapping {@link IOUtils#copyFile(String, String, IOProgressListener)}. 
+     * Reports the progress and can be cancelled while running.
+     */
+    public static FileOperation copyFile(final String sourceFileUrl, final String destinationFileUrl) {
+        return new FileOperation("copyFile " + sourceFileUrl + " -> " + destinationFileUrl) {
+            protected Object execute(FileOperationHandle handle) throws IOException {
+                IOUtils.copyFile(sourceFileUrl, destinationFileUrl, handle);
+                return null;
+            }
+        };
+    }
+    
+    /**
+     * @return operation wrapping {@link IOUtils#saveDataToFile(String, byte[])}.
+     */
+    public static FileOperation saveDataToFile(final String url, final byte[] data) {
+        return new FileOperation("saveDataToFile " + url) {
+            protected Object execute(FileOperationHandle handle) throws IOException {
+                handle.progressChanged(0, data.length);
+                IOUtils.saveDataToFile(url, data);
+                handle.progressChanged(data.length, data.length);
+                return null;
+            }
+        };
+    }
+    
+    /**
+     * @return operation wrapping {@link IOUtils#saveDataToFile(String, InputStream)}. 
+     * The stream is closed even if the operation is cancelled before it starts.
+     */
+    public static FileOperation saveDataToFile(final String url, final InputStream is) {
+        return new FileOperation("saveDataToFile " + url) {
+            protected Object execute(FileOperationHandle handle) throws IOException {
+                try {
+                    handle.progressChanged(0, -1);
+                } catch (IOException e) {
+                    IOUtils.safelyCloseStream(is);
+                    throw e;
+                }
+                IOUtils.saveDataToFile(url, is);
+                return null;
+            }
+        };
+    }
+    
+    /**
+     * @return operation wrapping {@link IOUtils#getFileData(String)}, 
+     * the result is the <code>byte[]</code> file data.
+     */
+    public static FileOperation getFileData(final String url) {
+        return new FileOperation("getFileData " + url) {
+            protected Object execute(FileOperationHandle handle) throws IOException {
+                handle.progressChanged(0, -1);
+                return IOUtils.getFileData(url);
+            }
+        };
+    }
+    
+    /**
+     * @return operation wrapping {@link IOUtils#deleteDir(String)}.
+     */
+    public static FileOperation deleteDir(final String url) {
+        return new FileOperation("deleteDir " + url) {
+            protected Object execute(FileOperationHandle handle) throws IOException {
+                handle.progressChanged(0, -1);
+                IOUtils.deleteDir(url);
+                return null;
+            }
+        };
+    }
+    
+    /**
+     * @return operation wrapping {@link IOUtils#getDirectorySize(String, boolean)}, 
+     * the result is a {@link Long}.
+     */
+    public static FileOperation getDirectorySize(final String url, final boolean includeSubDirs) {
+        return new FileOperation("getDirectorySize " + url) {
+            protected Object execute(FileOperationHandle handle) throws IOException {
+                handle.progressChanged(0, -1);
+                return new Long(IOUtils.getDirectorySize(url, includeSubDirs));
+            }
+        };
+    }
+}
@@ -0,0 +1,160 @@
+package com.cleverua.bb.utils;
+
+import java.util.Vector;
+
+/**
+ * Runs {@link FileOperation}s on a fixed number of worker threads.
+ * 
+ * <p>
+ * Pending operations are ordered by priority (higher first), operations of the same 
+ * priority are run in the submission order. So user-visible reads submitted with 
+ * {@link FileOperation#PRIORITY_HIGH} jump ahead of background sync writes submitted 
+ * with {@link FileOperation#PRIORITY_LOW}. A running operation is never preempted.
+ * </p>
+ * 
+ * <pre>
+ * FileOperationExecutor executor = new FileOperationExecutor(2);
+ * FileOperationHandle handle = executor.submit(
+ *     FileOperation.copyFile(src, dst), FileOperation.PRIORITY_LOW, listener
+ * );
+ * ...
+ * handle.cancel();
+ * </pre>
+ * 
+ * <p>The class is thread safe.</p>
+ */
+public class FileOperationExecutor {
+    
+    private final Vector queue = new Vector();
+    private final Thread[] workers;
+    
+    private boolean shutdown;
+    
+    /**
+     * Creates the executor and starts its worker threads.
+     * 
+     * @param workersCount - number of worker threads, i.e. max number of operations run at once.
+     * 
+     * @throws IllegalArgumentException if <code>workersCount</code> is less than 1.
+     */
+    public FileOperationExecutor(int workersCount) {
+        this(workersCount, Thread.NORM_PRIORITY);
+    }
+    
+    /**
+     * Creates the executor and starts its worker threads.
+     * 
+     * @param workersCount - number of worker threads, i.e. max number of operations run at once.
+     * @param threadPriority - priority of the worker threads, e.g. <code>Thread.MIN_PRIORITY</code> 
+     * for an executor doing background work only.
+     * 
+     * @throws IllegalArgumentException if <code>workersCount</code> is less than 1.
+     */
+    public FileOperationExecutor(int workersCount, int threadPriority) {
+        if (workersCount < 1) {
+            throw new IllegalArgumentException("invalid workersCount " + workersCount);
+        }
+        workers = new Thread[workersCount];
+        for (int i = 0; i < workersCount; i++) {
+            workers[i] = new Thread() {
+                public void run() {
+                    runWorker();
+                }
+            };
+            workers[i].setPriority(threadPriority);
+            workers[i].start();
+        }
+    }
+    
+    /**
+     * Puts the operation into the queue.
+     * 
+     * @param operation - operation to run.
+     * @param priority - operation priority, e.g. {@link FileOperation#PRIORITY_NORMAL}.
+     * @param listener - gets notified about the operation progress and completion, can be null.
+     * @return handle of the submitted operation.
+     * 
+     * @throws IllegalStateException if the executor has been shut down.
+     */
+    public synchronized FileOperationHandle submit(FileOperation operation, int priority, 
+            FileOperationListener listener) {
+        
+        if (shutdown) {
+            throw new IllegalStateException("executor is shut down");
+        }
+        
+        final FileOperationHandle handle = new FileOperationHandle(operation, priority, listener, this);
+        
+        // the queue is sorted by priority, so find the first element with a lower priority,
+        // inserting after the elements of the same priority keeps the submission order
+        int index = queue.size();
+        while (index > 0 && ((FileOperationHandle) queue.elementAt(index - 1)).getPriority() < priority) {
+            index--;
+        }
+        queue.insertElementAt(handle, index);
+        
+        notify();
+        return handle;
+    }
+    
+    /**
+     * @return number of operations waiting to be run.
+     */
+    public synchronized int getPendingCount() {
+        return queue.size();
+    }
+    
+    /**
+     * Stops accepting new operations. The worker threads exit once the pending operations are run.
+     * 
+     * @param cancelPending - if true, the pending operations are cancelled instead of being run.
+     */
+    public void shutdown(boolean cancelPending) {
+        final Vector cancelled;
+        synchronized (this) {
+            shutdown = true;
+            notifyAll();
+            if (!cancelPending) {
+                return;
+            }
+            cancelled = new Vector();
+            final int size = queue.size();
+            for (int i = 0; i < size; i++) {
+                cancelled.addElement(queue.elementAt(i));
+            }
+        }
+        final int size = cancelled.size();
+        for (int i = 0; i < size; i++) {
+            ((FileOperationHandle) cancelled.elementAt(i)).cancel();
+        }
+    }
+    
+    public synchronized boolean isShutdown() {
+        return shutdown;
+    }
+    
+    synchronized boolean removePending(FileOperationHandle handle) {
+        return queue.removeElement(handle);
+    }
+    
+    private void runWorker() {
+        while (true) {
+            final FileOperationHandle handle;
+            synchronized (this) {
+                while (queue.isEmpty() && !shutdown) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) { 
+                        /* keep waiting */ 
+                    }
+                }
+                if (queue.isEmpty()) {
+                    return; // shut down and nothing left to run
+                }
+                handle = (FileOperationHandle) queue.elementAt(0);
+                queue.removeElementAt(0);
+            }
+            handle.run();
+        }
+    }
+}
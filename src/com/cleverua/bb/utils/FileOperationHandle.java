@@ -0,0 +1,222 @@
+package com.cleverua.bb.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * A handle of a {@link FileOperation} submitted to a {@link FileOperationExecutor}. 
+ * Allows to track the operation state and progress, to get the result, to wait 
+ * for the completion and to cancel the operation.
+ * 
+ * <p>The class is thread safe.</p>
+ */
+public class FileOperationHandle implements IOProgressListener {
+    
+    /** The operation is waiting in the executor queue. */
+    public static final int STATE_PENDING   = 0;
+    
+    /** The operation is being run by a worker thread. */
+    public static final int STATE_RUNNING   = 1;
+    
+    /** The operation has finished successfully. */
+    public static final int STATE_COMPLETED = 2;
+    
+    /** The operation has thrown an exception. */
+    public static final int STATE_FAILED    = 3;
+    
+    /** The operation has been cancelled. */
+    public static final int STATE_CANCELLED = 4;
+    
+    private final FileOperation operation;
+    private final int priority;
+    private final FileOperationListener listener;
+    private final FileOperationExecutor executor;
+    
+    private int state = STATE_PENDING;
+    private boolean cancelRequested;
+    private Object result;
+    private Throwable error;
+    private long bytesDone;
+    private long bytesTotal = -1;
+    
+    FileOperationHandle(FileOperation operation, int priority, 
+            FileOperationListener listener, FileOperationExecutor executor) {
+        this.operation = operation;
+        this.priority  = priority;
+        this.listener  = listener;
+        this.executor  = executor;
+    }
+    
+    public FileOperation getOperation() {
+        return operation;
+    }
+    
+    public int getPriority() {
+        return priority;
+    }
+    
+    /**
+     * @return one of the <code>STATE_*</code> constants.
+     */
+    public synchronized int getState() {
+        return state;
+    }
+    
+    /**
+     * @return true if the operation is completed, failed or cancelled.
+     */
+    public synchronized boolean isDone() {
+        return state >= STATE_COMPLETED;
+    }
+    
+    /**
+     * @return the value returned by the operation, or null if it has not completed (yet).
+     */
+    public synchronized Object getResult() {
+        return result;
+    }
+    
+    /**
+     * @return the exception thrown by the operation, or null if it has not failed.
+     */
+    public synchronized Throwable getError() {
+        return error;
+    }
+    
+    public synchronized long getBytesDone() {
+        return bytesDone;
+    }
+    
+    /**
+     * @return total amount of bytes to process, or -1 if unknown.
+     */
+    public synchronized long getBytesTotal() {
+        return bytesTotal;
+    }
+    
+    /**
+     * Cancels the operation. 
+     * 
+     * <p>
+     * A pending operation is removed from the executor queue and will not be run. 
+     * A running operation gets cancelled as soon as it reports its progress next time
+     * (operations not reporting the progress run to the end, but their result is dropped).
+     * Does nothing if the operation is already done.
+     * </p>
+     */
+    public void cancel() {
+        synchronized (this) {
+            if (state >= STATE_COMPLETED) {
+                return;
+            }
+            cancelRequested = true;
+            if (state == STATE_RUNNING) {
+                return;
+            }
+        }
+        if (executor.removePending(this)) {
+            finish(null, null);
+        }
+    }
+    
+    public synchronized boolean isCancelRequested() {
+        return cancelRequested;
+    }
+    
+    /**
+     * Waits until the operation is done.
+     * 
+     * @param timeout - max time to wait in milliseconds, 0 means wait forever.
+     * @return true if the operation is done, false if the timeout has elapsed.
+     * 
+     * @throws InterruptedException if the waiting thread is interrupted.
+     */
+    public synchronized boolean waitForCompletion(long timeout) throws InterruptedException {
+        if (timeout == 0) {
+            while (state < STATE_COMPLETED) {
+                wait();
+            }
+            return true;
+        }
+        final long deadline = System.currentTimeMillis() + timeout;
+        while (state < STATE_COMPLETED) {
+            final long timeLeft = deadline - System.currentTimeMillis();
+            if (timeLeft <= 0) {
+                return false;
+            }
+            wait(timeLeft);
+        }
+        return true;
+    }
+    
+    /**
+     * Stores the progress and notifies the listener.
+     * 
+     * @throws InterruptedIOException if the operation has been cancelled.
+     */
+    public void progressChanged(long bytesDone, long bytesTotal) throws IOException {
+        synchronized (this) {
+            if (cancelRequested) {
+                throw new InterruptedIOException("cancelled: " + operation.getName());
+            }
+            this.bytesDone  = bytesDone;
+            this.bytesTotal = bytesTotal;
+        }
+        if (listener != null) {
+            listener.operationProgressChanged(this, bytesDone, bytesTotal);
+        }
+    }
+    
+    public String toString() {
+        return "FileOperationHandle [" + operation.getName() + ", state=" + getState() + ']';
+    }
+    
+    /**
+     * Called by a worker thread once the handle is taken from the queue.
+     */
+    void run() {
+        if (!markRunning()) {
+            // cancelled after the worker has taken it from the queue
+            finish(null, null);
+            return;
+        }
+        Object operationResult = null;
+        Throwable operationError = null;
+        try {
+            operationResult = operation.execute(this);
+        } catch (Throwable e) {
+            operationError = e;
+        }
+        finish(operationResult, operationError);
+    }
+    
+    private synchronized boolean markRunning() {
+        if (cancelRequested) {
+            return false;
+        }
+        state = STATE_RUNNING;
+        return true;
+    }
+    
+    private void finish(Object operationResult, Throwable operationError) {
+        synchronized (this) {
+            if (cancelRequested) {
+                state = STATE_CANCELLED;
+            } else if (operationError != null) {
+                state = STATE_FAILED;
+                error = operationError;
+            } else {
+                state = STATE_COMPLETED;
+                result = operationResult;
+            }
+            notifyAll();
+        }
+        if (listener != null) {
+            try {
+                listener.operationFinished(this);
+            } catch (Throwable e) {
+                Logger.debug(this, "got error in operationFinished listener: " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.cleverua.bb.utils;
+
+/**
+ * Receives notifications about a {@link FileOperation} submitted to a {@link FileOperationExecutor}.
+ * 
+ * <p>
+ * <b>IMPORTANT:</b> the methods are called on a worker thread of the executor 
+ * (or on the thread calling {@link FileOperationHandle#cancel()} for an operation 
+ * that has not started yet). UI must be updated via <code>UiApplication.invokeLater(Runnable)</code>.
+ * </p>
+ */
+public interface FileOperationListener {
+    
+    /**
+     * Called each time the operation reports its progress. 
+     * Not all operations report the progress.
+     * 
+     * @param handle - handle of the operation.
+     * @param bytesDone - amount of bytes processed so far.
+     * @param bytesTotal - total amount of bytes to process, or -1 if unknown.
+     */
+    void operationProgressChanged(FileOperationHandle handle, long bytesDone, long bytesTotal);
+    
+    /**
+     * Called once when the operation is completed, failed or cancelled.
+     * Use {@link FileOperationHandle#getState()} to find out which of these happened.
+     * 
+     * @param handle - handle of the operation.
+     */
+    void operationFinished(FileOperationHandle handle);
+}
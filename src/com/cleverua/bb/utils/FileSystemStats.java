@@ -0,0 +1,160 @@
+package com.cleverua.bb.utils;
+
+import java.io.IOException;
+import java.util.Hashtable;
+
+import javax.microedition.io.Connector;
+import javax.microedition.io.file.FileConnection;
+
+/**
+ * An immutable snapshot of a file system root usage (total/used/available sizes),
+ * read with a single connection.
+ *
+ * <p>
+ * Use it instead of calling {@link IOUtils#getTotalFileSystemSize(String)},
+ * {@link IOUtils#getUsedFileSystemSize(String)} and {@link IOUtils#getAvailableFileSystemSize(String)}
+ * one by one, each of them opens a connection. Callers polling the stats (e.g. a storage screen)
+ * should use {@link #getCached(String, long)}, it re-reads a root not more often than requested.
+ * </p>
+ */
+public class FileSystemStats {
+
+    /** Root url -> the last FileSystemStats read for it. */
+    private static final Hashtable CACHE = new Hashtable();
+
+    private final String rootUrl;
+    private final long totalSize;
+    private final long usedSize;
+    private final long availableSize;
+    private final long timestamp;
+
+    private FileSystemStats(String rootUrl, long totalSize, long usedSize, long availableSize) {
+        this.rootUrl       = rootUrl;
+        this.totalSize     = totalSize;
+        this.usedSize      = usedSize;
+        this.availableSize = availableSize;
+        this.timestamp     = System.currentTimeMillis();
+    }
+
+    /**
+     * Reads the stats of a file system root.
+     *
+     * @param rootUrl - url of a root, e.g. {@link IOUtils#CARD_ROOT}.
+     * @return the stats, the sizes are -1 if the file system is not accessible.
+     *
+     * @throws IllegalArgumentException if the <code>rootUrl</code> is invalid.
+     * @throws IOException if the firewall disallows a connection that is not btspp or comm.
+     * @throws SecurityException if the security of the application does
+     * not have read access to the root volume.
+     */
+    public static FileSystemStats read(String rootUrl) throws IOException {
+        FileConnection fc = null;
+        try {
+            fc = IOUtils.open(rootUrl, Connector.READ);
+            final FileSystemStats stats =
+                new FileSystemStats(rootUrl, fc.totalSize(), fc.usedSize(), fc.availableSize());
+            CACHE.put(rootUrl, stats);
+            return stats;
+        } finally {
+            IOUtils.safelyCloseStream(fc);
+        }
+    }
+
+    /**
+     * Reads the stats of both Device Memory and SDCard.
+     *
+     * @return an array of 2 elements: the stats of {@link IOUtils#DEVICE_MEMORY_ROOT} and
+     * the stats of {@link IOUtils#CARD_ROOT}. An element is null if the root can not be opened
+     * (e.g. there is no SDCard).
+     */
+    public static FileSystemStats[] readAll() {
+        return new FileSystemStats[] {
+            readSafely(IOUtils.DEVICE_MEMORY_ROOT), readSafely(IOUtils.CARD_ROOT)
+        };
+    }
+
+    /**
+     * Returns the last stats read for the root if they are not older than <code>maxAgeMillis</code>,
+     * otherwise reads them again.
+     *
+     * @param rootUrl - url of a root, e.g. {@link IOUtils#CARD_ROOT}.
+     * @param maxAgeMillis - how old the stats may be, in milliseconds.
+     * @return the stats, the sizes are -1 if the file system is not accessible.
+     *
+     * @throws IllegalArgumentException if the <code>rootUrl</code> is invalid.
+     * @throws IOException if the firewall disallows a connection that is not btspp or comm.
+     * @throws SecurityException if the security of the application does
+     * not have read access to the root volume.
+     */
+    public static FileSystemStats getCached(String rootUrl, long maxAgeMillis) throws IOException {
+        final FileSystemStats stats = (FileSystemStats) CACHE.get(rootUrl);
+        if (stats != null && stats.getAgeMillis() <= maxAgeMillis) {
+            return stats;
+        }
+        return read(rootUrl);
+    }
+
+    /**
+     * Forgets the cached stats of all the roots.
+     */
+    public static void clearCache() {
+        CACHE.clear();
+    }
+
+    public String getRootUrl() {
+        return rootUrl;
+    }
+
+    /**
+     * @return total size of the file system in bytes, or -1 if the file system is not accessible.
+     */
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    /**
+     * @return used size of the file system in bytes, or -1 if the file system is not accessible.
+     */
+    public long getUsedSize() {
+        return usedSize;
+    }
+
+    /**
+     * @return available size of the file system in bytes, or -1 if the file system is not accessible.
+     */
+    public long getAvailableSize() {
+        return availableSize;
+    }
+
+    /**
+     * @return true if the file system has been accessible at the moment the stats were read.
+     */
+    public boolean isAccessible() {
+        return totalSize >= 0;
+    }
+
+    /**
+     * @return the time (as <code>System.currentTimeMillis()</code>) the stats were read at.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getAgeMillis() {
+        return System.currentTimeMillis() - timestamp;
+    }
+
+    public String toString() {
+        return "FileSystemStats [" + rootUrl + ", total=" + totalSize + ", used=" + usedSize
+            + ", available=" + availableSize + ']';
+    }
+
+    private static FileSystemStats readSafely(String rootUrl) {
+        try {
+            return read(rootUrl);
+        } catch (Exception e) {
+            Logger.debug(FileSystemStats.class, "failed to read stats of " + rootUrl + ": " + e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package com.cleverua.bb.utils;
+
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+import net.rim.device.api.io.file.FileIOException;
+
+/**
+ * Built-in instrumentation of {@link IOUtils}: call counts, bytes moved, latency histograms
+ * and error counts per operation and per file system root.
+ *
+ * <p>
+ * Disabled by default. While disabled an instrumented call costs one static field read,
+ * nothing is allocated or timed. Enable it with {@link #setEnabled(boolean)} and dump the
+ * collected numbers with {@link #getSnapshot()} (or {@link #logSnapshot()}).
+ * </p>
+ *
+ * <p>
+ * Latencies are collected in {@link #HISTOGRAM_SIZE} buckets with power of two bounds:
+ * the bucket 0 counts calls that took less than 1 ms, the bucket <code>i</code> counts calls
+ * that took [2<sup>i-1</sup>..2<sup>i</sup>) ms, the last bucket counts all the longer calls.
+ * Errors are counted by {@link FileIOException#getErrorCode()}, other {@link IOException}s
+ * are counted under {@link #ERROR_OTHER}.
+ * </p>
+ *
+ * <p>The class is thread safe.</p>
+ */
+public class IOMetrics {
+
+    /** <code>Connector.open</code> of a file or a directory. */
+    public static final int OP_OPEN        = 0;
+    public static final int OP_COPY_FILE   = 1;
+    public static final int OP_SAVE_DATA   = 2;
+    public static final int OP_GET_DATA    = 3;
+    public static final int OP_DELETE_DIR  = 4;
+
+    private static final String[] OP_NAMES = {
+        "open", "copyFile", "saveDataToFile", "getFileData", "deleteDir"
+    };
+
+    /** The error code of {@link IOException}s that are not {@link FileIOException}s. */
+    public static final int ERROR_OTHER = -1;
+
+    /** The operation has not failed. */
+    static final int NO_ERROR = Integer.MIN_VALUE;
+
+    /** Number of latency buckets, the last one counts the calls longer than 16 seconds. */
+    public static final int HISTOGRAM_SIZE = 16;
+
+    /** The root key of the urls whose root can not be parsed. */
+    private static final String UNKNOWN_ROOT = "?";
+
+    private static boolean enabled;
+
+    /** "op root" -> Stats */
+    private static final Hashtable STATS = new Hashtable();
+
+    private IOMetrics() {}
+
+    /**
+     * Turns the collecting on or off. The numbers collected so far are kept.
+     */
+    public static void setEnabled(boolean enabled) {
+        IOMetrics.enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Forgets all the collected numbers.
+     */
+    public static void reset() {
+        synchronized (STATS) {
+            STATS.clear();
+        }
+    }
+
+    /**
+     * @param op - one of the <code>OP_*</code> constants.
+     * @param rootUrl - root url, e.g. {@link IOUtils#CARD_ROOT}, or null for all the roots.
+     * @return number of calls (including the failed ones).
+     */
+    public static long getCount(int op, String rootUrl) {
+        synchronized (STATS) {
+            long count = 0;
+            for (Enumeration e = STATS.elements(); e.hasMoreElements();) {
+                final Stats stats = (Stats) e.nextElement();
+                if (stats.matches(op, rootUrl)) {
+                    count += stats.count;
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * @param op - one of the <code>OP_*</code> constants.
+     * @param rootUrl - root url, e.g. {@link IOUtils#CARD_ROOT}, or null for all the roots.
+     * @return number of bytes read or written.
+     */
+    public static long getBytes(int op, String rootUrl) {
+        synchronized (STATS) {
+            long bytes = 0;
+            for (Enumeration e = STATS.elements(); e.hasMoreElements();) {
+                final Stats stats = (Stats) e.nextElement();
+                if (stats.matches(op, rootUrl)) {
+                    bytes += stats.bytes;
+                }
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * @param op - one of the <code>OP_*</code> constants.
+     * @param rootUrl - root url, e.g. {@link IOUtils#CARD_ROOT}, or null for all the roots.
+     * @return a copy of the latency histogram, {@link #HISTOGRAM_SIZE} elements.
+     */
+    public static long[] getHistogram(int op, String rootUrl) {
+        synchronized (STATS) {
+            final long[] histogram = new long[HISTOGRAM_SIZE];
+            for (Enumeration e = STATS.elements(); e.hasMoreElements();) {
+                final Stats stats = (Stats) e.nextElement();
+                if (stats.matches(op, rootUrl)) {
+                    for (int i = 0; i < HISTOGRAM_SIZE; i++) {
+                        histogram[i] += stats.histogram[i];
+                    }
+                }
+            }
+            return histogram;
+        }
+    }
+
+    /**
+     * @param op - one of the <code>OP_*</code> constants.
+     * @param rootUrl - root url, e.g. {@link IOUtils#CARD_ROOT}, or null for all the roots.
+     * @param errorCode - a {@link FileIOException} code or {@link #ERROR_OTHER}.
+     * @return number of calls failed with the error code.
+     */
+    public static long getErrorCount(int op, String rootUrl, int errorCode) {
+        final Integer key = new Integer(errorCode);
+        synchronized (STATS) {
+            long count = 0;
+            for (Enumeration e = STATS.elements(); e.hasMoreElements();) {
+                final Stats stats = (Stats) e.nextElement();
+                if (stats.matches(op, rootUrl)) {
+                    final long[] errors = (long[]) stats.errors.get(key);
+                    if (errors != null) {
+                        count += errors[0];
+                    }
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * @return a human readable dump of all the collected numbers, one line per operation and root.
+     */
+    public static String getSnapshot() {
+        final StringBuffer sb = new StringBuffer();
+        synchronized (STATS) {
+            for (Enumeration e = STATS.elements(); e.hasMoreElements();) {
+                ((Stats) e.nextElement()).appendTo(sb);
+                sb.append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes {@link #getSnapshot()} to the log.
+     */
+    public static void logSnapshot() {
+        Logger.debug(IOMetrics.class, "snapshot:\n" + getSnapshot());
+    }
+
+    /**
+     * @return the start time to pass to {@link #record}, 0 if the metrics are disabled.
+     */
+    static long start() {
+        return enabled ? System.currentTimeMillis() : 0;
+    }
+
+    /**
+     * @return the code to pass to {@link #record} for the error.
+     */
+    static int getErrorCode(IOException e) {
+        return e instanceof FileIOException ? ((FileIOException) e).getErrorCode() : ERROR_OTHER;
+    }
+
+    /**
+     * Records a finished call. Does nothing if the call has been started while the metrics
+     * were disabled.
+     *
+     * @param op - one of the <code>OP_*</code> constants.
+     * @param url - url the operation has been done on.
+     * @param bytes - bytes read or written.
+     * @param startTime - the value returned by {@link #start()}.
+     * @param errorCode - {@link #NO_ERROR} or a value returned by {@link #getErrorCode(IOException)}.
+     */
+    static void record(int op, String url, long bytes, long startTime, int errorCode) {
+        if (startTime == 0) {
+            return;
+        }
+        final long millis = System.currentTimeMillis() - startTime;
+
+        String rootUrl;
+        try {
+            rootUrl = IOUtils.getRootUrl(url);
+        } catch (IllegalArgumentException e) {
+            rootUrl = UNKNOWN_ROOT;
+        }
+
+        synchronized (STATS) {
+            final String key = op + " " + rootUrl;
+            Stats stats = (Stats) STATS.get(key);
+            if (stats == null) {
+                stats = new Stats(op, rootUrl);
+                STATS.put(key, stats);
+            }
+            stats.add(bytes, millis, errorCode);
+        }
+    }
+
+    private static int getBucket(long millis) {
+        int bucket = 0;
+        while (millis > 0 && bucket < HISTOGRAM_SIZE - 1) {
+            millis >>= 1;
+            bucket++;
+        }
+        return bucket;
+    }
+
+    private static class Stats {
+
+        final int op;
+        final String rootUrl;
+
+        long count;
+        long bytes;
+        long totalMillis;
+        long maxMillis;
+        final long[] histogram = new long[HISTOGRAM_SIZE];
+
+        /** Integer error code -> long[1] count */
+        final Hashtable errors = new Hashtable();
+
+        Stats(int op, String rootUrl) {
+            this.op = op;
+            this.rootUrl = rootUrl;
+        }
+
+        boolean matches(int op, String rootUrl) {
+            return this.op == op && (rootUrl == null || this.rootUrl.equals(rootUrl));
+        }
+
+        void add(long bytes, long millis, int errorCode) {
+            count++;
+            this.bytes += bytes;
+            totalMillis += millis;
+            maxMillis = Math.max(maxMillis, millis);
+            histogram[getBucket(millis)]++;
+
+            if (errorCode != NO_ERROR) {
+                final Integer key = new Integer(errorCode);
+                final long[] errorCount = (long[]) errors.get(key);
+                if (errorCount == null) {
+                    errors.put(key, new long[] { 1 });
+                } else {
+                    errorCount[0]++;
+                }
+            }
+        }
+
+        void appendTo(StringBuffer sb) {
+            sb.append(OP_NAMES[op]).append(' ').append(rootUrl)
+              .append(": count=").append(count)
+              .append(", bytes=").append(bytes)
+              .append(", avgMs=").append(count == 0 ? 0 : totalMillis / count)
+              .append(", maxMs=").append(maxMillis)
+              .append(", histogram=[");
+            for (int i = 0; i < HISTOGRAM_SIZE; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(histogram[i]);
+            }
+            sb.append("], errors={");
+            boolean first = true;
+            for (Enumeration e = errors.keys(); e.hasMoreElements();) {
+                final Integer code = (Integer) e.nextElement();
+                if (!first) {
+                    sb.append(", ");
+                }
+                first = false;
+                sb.append(code).append('=').append(((long[]) errors.get(code))[0]);
+            }
+            sb.append('}');
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.cleverua.bb.utils;
+
+import java.io.IOException;
+
+/**
+ * Receives progress notifications from long running IO operations, 
+ * e.g. {@link IOUtils#copyFile(String, String, IOProgressListener)}.
+ * 
+ * <p>
+ * The listener is called on the thread running the operation, 
+ * so it must return quickly.
+ * </p>
+ */
+public interface IOProgressListener {
+    
+    /**
+     * Called each time a portion of data has been processed.
+     * 
+     * <p>
+     * The listener may abort the operation by throwing an {@link IOException}, 
+     * e.g. {@link java.io.InterruptedIOException} if the operation has been cancelled. 
+     * The exception is passed to the caller of the operation.
+     * </p>
+     * 
+     * @param bytesDone - amount of bytes processed so far.
+     * @param bytesTotal - total amount of bytes to process, or -1 if unknown.
+     * 
+     * @throws IOException to abort the operation.
+     */
+    void progressChanged(long bytesDone, long bytesTotal) throws IOException;
+}
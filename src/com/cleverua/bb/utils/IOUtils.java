@@ -1,16 +1,25 @@
 package com.cleverua.bb.utils;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.util.Enumeration;
+import java.util.Vector;
 
 import javax.microedition.io.Connector;
 import javax.microedition.io.file.FileConnection;
+import javax.microedition.io.file.FileSystemListener;
+import javax.microedition.io.file.FileSystemRegistry;
 
+import net.rim.device.api.compress.GZIPInputStream;
+import net.rim.device.api.compress.GZIPOutputStream;
+import net.rim.device.api.io.Seekable;
 import net.rim.device.api.io.file.FileIOException;
 import net.rim.device.api.system.Characters;
+import net.rim.device.api.util.CRC32;
 
 /**
  * A bunch of convenient methods for file IO manipulations.
@@ -31,13 +40,102 @@ public class IOUtils {
     private static final String ENCR_FILE_EXTENSION = ".rem";
     
     private static final String TMP_EXT = ".tmp";
+    private static final String JOURNAL_EXT = ".journal";
     private static final String URL_ROOT_SEPARATOR = ":///";
     
     /** Currently it is "file:///SDCard/encription_test.txt". */
     private static final String TEST_CARD_ENCRYPTION_FILE = CARD_ROOT + "encription_test.txt";
     
+    /** Root name as passed to <code>FileSystemListener.rootChanged()</code>. */
+    private static final String CARD_ROOT_NAME = "SDCard/";
+    
+    private static final Object CARD_ENCRYPTION_SYNC_LOCK = new Object();
+    
+    /** The result of the last SDCard encryption probe, null if unknown. */
+    private static Boolean cardEncryptionEnabled;
+    
+    private static boolean cardRootListenerRegistered;
+    
     private static final Object TORCH_COPY_FILE_HACK_SYNC_LOCK = new Object();
     
+    /** Deletes everything it visits, children first. */
+    private static final DirectoryVisitor DELETING_VISITOR = new SimpleDirectoryVisitor() {
+        public int visitFile(String url, FileConnection file, int depth) throws IOException {
+            file.delete();
+            return CONTINUE;
+        }
+        
+        public int postVisitDirectory(String url, FileConnection dir, int depth) throws IOException {
+            dir.delete();
+            return CONTINUE;
+        }
+    };
+    
+    /** Max total size of idle copy buffers kept in {@link #BUFFER_POOL}. */
+    private static final int BUFFER_POOL_SIZE = 256 * 1024; /* 256KB */
+    
+    /**
+     * Pool of the buffers used to copy data by {@link #copyFile(String, String) copyFile}
+     * and {@link #saveDataToFile(String, InputStream) saveDataToFile}.
+     * Use it to get the pool statistics (hits, misses, bytes held).
+     */
+    public static final BufferPool BUFFER_POOL = new BufferPool(BUFFER_POOL_SIZE);
+    
+    /**
+     * Metadata cache used by {@link #isPresent(String) isPresent}, {@link #isDirectory(String) isDirectory}
+     * and {@link #getFileSize(String) getFileSize}. It is disabled by default, 
+     * use {@link FileMetadataCache#setEnabled(boolean)} to enable it. 
+     * By default entries live for 5 seconds and the cache keeps up to 256 entries.
+     */
+    public static final FileMetadataCache METADATA_CACHE = new FileMetadataCache(5000, 256);
+    
+    /** Size of a chunk {@link #copyFileChunkVerified copyFileChunkVerified} writes and verifies at once. */
+    private static final int VERIFIED_COPY_CHUNK_SIZE = BufferPool.MAX_BUFFER_SIZE;
+    
+    /** How many times {@link #copyFileChunkVerified copyFileChunkVerified} tries to rewrite corrupted chunks. */
+    private static final int VERIFIED_COPY_MAX_REPAIR_ATTEMPTS = 3;
+    
+    /**
+     * Limits the total RAM the concurrently running 
+     * {@link #copyFileChunkVerified copyFileChunkVerified} calls may use for their buffers.
+     * Each copy needs 2 chunks (128KB), by default 1MB is allowed. 
+     * Use {@link MemoryBudget#setMaxBytes(long)} to change the ceiling.
+     */
+    public static final MemoryBudget VERIFIED_COPY_MEMORY_BUDGET = new MemoryBudget(1024 * 1024);
+    
+    /** How often {@link #copyFileResumable copyFileResumable} saves its checkpoint. */
+    private static final long RESUMABLE_COPY_CHECKPOINT_INTERVAL = 1024 * 1024; /* 1MB */
+    
+    /**
+     * Caps the number of the file connections open at the same time, all the connections 
+     * of the utils are opened through it. Unlimited by default, use 
+     * {@link FileHandleManager#setMaxHandles(int)} to set the cap. An open waits for 
+     * a free handle up to 30 seconds.
+     */
+    public static final FileHandleManager HANDLE_MANAGER = new FileHandleManager(30000);
+    
+    /**
+     * Free space reservations of the writes in progress. <code>saveDataToFile</code> 
+     * (with a known data size) and <code>copyFile</code> reserve the space up front and 
+     * fail with {@link FileIOException#FILESYSTEM_FULL} before writing anything if the data 
+     * does not fit. The free space of a root is re-read at most once per 5 seconds 
+     * (unless a reservation does not fit).
+     */
+    public static final SpaceReservationLedger SPACE_LEDGER = new SpaceReservationLedger(5000);
+    
+    /** Listeners notified about the changes done by the utils, see {@link #addFileChangeListener(FileChangeListener)}. */
+    private static final Vector FILE_CHANGE_LISTENERS = new Vector();
+    
+    /** The first bytes of any GZIP stream (RFC 1952). */
+    private static final byte[] GZIP_MAGIC = { (byte) 0x1f, (byte) 0x8b };
+    
+    /** 
+     * Written in front of the GZIP stream of a file saved compressed: "BBUZ" and the format version. 
+     * A GZIP file saved as is (e.g. a downloaded ".gz" attachment) does not have it, 
+     * so it is not decompressed on read. 
+     */
+    private static final byte[] COMPRESSED_FILE_HEADER = { (byte) 'B', (byte) 'B', (byte) 'U', (byte) 'Z', 1 };
+    
     /**
      * Safely closes {@link InputStream} stream.
      * 
@@ -103,8 +201,9 @@ public class IOUtils {
         if (stream != null) {
             try {
                 stream.close();
-                stream = null;
             } catch (Exception e) { /* that's ok */ }
+            HANDLE_MANAGER.closed(stream);
+            stream = null;
         }
     }
     
@@ -157,12 +256,14 @@ public class IOUtils {
     public static void delete(String url) throws IOException {
         FileConnection fc = null;
         try {
-            fc = (FileConnection) Connector.open(url);
+            fc = open(url);
             if (fc.exists()) {
                 fc.delete();
+                fireFileChanged(FileChangeListener.FILE_DELETED, url, null);
             }
         } finally {
             safelyCloseStream(fc);
+            METADATA_CACHE.invalidate(url);
         }
     }
     
@@ -197,12 +298,20 @@ public class IOUtils {
     public static void rename(String url, String newName) throws IOException {
         FileConnection fc = null;
         try {
-            fc = (FileConnection) Connector.open(url);
+            fc = open(url);
             if (fc.exists()) {
                 fc.rename(newName);
+                String newUrl = getParentUrl(url) + newName;
+                if (url.charAt(url.length() - 1) == Characters.SOLIDUS 
+                        && newUrl.charAt(newUrl.length() - 1) != Characters.SOLIDUS) {
+                    newUrl += Characters.SOLIDUS; /* a directory */
+                }
+                fireFileChanged(FileChangeListener.FILE_RENAMED, newUrl, url);
             }
         } finally {
             safelyCloseStream(fc);
+            METADATA_CACHE.invalidateTree(url);
+            METADATA_CACHE.invalidate(getParentUrl(url) + newName);
         }
     }
     
@@ -219,22 +328,126 @@ public class IOUtils {
      * @throws IOException
      */
     public static void copyFile(String sourceFileUrl, String destinationFileUrl) throws IOException {
+        copyFile(sourceFileUrl, destinationFileUrl, null);
+    }
+    
+    /**
+     * Copies a file reporting the progress. 
+     * If the destination file has been already present, then it is overwritten.
+     * 
+     * <p>
+     * The copy algorithm is picked by {@link CopyStrategy#select(long)} from the file size, 
+     * the free heap and the OS version.
+     * </p>
+     * 
+     * @param sourceFileUrl - url of the source file.
+     * @param destinationFileUrl - url of the destination file.
+     * @param listener - gets notified each time a chunk of data is copied, can be null.
+     * The copying is aborted if the listener throws an {@link IOException}.
+     * 
+     * @throws IllegalArgumentException if the <code>sourceFileUrl</code> or 
+     * <code>destinationFileUrl</code> is invalid.
+     * @throws SecurityException if the security of the application does not have 
+     * both read and write access for the connection's target.
+     * @throws IOException
+     */
+    public static void copyFile(String sourceFileUrl, String destinationFileUrl, 
+            IOProgressListener listener) throws IOException {
+        copyFile(sourceFileUrl, destinationFileUrl, listener, null);
+    }
+    
+    /**
+     * Copies a file with the given strategy reporting the progress. 
+     * If the destination file has been already present, then it is overwritten.
+     * 
+     * @param sourceFileUrl - url of the source file.
+     * @param destinationFileUrl - url of the destination file.
+     * @param listener - gets notified each time a chunk of data is copied, can be null.
+     * The copying is aborted if the listener throws an {@link IOException}.
+     * @param strategy - the copy algorithm, null to pick it by 
+     * {@link CopyStrategy#select(long, boolean)} (a strategy reporting the progress on the fly 
+     * is picked if there is a listener).
+     * @return the strategy used.
+     * 
+     * @throws IllegalArgumentException if the <code>sourceFileUrl</code> or 
+     * <code>destinationFileUrl</code> is invalid.
+     * @throws SecurityException if the security of the application does not have 
+     * both read and write access for the connection's target.
+     * @throws FileIOException with {@link FileIOException#FILENAME_NOT_FOUND} code 
+     * if the source file does not exist, or with {@link FileIOException#FILESYSTEM_FULL} code 
+     * if the file does not fit the free space left by the other writes in {@link #SPACE_LEDGER}.
+     * Nothing is written then.
+     * @throws IOException
+     */
+    public static CopyStrategy copyFile(String sourceFileUrl, String destinationFileUrl, 
+            IOProgressListener listener, CopyStrategy strategy) throws IOException {
+        
+        FileConnection source = null;
+        SpaceReservationLedger.Reservation reservation = null;
+        boolean written = false;
+        
+        final long startTime = IOMetrics.start();
+        int errorCode = IOMetrics.NO_ERROR;
+        long sourceSize = 0;
+        
+        try {
+            // the source connection is handed over to the strategy, so the file is opened once
+            source = open(sourceFileUrl, Connector.READ);
+            sourceSize = source.fileSize();
+            if (sourceSize < 0) {
+                throw new FileIOException(FileIOException.FILENAME_NOT_FOUND);
+            }
+            if (strategy == null) {
+                strategy = CopyStrategy.select(sourceSize, listener != null);
+            }
+            reservation = SPACE_LEDGER.reserve(destinationFileUrl, sourceSize);
+            
+            final FileConnection handedOver = source;
+            source = null;
+            strategy.copy(handedOver, destinationFileUrl, listener);
+            written = true;
+            return strategy;
+            
+        } catch (IOException e) {
+            errorCode = IOMetrics.getErrorCode(e);
+            throw e;
+        } finally {
+            safelyCloseStream(source);
+            if (reservation != null) {
+                reservation.release(written);
+            }
+            IOMetrics.record(IOMetrics.OP_COPY_FILE, destinationFileUrl, sourceSize, startTime, errorCode);
+        }
+    }
+    
+    /**
+     * Copies a file streaming it through a buffer of the pool, the source file is already open 
+     * (the connection is closed). The space is reserved by the caller.
+     * 
+     * @param maxChunkSize - max size of the buffer, the actual size depends on the file size 
+     * (see {@link BufferPool#getChunkSize(long)}).
+     */
+    static void copyFileStreaming(FileConnection source, String destinationFileUrl, 
+            IOProgressListener listener, int maxChunkSize) throws IOException {
+        
         InputStream is  = null;
         OutputStream os = null;
-        FileConnection source         = null;
         FileConnection destination    = null;
         FileConnection destinationTmp = null;
         
         try {
             
-            source = (FileConnection) Connector.open(sourceFileUrl, Connector.READ);
-            destination = (FileConnection) Connector.open(destinationFileUrl);
+            // used as a hint for the copy buffer size
+            final long sourceSize = source.fileSize();
+            final int chunkSize = Math.min(BufferPool.getChunkSize(sourceSize), maxChunkSize);
+            
+            destination = open(destinationFileUrl);
             
             if (destination.exists()) {
                 // truncate does not work if file is encrypted via SDCard encryption (has ".rem" suffix)!
                 // destination.truncate(0);
                 
-                destinationTmp = (FileConnection) Connector.open(destinationFileUrl + TMP_EXT);
+                destinationTmp = open(destinationFileUrl + TMP_EXT);
                 
                 if (destinationTmp.exists()) {
                     destinationTmp.delete(); /* just in case */
@@ -244,7 +457,7 @@ public class IOUtils {
                 try {
                     is = source.openInputStream();
                     os = destinationTmp.openOutputStream();
-                    copyData(is, os);
+                    copyData(is, os, sourceSize, chunkSize, listener);
                 } catch (IOException e) {
                     safelyCloseStream(os);
                     try {
@@ -263,8 +476,9 @@ public class IOUtils {
                 destination.create();
                 is = source.openInputStream();
                 os = destination.openOutputStream();
-                copyData(is, os);
+                copyData(is, os, sourceSize, chunkSize, listener);
             }
+            fireFileChanged(FileChangeListener.FILE_CHANGED, destinationFileUrl, null);
             
         } finally {
              safelyCloseStream(is);
@@ -272,6 +486,7 @@ public class IOUtils {
              safelyCloseStream(source);
              safelyCloseStream(destination);
              safelyCloseStream(destinationTmp);
+             METADATA_CACHE.invalidate(destinationFileUrl);
         }
     }
 
@@ -300,6 +515,9 @@ public class IOUtils {
      * this only with affected OS 6 devices and switch to original method as
      * soon as RIM fixes the bug.</p>
      * 
+     * @see #copyFileChunkVerified(String, String) copyFileChunkVerified(String, String) 
+     * - a bounded-memory alternative.
+     * 
      * @param sourceFileUrl
      *            - url of the source file.
      * @param destinationFileUrl
@@ -314,16 +532,22 @@ public class IOUtils {
      * @throws IOException
      */
     public static void copyFileForTorchHack(String sourceFileUrl, String destinationFileUrl) throws IOException {
+        copyFile(sourceFileUrl, destinationFileUrl, null, CopyStrategy.WHOLE_FILE);
+    }
+    
+    /**
+     * The same as {@link #copyFileForTorchHack(String, String)} with the source file 
+     * already open, the connection is closed. The space is reserved by the caller.
+     */
+    static void copyFileForTorchHack(FileConnection source, String destinationFileUrl) throws IOException {
         InputStream is  = null;
         OutputStream os = null;
-        FileConnection source         = null;
         FileConnection destination    = null;
         FileConnection destinationTmp = null;
         
         try {
             
-            source = (FileConnection) Connector.open(sourceFileUrl, Connector.READ);
-            destination = (FileConnection) Connector.open(destinationFileUrl);
+            destination = open(destinationFileUrl);
             
             // fileSize() returns the size in bytes of the selected file, 
             // or -1 if the file does not exist or is not accessible.
@@ -333,7 +557,7 @@ public class IOUtils {
                 // truncate does not work if file is encrypted via SDCard encryption (has ".rem" suffix)!
                 // destination.truncate(0);
                 
-                destinationTmp = (FileConnection) Connector.open(destinationFileUrl + TMP_EXT);
+                destinationTmp = open(destinationFileUrl + TMP_EXT);
                 
                 if (destinationTmp.exists()) {
                     destinationTmp.delete(); /* just in case */
@@ -364,6 +588,7 @@ public class IOUtils {
                 os = destination.openOutputStream();
                 copyDataForTorchHack(is, os, sourceSize);
             }
+            fireFileChanged(FileChangeListener.FILE_CHANGED, destinationFileUrl, null);
             
         } finally {
              safelyCloseStream(is);
@@ -371,6 +596,303 @@ public class IOUtils {
              safelyCloseStream(source);
              safelyCloseStream(destination);
              safelyCloseStream(destinationTmp);
+             METADATA_CACHE.invalidate(destinationFileUrl);
+        }
+    }
+    
+    /**
+     * Copies a file. If the destination file has been already present, then it
+     * is overwritten.
+     * 
+     * <p>
+     * This is a bounded-memory replacement for 
+     * {@link #copyFileForTorchHack(String, String) copyFileForTorchHack}, it works around 
+     * the same <a href="https://www.blackberry.com/jira/browse/JAVAAPI-1513">known RIM bug</a>
+     * (the copied file content is corrupted, despite the file size is correct).
+     * </p>
+     * 
+     * <p>
+     * The data is written in fixed-size chunks (64KB) remembering a CRC32 checksum of each chunk.
+     * Then the written file is read back chunk by chunk and the checksums are compared. 
+     * The corrupted chunks are rewritten (up to 3 times) and checked again.
+     * </p>
+     * 
+     * <p>
+     * A copy needs 128KB of RAM regardless of the file size. The total RAM used by the copies 
+     * running at the same time is limited by {@link #VERIFIED_COPY_MEMORY_BUDGET}, 
+     * a copy waits until there is enough budget.
+     * </p>
+     * 
+     * @param sourceFileUrl - url of the source file.
+     * @param destinationFileUrl - url of the destination file.
+     * 
+     * @throws IllegalArgumentException if the <code>sourceFileUrl</code> or 
+     * <code>destinationFileUrl</code> is invalid.
+     * @throws SecurityException if the security of the application does not have 
+     * both read and write access for the connection's target.
+     * @throws IOException if the copied data is still corrupted after all the repair attempts, 
+     * or if the thread is interrupted while waiting for the memory budget.
+     */
+    public static void copyFileChunkVerified(String sourceFileUrl, String destinationFileUrl) 
+            throws IOException {
+        copyFileChunkVerified(sourceFileUrl, destinationFileUrl, null);
+    }
+    
+    /**
+     * The same as {@link #copyFileChunkVerified(String, String)} reporting the progress.
+     * 
+     * @param sourceFileUrl - url of the source file.
+     * @param destinationFileUrl - url of the destination file.
+     * @param listener - gets notified each time a chunk of data is written, can be null.
+     * The copying is aborted if the listener throws an {@link IOException}.
+     * The verification and the repair of the chunks are not reported.
+     * 
+     * @throws IllegalArgumentException if the <code>sourceFileUrl</code> or 
+     * <code>destinationFileUrl</code> is invalid.
+     * @throws SecurityException if the security of the application does not have 
+     * both read and write access for the connection's target.
+     * @throws IOException see {@link #copyFileChunkVerified(String, String)}.
+     */
+    public static void copyFileChunkVerified(String sourceFileUrl, String destinationFileUrl, 
+            IOProgressListener listener) throws IOException {
+        copyFile(sourceFileUrl, destinationFileUrl, listener, CopyStrategy.CHUNK_VERIFIED);
+    }
+    
+    /**
+     * The same as {@link #copyFileChunkVerified(String, String, IOProgressListener)} 
+     * with the source file already open, the connection is closed. 
+     * The space is reserved by the caller.
+     */
+    static void copyFileChunkVerified(FileConnection source, String destinationFileUrl, 
+            IOProgressListener listener) throws IOException {
+        
+        FileConnection destination    = null;
+        FileConnection destinationTmp = null;
+        
+        try {
+            
+            destination = open(destinationFileUrl);
+            
+            if (destination.exists()) {
+                // truncate does not work if file is encrypted via SDCard encryption (has ".rem" suffix)!
+                // destination.truncate(0);
+                
+                destinationTmp = open(destinationFileUrl + TMP_EXT);
+                
+                if (destinationTmp.exists()) {
+                    destinationTmp.delete(); /* just in case */
+                }
+                destinationTmp.create();
+                
+                try {
+                    copyDataChunkVerified(source, destinationTmp, listener);
+                } catch (IOException e) {
+                    try {
+                        destinationTmp.delete();
+                    } catch (IOException e1) { 
+                        /* do nothing here */
+                    }
+                    throw e;
+                }
+                
+                String destinationFileName = destination.getName();
+                destination.delete();
+                destinationTmp.rename(destinationFileName);
+                
+            } else {
+                destination.create();
+                copyDataChunkVerified(source, destination, listener);
+            }
+            fireFileChanged(FileChangeListener.FILE_CHANGED, destinationFileUrl, null);
+            
+        } finally {
+             safelyCloseStream(source);
+             safelyCloseStream(destination);
+             safelyCloseStream(destinationTmp);
+             METADATA_CACHE.invalidate(destinationFileUrl);
+        }
+    }
+    
+    /**
+     * Copies a file so that an interrupted copy can be resumed instead of being restarted.
+     * The same as {@link #copyFileResumable(String, String, IOProgressListener) 
+     * copyFileResumable(sourceFileUrl, destinationFileUrl, null)}.
+     */
+    public static void copyFileResumable(String sourceFileUrl, String destinationFileUrl) 
+            throws IOException {
+        copyFileResumable(sourceFileUrl, destinationFileUrl, null);
+    }
+    
+    /**
+     * Copies a file so that an interrupted copy can be resumed instead of being restarted.
+     * If the destination file has been already present, then it is overwritten.
+     * 
+     * <p>
+     * The data is always written to the <code>destinationFileUrl + ".tmp"</code> file 
+     * which is renamed to the destination name once the copy is complete. Every 1MB the 
+     * method saves a checkpoint (the committed offset and CRC32 of the committed data) 
+     * to the <code>destinationFileUrl + ".tmp.journal"</code> file. 
+     * </p>
+     * 
+     * <p>
+     * If the app is killed or the SD card is pulled out in the middle of copying, 
+     * the next call with the same arguments reads the journal, makes sure the source 
+     * file has not changed (url, size and modification time) and the already copied 
+     * prefix of the ".tmp" file is intact (CRC32), and continues from the committed offset.
+     * Otherwise the copying starts from scratch.
+     * </p>
+     * 
+     * <p>
+     * The space for the part left to copy is reserved in {@link #SPACE_LEDGER}.
+     * </p>
+     * 
+     * @param sourceFileUrl - url of the source file.
+     * @param destinationFileUrl - url of the destination file.
+     * @param listener - gets notified each time a chunk of data is copied, can be null.
+     * Note that <code>bytesDone</code> includes the resumed prefix.
+     * The copying is aborted (leaving the ".tmp" file and the journal to resume from) 
+     * if the listener throws an {@link IOException}.
+     * 
+     * @throws IllegalArgumentException if the <code>sourceFileUrl</code> or 
+     * <code>destinationFileUrl</code> is invalid.
+     * @throws SecurityException if the security of the application does not have 
+     * both read and write access for the connection's target.
+     * @throws IOException
+     */
+    public static void copyFileResumable(String sourceFileUrl, String destinationFileUrl, 
+            IOProgressListener listener) throws IOException {
+        
+        final String tmpUrl     = destinationFileUrl + TMP_EXT;
+        final String journalUrl = tmpUrl + JOURNAL_EXT;
+        
+        InputStream is  = null;
+        OutputStream os = null;
+        FileConnection source      = null;
+        FileConnection destination = null;
+        FileConnection tmp         = null;
+        byte[] buf = null;
+        
+        SpaceReservationLedger.Reservation reservation = null;
+        boolean written = false;
+        
+        try {
+            source = open(sourceFileUrl, Connector.READ);
+            final long sourceSize = source.fileSize();
+            if (sourceSize < 0) {
+                throw new FileIOException(FileIOException.FILENAME_NOT_FOUND);
+            }
+            final long sourceLastModified = source.lastModified();
+            
+            tmp = open(tmpUrl);
+            buf = BUFFER_POOL.acquire(BufferPool.getChunkSize(sourceSize));
+            
+            CopyJournal journal = CopyJournal.load(journalUrl);
+            if (journal != null && !canResume(journal, tmp, sourceFileUrl, sourceSize, sourceLastModified, buf)) {
+                journal = null;
+            }
+            
+            if (journal == null) {
+                if (tmp.exists()) {
+                    tmp.delete();
+                }
+                tmp.create();
+                journal = new CopyJournal(sourceFileUrl, sourceSize, sourceLastModified);
+                journal.committedCrc = CRC32.INITIAL_VALUE;
+                journal.save(journalUrl);
+            } else {
+                Logger.debug(IOUtils.class, "copyFileResumable: resuming " + destinationFileUrl 
+                        + " from " + journal.committedOffset);
+            }
+            
+            reservation = SPACE_LEDGER.reserve(tmpUrl, sourceSize - journal.committedOffset);
+            
+            is = source.openInputStream();
+            skipFully(is, journal.committedOffset);
+            os = tmp.openOutputStream(journal.committedOffset);
+            
+            long offset = journal.committedOffset;
+            int crc = journal.committedCrc;
+            int len;
+            while ((len = is.read(buf)) > 0) {
+                os.write(buf, 0, len);
+                offset += len;
+                crc = CRC32.update(crc, buf, 0, len);
+                
+                if (offset - journal.committedOffset >= RESUMABLE_COPY_CHECKPOINT_INTERVAL) {
+                    os.flush();
+                    journal.committedOffset = offset;
+                    journal.committedCrc    = crc;
+                    journal.save(journalUrl);
+                }
+                if (listener != null) {
+                    listener.progressChanged(offset, sourceSize);
+                }
+            }
+            os.flush();
+            safelyCloseStream(os);
+            os = null;
+            
+            if (offset != sourceSize) {
+                throw new IOException("copied " + offset + " bytes instead of " + sourceSize);
+            }
+            
+            destination = open(destinationFileUrl);
+            if (destination.exists()) {
+                destination.delete();
+            }
+            tmp.rename(destination.getName());
+            written = true;
+            
+            delete(journalUrl);
+            fireFileChanged(FileChangeListener.FILE_CHANGED, destinationFileUrl, null);
+            
+        } finally {
+            if (reservation != null) {
+                reservation.release(written);
+            }
+            BUFFER_POOL.release(buf);
+            safelyCloseStream(is);
+            safelyCloseStream(os);
+            safelyCloseStream(source);
+            safelyCloseStream(destination);
+            safelyCloseStream(tmp);
+            METADATA_CACHE.invalidate(destinationFileUrl);
+        }
+    }
+    
+    /**
+     * @return true if the journal has been written for the same source file 
+     * and the ".tmp" file holds the committed data.
+     */
+    private static boolean canResume(CopyJournal journal, FileConnection tmp, 
+            String sourceFileUrl, long sourceSize, long sourceLastModified, byte[] buf) {
+        
+        if (!journal.matches(sourceFileUrl, sourceSize, sourceLastModified)) {
+            return false;
+        }
+        
+        InputStream is = null;
+        try {
+            if (!tmp.exists() || tmp.fileSize() < journal.committedOffset) {
+                return false;
+            }
+            is = tmp.openInputStream();
+            int crc = CRC32.INITIAL_VALUE;
+            long left = journal.committedOffset;
+            while (left > 0) {
+                final int len = readFully(is, buf, 0, (int) Math.min(buf.length, left));
+                if (len == 0) {
+                    return false;
+                }
+                crc = CRC32.update(crc, buf, 0, len);
+                left -= len;
+            }
+            return crc == journal.committedCrc;
+        } catch (IOException e) {
+            Logger.debug(IOUtils.class, "copyFileResumable: can not check the copied prefix: " + e);
+            return false;
+        } finally {
+            safelyCloseStream(is);
         }
     }
     
@@ -387,7 +909,8 @@ public class IOUtils {
      * @throws IOException
      * <ul>
      * <li>if the target file system is not accessible or the data array size is greater 
-     * than free memory that is available on the file system the file resides on.</li>
+     * than free memory that is available on the file system the file resides on 
+     * minus the space reserved by other writes in {@link #SPACE_LEDGER}.</li>
      * <li>if an I/O error occurs.</li>
      * <li>if url has a trailing "/" to denote a directory, or an unspecified error occurs preventing creation of the file.</li>
      * <li>if the firewall disallows a connection that is not btspp or comm.</li>
@@ -398,17 +921,20 @@ public class IOUtils {
         FileConnection tmp = null;
         OutputStream out   = null;
         
+        final long startTime = IOMetrics.start();
+        int errorCode = IOMetrics.NO_ERROR;
+        
+        SpaceReservationLedger.Reservation reservation = null;
+        boolean written = false;
+        
         try {
-            fc = (FileConnection) Connector.open(url);
+            reservation = SPACE_LEDGER.reserve(url, data.length);
             
-            // check for available space
-            if (fc.availableSize() < data.length) {
-                throw new FileIOException(FileIOException.FILESYSTEM_FULL);
-            }
+            fc = open(url);
             
             if (fc.exists()) {
 
-                tmp = (FileConnection) Connector.open(url + TMP_EXT);
+                tmp = open(url + TMP_EXT);
                 
                 if (tmp.exists()) {
                     tmp.delete(); /* just in case */
@@ -439,11 +965,21 @@ public class IOUtils {
                 out.write(data);
                 out.flush();
             }
+            written = true;
+            fireFileChanged(FileChangeListener.FILE_CHANGED, url, null);
 
+        } catch (IOException e) {
+            errorCode = IOMetrics.getErrorCode(e);
+            throw e;
         } finally {
              safelyCloseStream(out);
              safelyCloseStream(fc);
              safelyCloseStream(tmp);
+             if (reservation != null) {
+                 reservation.release(written);
+             }
+             METADATA_CACHE.invalidate(url);
+             IOMetrics.record(IOMetrics.OP_SAVE_DATA, url, data.length, startTime, errorCode);
         }
     }
     
@@ -467,16 +1003,122 @@ public class IOUtils {
      * </ul>
      */
     public static void saveDataToFile(String url, InputStream is) throws IOException {
+        saveDataToFile(url, is, -1, false);
+    }
+    
+    /**
+     * Saves data of the known length from InputStream to file with a given url.
+     * If the destination file has been already present, then it is overwritten. 
+     * The stream is closed.
+     * 
+     * <p>
+     * Unlike {@link #saveDataToFile(String, InputStream)} the free space is reserved 
+     * in {@link #SPACE_LEDGER} up front, so the method fails before writing anything 
+     * if the data does not fit.
+     * </p>
+     * 
+     * @param url - url of the destination file.
+     * @param is - to read the data to save from.
+     * @param length - amount of bytes the stream provides.
+     * 
+     * @throws IllegalArgumentException if the <code>url</code> is invalid.
+     * @throws SecurityException if the security of the application does not have 
+     * both read and write access for the connection's target.
+     * @throws FileIOException with {@link FileIOException#FILESYSTEM_FULL} code 
+     * if the data does not fit the free space left by the other writes.
+     * @throws IOException see {@link #saveDataToFile(String, InputStream)}.
+     */
+    public static void saveDataToFile(String url, InputStream is, long length) throws IOException {
+        saveDataToFile(url, is, length, false);
+    }
+    
+    /**
+     * Saves byte array data to file with a given url, optionally GZIP compressed.
+     * If the destination file has been already present, then it is overwritten.
+     * 
+     * <p>
+     * The data is compressed in RAM before it is written, so the free space check 
+     * and the write itself deal with the compressed size only. Compressed files 
+     * start with a header of the library followed by the GZIP stream, so 
+     * {@link #getFileData(String, boolean)} and {@link #openInputStream(String, boolean)} 
+     * detect them automatically.
+     * </p>
+     * 
+     * @param url - url of the destination file.
+     * @param data - Array of bytes to save.
+     * @param compress - true to store the data GZIP compressed.
+     * 
+     * @throws IllegalArgumentException if the <code>url</code> is invalid.
+     * @throws SecurityException if the security of the application does not have 
+     * both read and write access for the connection's target.
+     * @throws IOException see {@link #saveDataToFile(String, byte[])}.
+     */
+    public static void saveDataToFile(String url, byte[] data, boolean compress) throws IOException {
+        if (!compress) {
+            saveDataToFile(url, data);
+            return;
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(32, data.length / 4));
+        bytes.write(COMPRESSED_FILE_HEADER);
+        final GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+        gzip.write(data);
+        gzip.close(); /* writes the GZIP trailer */
+        saveDataToFile(url, bytes.toByteArray());
+    }
+    
+    /**
+     * Saves data from InputStream to file with a given url, optionally GZIP compressed.
+     * If the destination file has been already present, then it is overwritten. 
+     * The stream is closed.
+     * 
+     * <p>
+     * The data is compressed on the fly, it is never held in RAM as a whole.
+     * Compressed files start with a header of the library followed by the GZIP stream, 
+     * so {@link #getFileData(String, boolean)} and {@link #openInputStream(String, boolean)} 
+     * detect them automatically.
+     * </p>
+     * 
+     * @param url - url of the destination file.
+     * @param is - to read the data to save from.
+     * @param compress - true to store the data GZIP compressed.
+     * 
+     * @throws IllegalArgumentException if the <code>url</code> is invalid.
+     * @throws SecurityException if the security of the application does not have 
+     * both read and write access for the connection's target.
+     * @throws IOException see {@link #saveDataToFile(String, InputStream)}.
+     */
+    public static void saveDataToFile(String url, InputStream is, boolean compress) throws IOException {
+        saveDataToFile(url, is, -1, compress);
+    }
+    
+    /**
+     * @param length - amount of bytes to be written to reserve in {@link #SPACE_LEDGER}, 
+     * -1 if unknown.
+     */
+    private static void saveDataToFile(String url, InputStream is, long length, boolean compress) 
+            throws IOException {
+        
         FileConnection fc  = null;
         FileConnection tmp = null;
         OutputStream out   = null;
         
+        SpaceReservationLedger.Reservation reservation = null;
+        boolean written = false;
+        
+        final long startTime = IOMetrics.start();
+        int errorCode = IOMetrics.NO_ERROR;
+        long bytes = 0;
+        
         try {
-            fc = (FileConnection) Connector.open(url);
+            if (length >= 0) {
+                reservation = SPACE_LEDGER.reserve(url, length);
+            }
+            
+            fc = open(url);
             
             if (fc.exists()) {
 
-                tmp = (FileConnection) Connector.open(url + TMP_EXT);
+                tmp = open(url + TMP_EXT);
                 
                 if (tmp.exists()) {
                     tmp.delete(); /* just in case */
@@ -485,7 +1127,7 @@ public class IOUtils {
                 
                 try {
                     out = tmp.openOutputStream();
-                    copyData(is, out);
+                    bytes = writeData(is, out, compress);
                 } catch (IOException e) {
                     safelyCloseStream(out);
                     try {
@@ -503,14 +1145,24 @@ public class IOUtils {
             } else {
                 fc.create();
                 out = fc.openOutputStream();
-                copyData(is, out);
+                bytes = writeData(is, out, compress);
             }
+            written = true;
+            fireFileChanged(FileChangeListener.FILE_CHANGED, url, null);
 
+        } catch (IOException e) {
+            errorCode = IOMetrics.getErrorCode(e);
+            throw e;
         } finally {
              safelyCloseStream(out);
              safelyCloseStream(fc);
              safelyCloseStream(tmp);
              safelyCloseStream(is);
+             if (reservation != null) {
+                 reservation.release(written);
+             }
+             METADATA_CACHE.invalidate(url);
+             IOMetrics.record(IOMetrics.OP_SAVE_DATA, url, bytes, startTime, errorCode);
         }
     }
     
@@ -535,18 +1187,208 @@ public class IOUtils {
         FileConnection fc = null;
         InputStream in = null;
         
+        final long startTime = IOMetrics.start();
+        int errorCode = IOMetrics.NO_ERROR;
+        long bytes = 0;
+        
         try {
-            fc = (FileConnection) Connector.open(url, Connector.READ);
+            fc = open(url, Connector.READ);
             in = fc.openInputStream();
             byte[] data = new byte[(int) fc.fileSize()];
-            in.read(data);
+            if (readFully(in, data, 0, data.length) != data.length) {
+                throw new IOException("unexpected end of file: " + url);
+            }
+            bytes = data.length;
+            return data;
+        } catch (IOException e) {
+            errorCode = IOMetrics.getErrorCode(e);
+            throw e;
+        } finally {
+            safelyCloseStream(in);
+            safelyCloseStream(fc);
+            IOMetrics.record(IOMetrics.OP_GET_DATA, url, bytes, startTime, errorCode);
+        }
+    }
+    
+    /**
+     * Reads a range of the file data and returns it as a byte array.
+     * File should be present, otherwise IOException is thrown.
+     * 
+     * <p>
+     * Use it to read a header or a slice of a large file without loading the whole file into RAM.
+     * To process a whole large file in constant memory use {@link FileChunkReader}.
+     * </p>
+     * 
+     * @param url - url of the source file.
+     * @param offset - position of the first byte to read.
+     * @param length - max number of bytes to read.
+     * @return Array of bytes. It is shorter than <code>length</code> if the file ends earlier, 
+     * and is empty if <code>offset</code> is beyond the end of file.
+     * 
+     * @throws IllegalArgumentException if the <code>url</code> is invalid, or 
+     * <code>offset</code> or <code>length</code> is negative.
+     * @throws SecurityException if the security of the application does not have 
+     * read access for the file.
+     * @throws IOException
+     * <ul>
+     * <li>if an I/O error occurs, if the method is invoked on a directory, 
+     * the file does not yet exist, or the connection's target is not accessible.</li>
+     * <li>if the firewall disallows a connection that is not btspp or comm.</li>
+     * </ul>
+     */
+    public static byte[] getFileData(String url, long offset, int length) throws IOException {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("invalid range: offset " + offset + ", length " + length);
+        }
+        
+        FileConnection fc = null;
+        InputStream in = null;
+        
+        final long startTime = IOMetrics.start();
+        int errorCode = IOMetrics.NO_ERROR;
+        long bytes = 0;
+        
+        try {
+            fc = open(url, Connector.READ);
+            final long fileSize = fc.fileSize();
+            if (fileSize < 0) {
+                throw new FileIOException(FileIOException.FILENAME_NOT_FOUND);
+            }
+            final int count = (int) Math.max(0, Math.min(length, fileSize - offset));
+            final byte[] data = new byte[count];
+            if (count == 0) {
+                return data;
+            }
+            in = fc.openInputStream();
+            seek(in, offset);
+            if (readFully(in, data, 0, count) != count) {
+                throw new IOException("unexpected end of file: " + url);
+            }
+            bytes = count;
             return data;
+        } catch (IOException e) {
+            errorCode = IOMetrics.getErrorCode(e);
+            throw e;
         } finally {
             safelyCloseStream(in);
             safelyCloseStream(fc);
+            IOMetrics.record(IOMetrics.OP_GET_DATA, url, bytes, startTime, errorCode);
+        }
+    }
+    
+    /**
+     * Reads file data and returns it as a byte array, decompressing it if the file has been 
+     * saved compressed (see {@link #saveDataToFile(String, byte[], boolean)}).
+     * File should be present, otherwise IOException is thrown.
+     * 
+     * <p>
+     * Only the files saved compressed by the utils are decompressed (they are recognized 
+     * by the header written in front of the GZIP stream), other files, including GZIP files 
+     * saved as is, are returned as is.
+     * </p>
+     * 
+     * @param url - url of the source file.
+     * @param decompress - true to decompress the files saved compressed, false to return 
+     * the raw file data (the same as {@link #getFileData(String)}).
+     * @return Array of bytes.
+     * 
+     * @throws IllegalArgumentException if the <code>url</code> is invalid.
+     * @throws SecurityException if the security of the application does not have 
+     * read access for the file.
+     * @throws IOException
+     * <ul>
+     * <li>if an I/O error occurs, if the method is invoked on a directory, 
+     * the file does not yet exist, or the connection's target is not accessible.</li>
+     * <li>if the compressed data is corrupted.</li>
+     * <li>if the firewall disallows a connection that is not btspp or comm.</li>
+     * </ul>
+     */
+    public static byte[] getFileData(String url, boolean decompress) throws IOException {
+        if (!decompress) {
+            return getFileData(url);
+        }
+        
+        final byte[] data = getFileData(url);
+        if (!hasCompressedFileHeader(data, data.length)) {
+            return data;
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length * 4);
+        copyData(new GZIPInputStream(new ByteArrayInputStream(data, COMPRESSED_FILE_HEADER.length, 
+                data.length - COMPRESSED_FILE_HEADER.length)), bytes, -1, null);
+        return bytes.toByteArray();
+    }
+    
+    /**
+     * Opens a stream to read the file, decompressing it on the fly if the file has been 
+     * saved compressed (see {@link #saveDataToFile(String, InputStream, boolean)}).
+     * Closing the stream closes the file connection as well.
+     * 
+     * <p>
+     * Only the files saved compressed by the utils are decompressed (they are recognized 
+     * by the header written in front of the GZIP stream), other files, including GZIP files 
+     * saved as is, are read as is.
+     * </p>
+     * 
+     * @param url - url of the source file.
+     * @param decompress - true to decompress the files saved compressed, false to read 
+     * the raw file data.
+     * @return the stream, the caller is responsible to close it.
+     * 
+     * @throws IllegalArgumentException if the <code>url</code> is invalid.
+     * @throws SecurityException if the security of the application does not have 
+     * read access for the file.
+     * @throws IOException
+     * <ul>
+     * <li>if an I/O error occurs, if the method is invoked on a directory, 
+     * the file does not yet exist, or the connection's target is not accessible.</li>
+     * <li>if the firewall disallows a connection that is not btspp or comm.</li>
+     * </ul>
+     */
+    public static InputStream openInputStream(String url, boolean decompress) throws IOException {
+        FileConnection fc = null;
+        InputStream in = null;
+        
+        try {
+            fc = open(url, Connector.READ);
+            in = fc.openInputStream();
+            
+            final byte[] header = new byte[COMPRESSED_FILE_HEADER.length + GZIP_MAGIC.length];
+            final int headerLength = decompress ? readFully(in, header, 0, header.length) : 0;
+            
+            if (hasCompressedFileHeader(header, headerLength)) {
+                // the GZIP stream starts right after the header of the library
+                final InputStream fileIn = new FileConnectionInputStream(fc, in, header, 
+                        COMPRESSED_FILE_HEADER.length, headerLength);
+                try {
+                    return new GZIPInputStream(fileIn);
+                } catch (IOException e) {
+                    safelyCloseStream(fileIn);
+                    throw e;
+                }
+            }
+            return new FileConnectionInputStream(fc, in, header, 0, headerLength);
+        } catch (IOException e) {
+            safelyCloseStream(in);
+            safelyCloseStream(fc);
+            throw e;
         }
     }
     
+    /**
+     * @param url - url of the file.
+     * @return true if the file has been saved compressed by the utils (a GZIP file saved as is 
+     * is not considered compressed).
+     * 
+     * @throws IllegalArgumentException if the <code>url</code> is invalid.
+     * @throws SecurityException if the security of the application does not have 
+     * read access for the file.
+     * @throws IOException if the file does not exist, is a directory or is not accessible.
+     */
+    public static boolean isCompressed(String url) throws IOException {
+        final byte[] header = getFileData(url, 0, COMPRESSED_FILE_HEADER.length + GZIP_MAGIC.length);
+        return hasCompressedFileHeader(header, header.length);
+    }
+    
     /**
      * Creates a directory corresponding to passed <code>url</code> parameter. 
      * Directories in the specified <code>url</code> are not recursively created and 
@@ -568,12 +1410,14 @@ public class IOUtils {
     public static void createDir(String url) throws IOException {
         FileConnection fc = null;
         try {
-            fc = (FileConnection) Connector.open(url);
+            fc = open(url);
             if (!fc.exists()) {
                 fc.mkdir();
+                fireFileChanged(FileChangeListener.FILE_ADDED, url, null);
             }
         } finally {
             safelyCloseStream(fc);
+            METADATA_CACHE.invalidate(url);
         }
     }
     
@@ -613,6 +1457,8 @@ public class IOUtils {
     }
     
     /**
+     * <p>The result may come from {@link #METADATA_CACHE} if it is enabled.</p>
+     * 
      * @param url - target path to check, e.g. <code>"file:///SDCard/my_new_dir/"</code>.
      * @return True if the target exists, is accessible, and is a directory, otherwise false.
      * 
@@ -623,12 +1469,15 @@ public class IOUtils {
      * @throws IOException if the firewall disallows a connection that is not btspp or comm.
      */
     public static boolean isDirectory(String url) throws IOException {
+        if (METADATA_CACHE.isEnabled()) {
+            return getMetadata(url).isDirectory;
+        }
         FileConnection fc = null;
         try {
-            fc = (FileConnection) Connector.open(url, Connector.READ);
+            fc = HANDLE_MANAGER.openShared(url);
             return fc.isDirectory();
         } finally {
-            IOUtils.safelyCloseStream(fc);
+            HANDLE_MANAGER.closeShared(fc);
         }
     }
     
@@ -643,42 +1492,108 @@ public class IOUtils {
      * 
      * <p>The method also works if the directory contains encrypted files.</p>
      * 
+     * <p>
+     * The tree is walked without recursion by a {@link DirectoryWalker}, 
+     * so deep trees do not exhaust the thread stack. One connection is opened per entry.
+     * </p>
+     * 
      * @param url - URL to a file or a directory to be deleted, 
      * e.g. <code>"file:///SDCard/my_dir/"</code>.
      * 
      * @throws IllegalArgumentException if the <code>url</code> is invalid.
      * @throws SecurityException if the security of the application does not have 
-     * both read and write access for the connection's target.
-     * @throws IOException
-     * <ul>
-     * <li>the target is unaccessible, or an unspecified error occurs 
-     * preventing deletion of the target.</li>
-     * <li>if the firewall disallows a connection that is not btspp or comm.</li>
-     * </ul>
+     * both read and write access for the connection's target.
+     * @throws IOException
+     * <ul>
+     * <li>the target is unaccessible, or an unspecified error occurs 
+     * preventing deletion of the target.</li>
+     * <li>if the firewall disallows a connection that is not btspp or comm.</li>
+     * </ul>
+     */
+    public static void deleteDir(String url) throws IOException {
+        final long startTime = IOMetrics.start();
+        int errorCode = IOMetrics.NO_ERROR;
+        boolean deleted = false;
+        try {
+            new DirectoryWalker(Connector.READ_WRITE).walk(url, DELETING_VISITOR);
+            deleted = true;
+        } catch (IOException e) {
+            errorCode = IOMetrics.getErrorCode(e);
+            throw e;
+        } finally {
+            METADATA_CACHE.invalidateTree(url);
+            fireFileChanged(deleted ? FileChangeListener.FILE_DELETED : FileChangeListener.FILE_CHANGED, url, null);
+            IOMetrics.record(IOMetrics.OP_DELETE_DIR, url, 0, startTime, errorCode);
+        }
+    }
+
+    /**
+     * Deletes a directory with all its content using several worker threads
+     * (see {@link ParallelDirectoryDeleter}), much faster than {@link #deleteDir(String)}
+     * for trees with many files. Blocks until the directory is deleted.
+     *
+     * <p>
+     * The workers run at <code>Thread.MIN_PRIORITY</code>, so the UI stays responsive.
+     * Use a {@link ParallelDirectoryDeleter} directly to get the progress or to cancel the delete.
+     * </p>
+     *
+     * @param url - URL to a file or a directory to be deleted,
+     * e.g. <code>"file:///SDCard/my_dir/"</code>.
+     * @param concurrency - number of worker threads, e.g. 3.
+     *
+     * @throws IllegalArgumentException if the <code>url</code> is invalid
+     * or <code>concurrency</code> is less than 1.
+     * @throws SecurityException if the security of the application does not have
+     * both read and write access for the connection's target.
+     * @throws InterruptedIOException if the calling thread is interrupted while waiting,
+     * the delete goes on in the background.
+     * @throws IOException if the delete fails, the entries deleted so far stay deleted.
+     */
+    public static void deleteDir(String url, int concurrency) throws IOException {
+        final ParallelDirectoryDeleter deleter =
+            new ParallelDirectoryDeleter(url, concurrency, Thread.MIN_PRIORITY, null);
+        deleter.start();
+        deleter.waitFor();
+    }
+
+    /**
+     * Searches the directory for the files whose names end with the passed suffix.
+     * 
+     * @param url - URL to a directory to search in, e.g. <code>"file:///SDCard/photos/"</code>.
+     * @param nameSuffix - suffix to match (case insensitive), e.g. <code>".jpg"</code>, 
+     * an empty string matches all the files.
+     * @param maxDepth - how deep to search, e.g. 1 - the directory itself only, 
+     * {@link DirectoryWalker#UNLIMITED_DEPTH} - all the subdirectories.
+     * @return urls of the files found. The array is empty if the directory does not exist.
+     * 
+     * @throws IllegalArgumentException if the <code>url</code> is invalid.
+     * @throws SecurityException if the security of the application does not have 
+     * read access for the directory.
+     * @throws IOException if the directory or any of its subdirectories can not be listed.
      */
-    public static void deleteDir(String url) throws IOException {
-        FileConnection fc = null;
-        try {
-            if (isDirectory(url)) {
-                fc = (FileConnection) Connector.open(url, Connector.READ);
-                Enumeration e = fc.list();
-                IOUtils.safelyCloseStream(fc);
-                while (e.hasMoreElements()) {
-                    deleteDir(url + removeEncExtension((String) e.nextElement()));
+    public static String[] findFiles(String url, String nameSuffix, int maxDepth) throws IOException {
+        final String suffix = nameSuffix.toLowerCase();
+        final Vector result = new Vector();
+        
+        new DirectoryWalker(Connector.READ, maxDepth).walk(url, new SimpleDirectoryVisitor() {
+            public int visitFile(String fileUrl, FileConnection file, int depth) {
+                if (fileUrl.toLowerCase().endsWith(suffix)) {
+                    result.addElement(fileUrl);
                 }
+                return CONTINUE;
             }
-            fc = (FileConnection) Connector.open(url);
-            if (fc.exists()) {
-                fc.delete();
-            }
-        } finally {
-            IOUtils.safelyCloseStream(fc);
-        }
+        });
+        
+        final String[] urls = new String[result.size()];
+        result.copyInto(urls);
+        return urls;
     }
     
     /**
      * Determines the size of a file on the file system.
      * 
+     * <p>The result may come from {@link #METADATA_CACHE} if it is enabled.</p>
+     * 
      * @param url - URL to a file to be processed.
      * @return The size in bytes of the selected file, 
      * or -1 if the file does not exist or is not accessible.
@@ -694,13 +1609,43 @@ public class IOUtils {
      * </ul>
      */
     public static long getFileSize(String url) throws IOException {
+        if (METADATA_CACHE.isEnabled()) {
+            final FileMetadataCache.Entry metadata = getMetadata(url);
+            if (metadata.isDirectory) {
+                throw new FileIOException(FileIOException.IS_A_DIRECTORY);
+            }
+            return metadata.fileSize;
+        }
         FileConnection fc = null;
         try {
-            fc = (FileConnection) Connector.open(url, Connector.READ);            
+            fc = HANDLE_MANAGER.openShared(url);
             return fc.fileSize();
         } finally {
-            IOUtils.safelyCloseStream(fc);
+            HANDLE_MANAGER.closeShared(fc);
+        }
+    }
+    
+    /**
+     * Extracts the file system root from the url, e.g. for 
+     * <code>"file:///SDCard/BlackBerry/music/song.mp3"</code> the result is 
+     * <code>"file:///SDCard/"</code>.
+     * 
+     * @param url - URL to a file or a directory.
+     * @return url of the file system root the target resides on.
+     * 
+     * @throws IllegalArgumentException if the <code>url</code> is invalid.
+     */
+    public static String getRootUrl(String url) {
+        final int index = url.indexOf(URL_ROOT_SEPARATOR);
+        if (index == -1) {
+            throw new IllegalArgumentException("Invalid url");
+        }
+        final int rootStart = index + URL_ROOT_SEPARATOR.length();
+        final int rootEnd = url.indexOf(Characters.SOLIDUS, rootStart);
+        if (rootEnd == -1) {
+            throw new IllegalArgumentException("Invalid url");
         }
+        return url.substring(0, rootEnd + 1);
     }
     
     /**
@@ -722,6 +1667,8 @@ public class IOUtils {
      * Checks if the file or directory specified in the <code>url</code> 
      * passed to the method exists.
      * 
+     * <p>The result may come from {@link #METADATA_CACHE} if it is enabled.</p>
+     * 
      * @param url - URL to a file or directory to be processed.
      * @return true if the target exists and is accessible, otherwise false.
      * 
@@ -731,12 +1678,15 @@ public class IOUtils {
      * does not have read access for the <code>url</code>.
      */
     public static boolean isPresent(String url) throws IOException {
+        if (METADATA_CACHE.isEnabled()) {
+            return getMetadata(url).exists;
+        }
         FileConnection fc = null;
         try {
-            fc = (FileConnection) Connector.open(url, Connector.READ);
+            fc = HANDLE_MANAGER.openShared(url);
             return fc.exists();
         } finally {
-            IOUtils.safelyCloseStream(fc);
+            HANDLE_MANAGER.closeShared(fc);
         }
     }
     
@@ -796,7 +1746,7 @@ public class IOUtils {
     public static long getDirectorySize(String url, boolean includeSubDirs) throws IOException {
         FileConnection fc = null;
         try {
-            fc = (FileConnection) Connector.open(url, Connector.READ);
+            fc = open(url, Connector.READ);
             return fc.directorySize(includeSubDirs);
         } finally {
             IOUtils.safelyCloseStream(fc);
@@ -821,7 +1771,7 @@ public class IOUtils {
     public static long getAvailableFileSystemSize(String url) throws IOException {
         FileConnection fc = null;
         try {
-            fc = (FileConnection) Connector.open(url, Connector.READ);
+            fc = open(url, Connector.READ);
             return  fc.availableSize();
         } finally {
             IOUtils.safelyCloseStream(fc);
@@ -921,7 +1871,7 @@ public class IOUtils {
     public static long getTotalFileSystemSize(String url) throws IOException {
         FileConnection fc = null;
         try {
-            fc = (FileConnection) Connector.open(url, Connector.READ);
+            fc = open(url, Connector.READ);
             return fc.totalSize();
         } finally {
             IOUtils.safelyCloseStream(fc);
@@ -945,7 +1895,7 @@ public class IOUtils {
     public static long getUsedFileSystemSize(String url) throws IOException {
         FileConnection fc = null;
         try {
-            fc = (FileConnection) Connector.open(url, Connector.READ);
+            fc = open(url, Connector.READ);
             return fc.usedSize();
         } finally {
             IOUtils.safelyCloseStream(fc);
@@ -1067,10 +2017,65 @@ public class IOUtils {
     }
     
     /**
-     * This method creates a file for {@link #TEST_CARD_ENCRYPTION_FILE} url 
-     * (if already exists - deletes its first) and then checks for the got file extension.
-     * It was observed that if SDCard Encryption is ON, then newly created files get ".rem" extension.
-     * The method relies on this OS behavior to detect the SDCard Encryption state.
+     * Tells the errors caused by a temporary condition (the file or the OS is busy, 
+     * file handles are exhausted) that may go away if the operation is retried a bit later 
+     * from the fatal ones (see {@link #getFileIOExceptionInfo(FileIOException)}).
+     * 
+     * @param e - {@link Throwable} to process.
+     * @return True if <code>e</code> is an instance of {@link FileIOException} and 
+     * its error code is {@link FileIOException#FILE_BUSY}, {@link FileIOException#OS_BUSY}, 
+     * {@link FileIOException#STREAM_ALREADY_OPENED}, {@link FileIOException#FILE_HANDLES_OPEN} 
+     * or {@link FileIOException#NO_FREE_HANDLES}, otherwise - false.
+     * 
+     * @see RetryPolicy
+     */
+    public static boolean isTransientFileIOException(Throwable e) {
+        if (!(e instanceof FileIOException)) {
+            return false;
+        }
+        final int errorCode = ((FileIOException) e).getErrorCode();
+        return errorCode == FileIOException.FILE_BUSY 
+            || errorCode == FileIOException.OS_BUSY 
+            || errorCode == FileIOException.STREAM_ALREADY_OPENED 
+            || errorCode == FileIOException.FILE_HANDLES_OPEN 
+            || errorCode == FileIOException.NO_FREE_HANDLES;
+    }
+    
+    /**
+     * Registers a listener to be notified about the files and directories created, written, 
+     * renamed and deleted by the utils (e.g. to keep an index of a directory up to date 
+     * without listing it again). Changes done by other means are not reported, 
+     * use <code>FileSystemJournal</code> for them. Does nothing if the listener is already registered.
+     * 
+     * @param listener - the listener, it is called on the thread doing the change.
+     */
+    public static void addFileChangeListener(FileChangeListener listener) {
+        synchronized (FILE_CHANGE_LISTENERS) {
+            if (!FILE_CHANGE_LISTENERS.contains(listener)) {
+                FILE_CHANGE_LISTENERS.addElement(listener);
+            }
+        }
+    }
+    
+    /**
+     * Undoes {@link #addFileChangeListener(FileChangeListener)}.
+     */
+    public static void removeFileChangeListener(FileChangeListener listener) {
+        synchronized (FILE_CHANGE_LISTENERS) {
+            FILE_CHANGE_LISTENERS.removeElement(listener);
+        }
+    }
+    
+    /**
+     * Detects whether SDCard Encryption is ON.
+     * 
+     * <p>
+     * The probe (see {@link #probeSDCardEncryption()}) creates and deletes a file on the card, 
+     * so its result is cached. The cached result is dropped when the card is removed or 
+     * inserted (the method registers a {@link FileSystemListener} for that on the first call). 
+     * Since there is no notification about encryption policy changes, call 
+     * {@link #invalidateSDCardEncryptionState()} if the policy may have changed.
+     * </p>
      * 
      * @return True if SDCard Encryption is ON, otherwise false.
      *  
@@ -1080,11 +2085,61 @@ public class IOUtils {
      * @throws IOException if the target the target is unaccessible, or an unspecified error occurs 
      * preventing deletion of the target, or if the firewall disallows a connection that is 
      * not btspp or comm.
+     * 
+     * @see #prewarmSDCardEncryptionState()
      */
     public static boolean isSDCardEncryptionEnabled() throws IOException {
+        synchronized (CARD_ENCRYPTION_SYNC_LOCK) {
+            if (cardEncryptionEnabled == null) {
+                registerCardRootListener();
+                cardEncryptionEnabled = probeSDCardEncryption() ? Boolean.TRUE : Boolean.FALSE;
+            }
+            return cardEncryptionEnabled.booleanValue();
+        }
+    }
+    
+    /**
+     * Drops the cached result of {@link #isSDCardEncryptionEnabled()}, 
+     * so the next call probes the card again.
+     */
+    public static void invalidateSDCardEncryptionState() {
+        synchronized (CARD_ENCRYPTION_SYNC_LOCK) {
+            cardEncryptionEnabled = null;
+        }
+    }
+    
+    /**
+     * Starts a background thread calling {@link #isSDCardEncryptionEnabled()}, 
+     * so the result is cached by the time the app needs it (e.g. call this on startup).
+     * Errors are logged only. Does nothing if the result is already cached.
+     */
+    public static void prewarmSDCardEncryptionState() {
+        synchronized (CARD_ENCRYPTION_SYNC_LOCK) {
+            if (cardEncryptionEnabled != null) {
+                return;
+            }
+        }
+        new Thread() {
+            public void run() {
+                try {
+                    isSDCardEncryptionEnabled();
+                } catch (Throwable e) {
+                    Logger.debug(IOUtils.class, "failed to prewarm SDCard encryption state: " + e);
+                }
+            }
+        }.start();
+    }
+    
+    /**
+     * This method creates a file for {@link #TEST_CARD_ENCRYPTION_FILE} url 
+     * (if already exists - deletes its first) and then checks for the got file extension.
+     * It was observed that if SDCard Encryption is ON, then newly created files get ".rem" extension.
+     * The method relies on this OS behavior to detect the SDCard Encryption state.
+     */
+    private static boolean probeSDCardEncryption() throws IOException {
         FileConnection fc = null;
         try {
-            fc = (FileConnection) Connector.open(TEST_CARD_ENCRYPTION_FILE);
+            fc = open(TEST_CARD_ENCRYPTION_FILE);
             if (fc.exists()) { 
                 fc.delete(); 
             }
@@ -1101,15 +2156,389 @@ public class IOUtils {
         }
     }
     
-    private static void copyData(InputStream source, OutputStream destination) throws IOException {
-        byte[] buf = new byte[1024];
-        int len;
-        while ((len = source.read(buf)) > 0) {
-            destination.write(buf, 0, len);
+    /**
+     * Makes sure the cached SDCard encryption state is dropped once the card is removed or inserted.
+     * Must be called holding {@link #CARD_ENCRYPTION_SYNC_LOCK}.
+     */
+    private static void registerCardRootListener() {
+        if (cardRootListenerRegistered) {
+            return;
+        }
+        cardRootListenerRegistered = FileSystemRegistry.addFileSystemListener(new FileSystemListener() {
+            public void rootChanged(int state, String rootName) {
+                if (CARD_ROOT_NAME.equalsIgnoreCase(rootName)) {
+                    invalidateSDCardEncryptionState();
+                }
+            }
+        });
+    }
+    
+    /**
+     * @return the cached metadata for the url, or reads it (all at once) 
+     * and puts to {@link #METADATA_CACHE}.
+     */
+    private static FileMetadataCache.Entry getMetadata(String url) throws IOException {
+        FileMetadataCache.Entry entry = METADATA_CACHE.get(url);
+        if (entry != null) {
+            return entry;
+        }
+        final long generation = METADATA_CACHE.getGeneration();
+        FileConnection fc = null;
+        try {
+            fc = HANDLE_MANAGER.openShared(url);
+            final boolean exists = fc.exists();
+            final boolean isDirectory = exists && fc.isDirectory();
+            final long fileSize = (exists && !isDirectory) ? fc.fileSize() : -1;
+            METADATA_CACHE.put(url, generation, exists, isDirectory, fileSize);
+            return new FileMetadataCache.Entry(url, exists, isDirectory, fileSize);
+        } finally {
+            HANDLE_MANAGER.closeShared(fc);
+        }
+    }
+    
+    /**
+     * Notifies the {@link FileChangeListener}s. A failing listener does not fail the change.
+     */
+    static void fireFileChanged(int event, String url, String oldUrl) {
+        final FileChangeListener[] listeners;
+        synchronized (FILE_CHANGE_LISTENERS) {
+            if (FILE_CHANGE_LISTENERS.isEmpty()) {
+                return;
+            }
+            listeners = new FileChangeListener[FILE_CHANGE_LISTENERS.size()];
+            FILE_CHANGE_LISTENERS.copyInto(listeners);
+        }
+        for (int i = 0; i < listeners.length; i++) {
+            try {
+                listeners[i].fileChanged(event, url, oldUrl);
+            } catch (RuntimeException e) {
+                Logger.debug(IOUtils.class, "file change listener failed for " + url + ": " + e);
+            }
+        }
+    }
+    
+    /**
+     * @return url of the directory containing the target, e.g. <code>"file:///SDCard/dir/"</code> 
+     * for <code>"file:///SDCard/dir/file.txt"</code> or <code>"file:///SDCard/dir/subdir/"</code>.
+     */
+    static String getParentUrl(String url) {
+        return url.substring(0, url.lastIndexOf(Characters.SOLIDUS, url.length() - 2) + 1);
+    }
+    
+    /**
+     * @return number of bytes copied.
+     */
+    private static long copyData(InputStream source, OutputStream destination, long dataSize, 
+            IOProgressListener listener) throws IOException {
+        return copyData(source, destination, dataSize, BufferPool.getChunkSize(dataSize), listener);
+    }
+    
+    /**
+     * @return number of bytes copied.
+     */
+    private static long copyData(InputStream source, OutputStream destination, long dataSize, 
+            int chunkSize, IOProgressListener listener) throws IOException {
+        
+        final byte[] buf = BUFFER_POOL.acquire(chunkSize);
+        try {
+            long bytesDone = 0;
+            int len;
+            while ((len = source.read(buf)) > 0) {
+                destination.write(buf, 0, len);
+                bytesDone += len;
+                if (listener != null) {
+                    listener.progressChanged(bytesDone, dataSize);
+                }
+            }
+            destination.flush();
+            return bytesDone;
+        } finally {
+            BUFFER_POOL.release(buf);
         }
-        destination.flush();
     }
 
+    /**
+     * Writes the source file data to the target file chunk by chunk, then reads the target 
+     * back and rewrites the chunks whose checksums do not match.
+     * Both connections must be open, the target file must exist.
+     * The listener (can be null) is notified after each chunk written.
+     */
+    private static void copyDataChunkVerified(FileConnection source, FileConnection target, 
+            IOProgressListener listener) throws IOException {
+        
+        final long sourceSize = source.fileSize();
+        if (sourceSize < 0) {
+            throw new IOException("source file is not accessible: " + source.getURL());
+        }
+        
+        final int chunkSize = VERIFIED_COPY_CHUNK_SIZE;
+        final int chunksCount = (int) ((sourceSize + chunkSize - 1) / chunkSize);
+        final int[] checksums = new int[chunksCount];
+        final long budget = 2L * chunkSize;
+        
+        try {
+            VERIFIED_COPY_MEMORY_BUDGET.acquire(budget);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while waiting for memory budget");
+        }
+        
+        byte[] buf      = null;
+        byte[] checkBuf = null;
+        
+        try {
+            buf      = BUFFER_POOL.acquire(chunkSize);
+            checkBuf = BUFFER_POOL.acquire(chunkSize);
+            
+            InputStream is  = null;
+            OutputStream os = null;
+            try {
+                is = source.openInputStream();
+                os = target.openOutputStream();
+                for (int i = 0; i < chunksCount; i++) {
+                    final int len = getChunkLength(i, chunkSize, sourceSize);
+                    if (readFully(is, buf, 0, len) != len) {
+                        throw new IOException("unexpected end of source file: " + source.getURL());
+                    }
+                    checksums[i] = CRC32.update(CRC32.INITIAL_VALUE, buf, 0, len);
+                    os.write(buf, 0, len);
+                    if (listener != null) {
+                        listener.progressChanged((long) i * chunkSize + len, sourceSize);
+                    }
+                }
+                os.flush();
+            } finally {
+                safelyCloseStream(is);
+                safelyCloseStream(os);
+            }
+            
+            for (int attempt = 0; ; attempt++) {
+                final boolean[] corrupted = new boolean[chunksCount];
+                final int corruptedCount = 
+                    findCorruptedChunks(target, checksums, corrupted, checkBuf, chunkSize, sourceSize);
+                if (corruptedCount == 0) {
+                    return;
+                }
+                Logger.debug(IOUtils.class, "copyFileChunkVerified: " + corruptedCount 
+                        + " corrupted chunks in " + target.getURL() + ", attempt " + attempt);
+                if (attempt == VERIFIED_COPY_MAX_REPAIR_ATTEMPTS) {
+                    throw new IOException("copied data is corrupted (" + corruptedCount 
+                            + " of " + chunksCount + " chunks): " + target.getURL());
+                }
+                rewriteChunks(source, target, checksums, corrupted, buf, chunkSize, sourceSize);
+            }
+            
+        } finally {
+            BUFFER_POOL.release(buf);
+            BUFFER_POOL.release(checkBuf);
+            VERIFIED_COPY_MEMORY_BUDGET.release(budget);
+        }
+    }
+    
+    /**
+     * Reads the target file back and marks the chunks whose checksums differ 
+     * from the expected ones. A target of a wrong size has all its chunks marked.
+     * 
+     * @return number of corrupted chunks.
+     */
+    private static int findCorruptedChunks(FileConnection target, int[] checksums, boolean[] corrupted, 
+            byte[] buf, int chunkSize, long expectedSize) throws IOException {
+        
+        final int chunksCount = checksums.length;
+        
+        if (target.fileSize() != expectedSize) {
+            for (int i = 0; i < chunksCount; i++) {
+                corrupted[i] = true;
+            }
+            return chunksCount;
+        }
+        
+        int result = 0;
+        InputStream is = null;
+        try {
+            is = target.openInputStream();
+            for (int i = 0; i < chunksCount; i++) {
+                final int len = getChunkLength(i, chunkSize, expectedSize);
+                if (readFully(is, buf, 0, len) != len 
+                        || CRC32.update(CRC32.INITIAL_VALUE, buf, 0, len) != checksums[i]) {
+                    corrupted[i] = true;
+                    result++;
+                }
+            }
+        } finally {
+            safelyCloseStream(is);
+        }
+        return result;
+    }
+    
+    /**
+     * Reads the marked chunks from the source again and writes them 
+     * to the same offsets of the target.
+     */
+    private static void rewriteChunks(FileConnection source, FileConnection target, int[] checksums, 
+            boolean[] corrupted, byte[] buf, int chunkSize, long sourceSize) throws IOException {
+        
+        InputStream is = null;
+        try {
+            is = source.openInputStream();
+            long position = 0;
+            for (int i = 0; i < corrupted.length; i++) {
+                if (!corrupted[i]) {
+                    continue;
+                }
+                final long offset = (long) i * chunkSize;
+                skipFully(is, offset - position);
+                final int len = getChunkLength(i, chunkSize, sourceSize);
+                if (readFully(is, buf, 0, len) != len) {
+                    throw new IOException("unexpected end of source file: " + source.getURL());
+                }
+                position = offset + len;
+                if (CRC32.update(CRC32.INITIAL_VALUE, buf, 0, len) != checksums[i]) {
+                    throw new IOException("source file has changed during copying: " + source.getURL());
+                }
+                
+                OutputStream os = null;
+                try {
+                    os = target.openOutputStream(offset);
+                    os.write(buf, 0, len);
+                    os.flush();
+                } finally {
+                    safelyCloseStream(os);
+                }
+            }
+        } finally {
+            safelyCloseStream(is);
+        }
+    }
+    
+    private static int getChunkLength(int chunkIndex, int chunkSize, long dataSize) {
+        return (int) Math.min(chunkSize, dataSize - (long) chunkIndex * chunkSize);
+    }
+    
+    /**
+     * Reads up to <code>len</code> bytes. Unlike <code>InputStream.read(byte[], int, int)</code>
+     * it does not stop until the requested amount of bytes is read or the end of stream is reached.
+     * 
+     * @param is - stream to read from.
+     * @param buf - buffer to read into.
+     * @param off - offset in the buffer.
+     * @param len - number of bytes to read.
+     * @return number of bytes actually read, it is less than <code>len</code> 
+     * only if the end of stream has been reached.
+     * 
+     * @throws IOException if an I/O error occurs.
+     */
+    public static int readFully(InputStream is, byte[] buf, int off, int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            final int count = is.read(buf, off + total, len - total);
+            if (count < 0) {
+                break;
+            }
+            total += count;
+        }
+        return total;
+    }
+    
+    /**
+     * @return number of bytes read from the stream.
+     */
+    private static long writeData(InputStream is, OutputStream out, boolean compress) throws IOException {
+        if (!compress) {
+            return copyData(is, out, -1, null);
+        }
+        out.write(COMPRESSED_FILE_HEADER);
+        final GZIPOutputStream gzip = new GZIPOutputStream(out);
+        final long bytes = copyData(is, gzip, -1, null);
+        gzip.close(); /* writes the GZIP trailer, closes the file stream as well */
+        return bytes;
+    }
+    
+    /**
+     * Opens a file connection in the {@link Connector#READ_WRITE} mode, see {@link #open(String, int)}.
+     */
+    static FileConnection open(String url) throws IOException {
+        return open(url, Connector.READ_WRITE);
+    }
+    
+    /**
+     * Opens a file connection, all the connections of the utils are opened here, 
+     * so {@link IOMetrics} can time them.
+     */
+    static FileConnection open(String url, int mode) throws IOException {
+        HANDLE_MANAGER.acquire();
+        
+        final long startTime = IOMetrics.start();
+        int errorCode = IOMetrics.NO_ERROR;
+        FileConnection fc = null;
+        try {
+            fc = (FileConnection) Connector.open(url, mode);
+            HANDLE_MANAGER.track(fc);
+            return fc;
+        } catch (IOException e) {
+            errorCode = IOMetrics.getErrorCode(e);
+            throw e;
+        } finally {
+            if (fc == null) {
+                HANDLE_MANAGER.release();
+            }
+            IOMetrics.record(IOMetrics.OP_OPEN, url, 0, startTime, errorCode);
+        }
+    }
+    
+    /**
+     * @return true if the data starts with {@link #COMPRESSED_FILE_HEADER} followed by the GZIP magic.
+     */
+    private static boolean hasCompressedFileHeader(byte[] data, int length) {
+        if (length < COMPRESSED_FILE_HEADER.length + GZIP_MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < COMPRESSED_FILE_HEADER.length; i++) {
+            if (data[i] != COMPRESSED_FILE_HEADER[i]) {
+                return false;
+            }
+        }
+        for (int i = 0; i < GZIP_MAGIC.length; i++) {
+            if (data[COMPRESSED_FILE_HEADER.length + i] != GZIP_MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Moves a freshly opened file input stream to the position. 
+     * File streams on BlackBerry are {@link Seekable}, for other streams the bytes are skipped.
+     */
+    static void seek(InputStream is, long position) throws IOException {
+        if (position == 0) {
+            return;
+        }
+        if (is instanceof Seekable) {
+            ((Seekable) is).setPosition(position);
+        } else {
+            skipFully(is, position);
+        }
+    }
+    
+    /**
+     * Skips exactly <code>count</code> bytes.
+     * 
+     * @throws IOException if the end of stream is reached before.
+     */
+    private static void skipFully(InputStream is, long count) throws IOException {
+        while (count > 0) {
+            long skipped = is.skip(count);
+            if (skipped <= 0) {
+                // skip() may legally skip nothing, so make sure we are not at the end of stream
+                if (is.read() < 0) {
+                    throw new IOException("unexpected end of stream");
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+    
     /**
      * This is a hack for Torch 9800 (and I believe for the rest of new OS 6.0
      * devices, however the rest were not tested) bug.
@@ -72,7 +72,9 @@ public class ImageUtils {
             byte[] data = new byte[(int) fc.fileSize()];
         
             // Logger.debug("getResizedImage: byte[] data size = " + data.length + ", going to read..");
-            in.read(data);
+            if (IOUtils.readFully(in, data, 0, data.length) != data.length) {
+                throw new IOException("Unexpected end of file '" + imgUrl + '\'');
+            }
             
             IOUtils.safelyCloseStream(in);
             IOUtils.safelyCloseStream(fc);
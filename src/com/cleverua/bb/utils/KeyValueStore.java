@@ -0,0 +1,728 @@
+package com.cleverua.bb.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+import javax.microedition.io.Connector;
+import javax.microedition.io.file.FileConnection;
+
+import net.rim.device.api.util.CRC32;
+
+/**
+ * A persistent log-structured key-value store kept in a single data file.
+ *
+ * <p>
+ * Use it instead of saving thousands of small records as one file each:
+ * the data file stays open, so a {@link #put(String, byte[])} is a single append
+ * and a {@link #get(String)} is a single positioned read, neither of them calls
+ * <code>Connector.open</code>.
+ * </p>
+ *
+ * <p>
+ * Files in the store directory:
+ * </p>
+ * <ul>
+ * <li><code>"data"</code> - a header (magic, version, generation) followed by records
+ * (UTF key, int value length or -1 for a removed key, value bytes, CRC32 of the record);</li>
+ * <li><code>"index"</code> - a snapshot of the in-memory index (key -> value position)
+ * saved on {@link #close()}, {@link #saveIndex()} and after compaction. On open the snapshot
+ * is loaded and only the part of the data file appended after it is scanned. A torn record
+ * at the end of the data file (the app was killed during a put) is cut off.</li>
+ * </ul>
+ *
+ * <p>
+ * Overwritten and removed values stay in the data file until it is compacted.
+ * Compaction copies the live records to a ".tmp" file without blocking the store,
+ * then, holding the lock, copies the records appended meanwhile and swaps the files
+ * with the tmp-file-and-rename pattern used by {@link IOUtils#saveDataToFile(String, byte[])}.
+ * It runs in background automatically once more than a half of the data file is garbage.
+ * </p>
+ *
+ * <p>The class is thread safe.</p>
+ */
+public class KeyValueStore {
+
+    private static final String DATA_FILE  = "data";
+    private static final String INDEX_FILE = "index";
+    private static final String TMP_EXT    = ".tmp";
+
+    private static final int MAGIC = 0x4B56534C; /* "KVSL" */
+    private static final int FORMAT_VERSION = 1;
+
+    /** magic + version + generation */
+    private static final int HEADER_SIZE = 4 + 4 + 8;
+
+    private static final int TOMBSTONE = -1;
+
+    /** Automatic compaction is not started for data files smaller than this. */
+    private static final long AUTO_COMPACTION_MIN_SIZE = 64 * 1024; /* 64KB */
+
+    /* indices in the index entries (long[]) */
+    private static final int VALUE_OFFSET  = 0;
+    private static final int VALUE_LENGTH  = 1;
+    private static final int RECORD_LENGTH = 2;
+
+    private final String dirUrl;
+    private final String dataUrl;
+    private final String indexUrl;
+
+    /** key -> long[] { value offset, value length, record length } */
+    private Hashtable index = new Hashtable();
+
+    private FileConnection dataConnection;
+    private long generation;
+    private long dataLength;
+    private long liveBytes;
+
+    private Thread compactionThread;
+    private boolean closed;
+
+    /**
+     * Opens the store, creating it if needed.
+     *
+     * @param dirUrl - url of the store directory, e.g. <code>"file:///SDCard/myapp/records/"</code>.
+     *
+     * @throws IllegalArgumentException if the <code>dirUrl</code> is invalid.
+     * @throws SecurityException if the security of the application does not have
+     * both read and write access for the directory.
+     * @throws IOException if the store files can not be created or read, or the data file is corrupted.
+     */
+    public KeyValueStore(String dirUrl) throws IOException {
+        this.dirUrl   = dirUrl;
+        this.dataUrl  = dirUrl + DATA_FILE;
+        this.indexUrl = dirUrl + INDEX_FILE;
+
+        IOUtils.createDirIncludingAncestors(dirUrl);
+        recoverInterruptedSwap();
+
+        try {
+            openDataFile();
+            final long scanFrom = loadIndex();
+            scanTail(scanFrom);
+        } catch (IOException e) {
+            IOUtils.safelyCloseStream(dataConnection);
+            throw e;
+        }
+    }
+
+    /**
+     * @return the value stored under the key, or null if there is no such key.
+     *
+     * @throws IllegalStateException if the store is closed.
+     * @throws IOException if the data file can not be read.
+     */
+    public synchronized byte[] get(String key) throws IOException {
+        checkOpen();
+        final long[] entry = (long[]) index.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        final byte[] value = new byte[(int) entry[VALUE_LENGTH]];
+        InputStream in = null;
+        try {
+            in = dataConnection.openInputStream();
+            IOUtils.seek(in, entry[VALUE_OFFSET]);
+            if (IOUtils.readFully(in, value, 0, value.length) != value.length) {
+                throw new IOException("unexpected end of file: " + dataUrl);
+            }
+        } finally {
+            IOUtils.safelyCloseStream(in);
+        }
+        return value;
+    }
+
+    /**
+     * Stores the value under the key, replacing the previous value.
+     *
+     * @param key - the key, its UTF-8 form must not be longer than 65535 bytes.
+     * @param value - the value.
+     *
+     * @throws IllegalStateException if the store is closed.
+     * @throws IOException if the record can not be appended to the data file.
+     */
+    public synchronized void put(String key, byte[] value) throws IOException {
+        checkOpen();
+        append(key, value);
+    }
+
+    /**
+     * Removes the key. Does nothing if there is no such key.
+     *
+     * @throws IllegalStateException if the store is closed.
+     * @throws IOException if the record can not be appended to the data file.
+     */
+    public synchronized void remove(String key) throws IOException {
+        checkOpen();
+        if (index.containsKey(key)) {
+            append(key, null);
+        }
+    }
+
+    public synchronized boolean contains(String key) {
+        return index.containsKey(key);
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * @return all the keys.
+     */
+    public synchronized String[] getKeys() {
+        final String[] keys = new String[index.size()];
+        int i = 0;
+        for (Enumeration e = index.keys(); e.hasMoreElements();) {
+            keys[i++] = (String) e.nextElement();
+        }
+        return keys;
+    }
+
+    /**
+     * @return size of the data file in bytes.
+     */
+    public synchronized long getDataLength() {
+        return dataLength;
+    }
+
+    /**
+     * @return size in bytes of the overwritten and removed records,
+     * i.e. how much a compaction would reclaim.
+     */
+    public synchronized long getGarbageBytes() {
+        return dataLength - HEADER_SIZE - liveBytes;
+    }
+
+    /**
+     * Saves the in-memory index, so the next open does not have to scan the records
+     * appended up to now. It is done on {@link #close()} anyway.
+     *
+     * @throws IllegalStateException if the store is closed.
+     * @throws IOException if the index file can not be written.
+     */
+    public synchronized void saveIndex() throws IOException {
+        checkOpen();
+        writeIndex();
+    }
+
+    /**
+     * Compacts the data file in the calling thread. Puts and gets of other threads
+     * are blocked only while the records appended during the compaction are copied
+     * and the files are swapped. Does nothing if a compaction is already running.
+     *
+     * @return true if the compaction has been done.
+     *
+     * @throws IllegalStateException if the store is closed.
+     * @throws IOException if the compaction fails, the store stays usable then.
+     */
+    public boolean compact() throws IOException {
+        synchronized (this) {
+            checkOpen();
+            if (compactionThread != null) {
+                return false;
+            }
+            compactionThread = Thread.currentThread();
+        }
+        try {
+            return doCompact();
+        } finally {
+            synchronized (this) {
+                compactionThread = null;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Starts a compaction in a background thread (of the minimal priority)
+     * unless a compaction is already running.
+     *
+     * @throws IllegalStateException if the store is closed.
+     */
+    public synchronized void compactInBackground() {
+        checkOpen();
+        if (compactionThread != null) {
+            return;
+        }
+        final Thread thread = new Thread() {
+            public void run() {
+                try {
+                    doCompact();
+                } catch (Throwable e) {
+                    Logger.debug(KeyValueStore.class, "compaction of " + dirUrl + " failed: " + e);
+                } finally {
+                    synchronized (KeyValueStore.this) {
+                        compactionThread = null;
+                        KeyValueStore.this.notifyAll();
+                    }
+                }
+            }
+        };
+        thread.setPriority(Thread.MIN_PRIORITY);
+        compactionThread = thread;
+        thread.start();
+    }
+
+    /**
+     * Waits for a running compaction (it is abandoned), saves the index and closes the data file.
+     * Does nothing if the store is already closed.
+     *
+     * @throws IOException if the index file can not be written.
+     */
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        while (compactionThread != null && compactionThread != Thread.currentThread()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        try {
+            writeIndex();
+        } finally {
+            IOUtils.safelyCloseStream(dataConnection);
+            dataConnection = null;
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("the store is closed: " + dirUrl);
+        }
+    }
+
+    private void append(String key, byte[] value) throws IOException {
+        final byte[] record = encodeRecord(key, value);
+
+        OutputStream out = null;
+        try {
+            out = dataConnection.openOutputStream(dataLength);
+            out.write(record);
+            out.flush();
+        } finally {
+            IOUtils.safelyCloseStream(out);
+        }
+
+        final long recordOffset = dataLength;
+        dataLength += record.length;
+        applyRecord(index, key, value == null ? TOMBSTONE : value.length, recordOffset, record.length);
+
+        if (compactionThread == null && dataLength >= AUTO_COMPACTION_MIN_SIZE
+                && getGarbageBytes() > liveBytes) {
+            compactInBackground();
+        }
+    }
+
+    /**
+     * Updates the index and {@link #liveBytes} (if the index is the current one) with a record.
+     */
+    private void applyRecord(Hashtable target, String key, int valueLength, long recordOffset,
+            int recordLength) {
+
+        final long[] previous;
+        if (valueLength == TOMBSTONE) {
+            previous = (long[]) target.remove(key);
+        } else {
+            final long valueOffset = recordOffset + recordLength - 4 - valueLength;
+            previous = (long[]) target.put(key, new long[] { valueOffset, valueLength, recordLength });
+        }
+
+        if (target == index) {
+            if (previous != null) {
+                liveBytes -= previous[RECORD_LENGTH];
+            }
+            if (valueLength != TOMBSTONE) {
+                liveBytes += recordLength;
+            }
+        }
+    }
+
+    private static byte[] encodeRecord(String key, byte[] value) throws IOException {
+        final ByteArrayOutputStream bytes =
+            new ByteArrayOutputStream(key.length() + (value == null ? 0 : value.length) + 16);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(key);
+        if (value == null) {
+            out.writeInt(TOMBSTONE);
+        } else {
+            out.writeInt(value.length);
+            out.write(value);
+        }
+        out.flush();
+        final byte[] body = bytes.toByteArray();
+        out.writeInt(CRC32.update(CRC32.INITIAL_VALUE, body, 0, body.length));
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads the next record. The lengths read are checked against the remaining data length
+     * before allocating, so a corrupted length can not cause a huge allocation.
+     *
+     * @param remaining - number of the data file bytes left from the record start.
+     * @return the record, or null if the end of data is reached or the record is
+     * torn or corrupted.
+     */
+    private static Record readRecord(InputStream in, long remaining) throws IOException {
+        final byte[] keyLengthBytes = new byte[2];
+        if (remaining < 2 || IOUtils.readFully(in, keyLengthBytes, 0, 2) != 2) {
+            return null;
+        }
+        final int keyLength = ((keyLengthBytes[0] & 0xFF) << 8) | (keyLengthBytes[1] & 0xFF);
+        if (2L + keyLength + 4 > remaining) {
+            return null;
+        }
+
+        final byte[] keyAndLength = new byte[keyLength + 4];
+        if (IOUtils.readFully(in, keyAndLength, 0, keyAndLength.length) != keyAndLength.length) {
+            return null;
+        }
+        final int valueLength = readInt(keyAndLength, keyLength);
+        if (valueLength < TOMBSTONE || 2L + keyLength + 4 + Math.max(valueLength, 0) + 4 > remaining) {
+            return null;
+        }
+
+        final int bodyLength = 2 + keyAndLength.length + Math.max(valueLength, 0);
+        final byte[] raw = new byte[bodyLength + 4];
+        raw[0] = keyLengthBytes[0];
+        raw[1] = keyLengthBytes[1];
+        System.arraycopy(keyAndLength, 0, raw, 2, keyAndLength.length);
+        final int restLength = raw.length - 2 - keyAndLength.length;
+        if (IOUtils.readFully(in, raw, 2 + keyAndLength.length, restLength) != restLength) {
+            return null;
+        }
+        if (readInt(raw, bodyLength) != CRC32.update(CRC32.INITIAL_VALUE, raw, 0, bodyLength)) {
+            return null;
+        }
+
+        final Record record = new Record();
+        record.key = new DataInputStream(new ByteArrayInputStream(raw, 0, 2 + keyLength)).readUTF();
+        record.valueLength = valueLength;
+        record.raw = raw;
+        return record;
+    }
+
+    private static int readInt(byte[] buf, int off) {
+        return ((buf[off] & 0xFF) << 24) | ((buf[off + 1] & 0xFF) << 16)
+            | ((buf[off + 2] & 0xFF) << 8) | (buf[off + 3] & 0xFF);
+    }
+
+    /**
+     * Handles a crash in the middle of a compaction swap (see {@link #swapDataFiles}).
+     */
+    private void recoverInterruptedSwap() throws IOException {
+        final String tmpUrl = dataUrl + TMP_EXT;
+        if (!IOUtils.isPresent(tmpUrl)) {
+            return;
+        }
+        if (IOUtils.isPresent(dataUrl)) {
+            IOUtils.delete(tmpUrl); /* an unfinished compaction */
+        } else {
+            IOUtils.rename(tmpUrl, DATA_FILE); /* the old file is deleted already */
+        }
+    }
+
+    private void openDataFile() throws IOException {
+        dataConnection = IOUtils.open(dataUrl, Connector.READ_WRITE);
+
+        if (!dataConnection.exists()) {
+            dataConnection.create();
+            generation = System.currentTimeMillis();
+            OutputStream out = null;
+            try {
+                out = dataConnection.openOutputStream();
+                out.write(encodeHeader(generation));
+                out.flush();
+            } finally {
+                IOUtils.safelyCloseStream(out);
+            }
+            dataLength = HEADER_SIZE;
+            return;
+        }
+
+        final DataInputStream in = dataConnection.openDataInputStream();
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                throw new IOException("not a key-value store data file: " + dataUrl);
+            }
+            generation = in.readLong();
+        } finally {
+            IOUtils.safelyCloseStream(in);
+        }
+        dataLength = dataConnection.fileSize();
+    }
+
+    private static byte[] encodeHeader(long generation) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SIZE);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeLong(generation);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Loads the index snapshot if it matches the data file.
+     *
+     * @return the data file offset the snapshot covers, records after it are to be scanned.
+     */
+    private long loadIndex() throws IOException {
+        if (!IOUtils.isPresent(indexUrl)) {
+            return HEADER_SIZE;
+        }
+
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(IOUtils.getFileData(indexUrl)));
+        try {
+            if (in.readInt() != FORMAT_VERSION || in.readLong() != generation) {
+                return HEADER_SIZE;
+            }
+            final long coveredLength = in.readLong();
+            if (coveredLength > dataLength) {
+                return HEADER_SIZE;
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String key = in.readUTF();
+                final long[] entry = new long[] { in.readLong(), in.readInt(), in.readInt() };
+                index.put(key, entry);
+                liveBytes += entry[RECORD_LENGTH];
+            }
+            return coveredLength;
+        } catch (IOException e) {
+            // a broken snapshot, the data file has everything anyway
+            index.clear();
+            liveBytes = 0;
+            return HEADER_SIZE;
+        } finally {
+            IOUtils.safelyCloseStream(in);
+        }
+    }
+
+    /**
+     * Applies the records from the offset to the end of the data file to the index.
+     * A torn record at the end is cut off.
+     */
+    private void scanTail(long offset) throws IOException {
+        if (offset >= dataLength) {
+            return;
+        }
+
+        InputStream in = null;
+        try {
+            in = dataConnection.openInputStream();
+            IOUtils.seek(in, offset);
+            Record record;
+            while (offset < dataLength && (record = readRecord(in, dataLength - offset)) != null) {
+                applyRecord(index, record.key, record.valueLength, offset, record.raw.length);
+                offset += record.raw.length;
+            }
+        } finally {
+            IOUtils.safelyCloseStream(in);
+        }
+
+        if (offset < dataLength) {
+            Logger.debug(KeyValueStore.class, "cutting off " + (dataLength - offset)
+                    + " bytes of a torn record in " + dataUrl);
+            dataConnection.truncate(offset);
+            dataLength = offset;
+        }
+    }
+
+    private void writeIndex() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(index.size() * 32 + 32);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(FORMAT_VERSION);
+        out.writeLong(generation);
+        out.writeLong(dataLength);
+        out.writeInt(index.size());
+        for (Enumeration e = index.keys(); e.hasMoreElements();) {
+            final String key = (String) e.nextElement();
+            final long[] entry = (long[]) index.get(key);
+            out.writeUTF(key);
+            out.writeLong(entry[VALUE_OFFSET]);
+            out.writeInt((int) entry[VALUE_LENGTH]);
+            out.writeInt((int) entry[RECORD_LENGTH]);
+        }
+        out.flush();
+        IOUtils.saveDataToFile(indexUrl, bytes.toByteArray());
+    }
+
+    private boolean doCompact() throws IOException {
+        final Hashtable snapshot;
+        final long snapshotLength;
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            snapshot = new Hashtable(index.size() * 2 + 1);
+            for (Enumeration e = index.keys(); e.hasMoreElements();) {
+                final Object key = e.nextElement();
+                snapshot.put(key, index.get(key));
+            }
+            snapshotLength = dataLength;
+        }
+
+        final String tmpUrl = dataUrl + TMP_EXT;
+        final long newGeneration = System.currentTimeMillis();
+        final Hashtable newIndex = new Hashtable(snapshot.size() * 2 + 1);
+
+        FileConnection source = null;
+        FileConnection tmp    = null;
+        InputStream in        = null;
+        OutputStream out      = null;
+        boolean swapped       = false;
+
+        try {
+            tmp = IOUtils.open(tmpUrl, Connector.READ_WRITE);
+            if (tmp.exists()) {
+                tmp.delete(); /* just in case */
+            }
+            tmp.create();
+            out = tmp.openOutputStream();
+            out.write(encodeHeader(newGeneration));
+            long newLength = HEADER_SIZE;
+
+            // phase 1: copy the live records of the snapshot, the store is not blocked
+            source = IOUtils.open(dataUrl, Connector.READ);
+            in = source.openInputStream();
+            IOUtils.seek(in, HEADER_SIZE);
+            long offset = HEADER_SIZE;
+            Record record;
+            while (offset < snapshotLength && (record = readRecord(in, snapshotLength - offset)) != null) {
+                final long[] entry = (long[]) snapshot.get(record.key);
+                if (entry != null && entry[VALUE_OFFSET] + entry[VALUE_LENGTH] + 4 == offset + record.raw.length) {
+                    // the record is the one the snapshot refers to, i.e. it is live
+                    out.write(record.raw);
+                    applyRecord(newIndex, record.key, record.valueLength, newLength, record.raw.length);
+                    newLength += record.raw.length;
+                }
+                offset += record.raw.length;
+            }
+            checkCopied(offset, snapshotLength);
+            IOUtils.safelyCloseStream(in);
+            in = null;
+            IOUtils.safelyCloseStream(source);
+            source = null;
+
+            synchronized (this) {
+                if (closed) {
+                    return false;
+                }
+
+                // phase 2: copy the records appended during phase 1
+                if (dataLength > snapshotLength) {
+                    in = dataConnection.openInputStream();
+                    IOUtils.seek(in, snapshotLength);
+                    offset = snapshotLength;
+                    while (offset < dataLength && (record = readRecord(in, dataLength - offset)) != null) {
+                        out.write(record.raw);
+                        applyRecord(newIndex, record.key, record.valueLength, newLength, record.raw.length);
+                        newLength += record.raw.length;
+                        offset += record.raw.length;
+                    }
+                    checkCopied(offset, dataLength);
+                    IOUtils.safelyCloseStream(in);
+                    in = null;
+                }
+                out.flush();
+                IOUtils.safelyCloseStream(out);
+                out = null;
+                IOUtils.safelyCloseStream(tmp);
+                tmp = null;
+
+                swapDataFiles(tmpUrl);
+                swapped = true;
+
+                index = newIndex;
+                generation = newGeneration;
+                dataLength = newLength;
+                liveBytes = 0;
+                for (Enumeration e = newIndex.elements(); e.hasMoreElements();) {
+                    liveBytes += ((long[]) e.nextElement())[RECORD_LENGTH];
+                }
+                writeIndex();
+            }
+            return true;
+        } finally {
+            IOUtils.safelyCloseStream(in);
+            IOUtils.safelyCloseStream(out);
+            IOUtils.safelyCloseStream(source);
+            IOUtils.safelyCloseStream(tmp);
+            if (!swapped && IOUtils.isPresent(dataUrl)) {
+                try {
+                    IOUtils.delete(tmpUrl);
+                } catch (IOException e) {
+                    /* do nothing here */
+                }
+            }
+        }
+    }
+
+    /**
+     * Records are never torn in the middle of the data file, so a compaction must not
+     * stop before the end of the data it copies, otherwise live records would be lost.
+     */
+    private void checkCopied(long offset, long expectedOffset) throws IOException {
+        if (offset < expectedOffset) {
+            throw new IOException("corrupted record at " + offset + " in " + dataUrl);
+        }
+    }
+
+    /**
+     * Replaces the data file with the compacted one. If the app is killed in between,
+     * {@link #recoverInterruptedSwap()} completes the swap on the next open.
+     *
+     * <p>
+     * If the delete fails, the old data file is kept and reopened. If the rename fails
+     * (the old data file is gone), the swap is completed by {@link #recoverInterruptedSwap()},
+     * if that fails too the store is closed, the next open recovers it.
+     * </p>
+     */
+    private void swapDataFiles(String tmpUrl) throws IOException {
+        IOUtils.safelyCloseStream(dataConnection);
+        dataConnection = null;
+        boolean deleted = false;
+        try {
+            IOUtils.delete(dataUrl);
+            deleted = true;
+            IOUtils.rename(tmpUrl, DATA_FILE);
+        } catch (IOException e) {
+            if (!deleted) {
+                throw e;
+            }
+            try {
+                recoverInterruptedSwap();
+            } catch (IOException recoveryError) {
+                closed = true;
+                Logger.debug(KeyValueStore.class, "closing " + dirUrl + ", the data file can not be swapped: "
+                        + recoveryError);
+                throw e;
+            }
+        } finally {
+            if (!closed) {
+                dataConnection = IOUtils.open(dataUrl, Connector.READ_WRITE);
+            }
+        }
+    }
+
+    private static class Record {
+        String key;
+        int valueLength;
+
+        /** the whole record as stored in the data file */
+        byte[] raw;
+    }
+}
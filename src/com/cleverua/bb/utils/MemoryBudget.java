@@ -0,0 +1,79 @@
+package com.cleverua.bb.utils;
+
+/**
+ * A counting semaphore measured in bytes. It is used to limit the total amount of RAM
+ * that concurrently running operations (e.g. file copies) may allocate for their buffers.
+ *
+ * <p>
+ * A request larger than the whole budget is granted only when nothing else is
+ * reserved, so such a request never blocks forever.
+ * </p>
+ *
+ * <p>The class is thread safe.</p>
+ */
+public class MemoryBudget {
+
+    private long maxBytes;
+    private long reservedBytes;
+
+    /**
+     * @param maxBytes - total amount of bytes that may be reserved at the same time.
+     *
+     * @throws IllegalArgumentException if <code>maxBytes</code> is not positive.
+     */
+    public MemoryBudget(long maxBytes) {
+        setMaxBytes(maxBytes);
+    }
+
+    /**
+     * Reserves the given amount of bytes, waiting until enough of the budget is released.
+     *
+     * @param bytes - amount of bytes to reserve.
+     *
+     * @throws InterruptedException if the waiting thread is interrupted.
+     * @throws IllegalArgumentException if <code>bytes</code> is negative.
+     */
+    public synchronized void acquire(long bytes) throws InterruptedException {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("invalid bytes " + bytes);
+        }
+        while (reservedBytes > 0 && reservedBytes + bytes > maxBytes) {
+            wait();
+        }
+        reservedBytes += bytes;
+    }
+
+    /**
+     * Gives back the bytes reserved by {@link #acquire(long)}.
+     *
+     * @param bytes - amount of bytes to release.
+     */
+    public synchronized void release(long bytes) {
+        reservedBytes -= bytes;
+        if (reservedBytes < 0) {
+            reservedBytes = 0;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Changes the budget. Already granted reservations are not affected.
+     *
+     * @throws IllegalArgumentException if <code>maxBytes</code> is not positive.
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("invalid maxBytes " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+        notifyAll();
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getReservedBytes() {
+        return reservedBytes;
+    }
+}
@@ -0,0 +1,450 @@
+package com.cleverua.bb.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Enumeration;
+import java.util.Vector;
+
+import javax.microedition.io.Connector;
+import javax.microedition.io.file.FileConnection;
+
+import net.rim.device.api.system.Characters;
+
+/**
+ * Deletes a directory tree with several worker threads.
+ *
+ * <p>
+ * {@link IOUtils#deleteDir(String)} deletes the entries one by one on the calling thread,
+ * which takes minutes for a tree with tens of thousands of files. The deleter splits the work
+ * into tasks: listing a directory and deleting a batch of up to {@link #FILES_PER_TASK} files
+ * of a directory. The tasks are run by a pool of workers, so sibling subtrees (and the files
+ * of a large flat directory) are deleted concurrently. Each directory counts its unfinished
+ * tasks and subdirectories, the worker finishing the last of them deletes the directory
+ * (no worker ever blocks waiting for the children). One connection is opened per entry,
+ * a worker holds at most one connection at a time.
+ * </p>
+ *
+ * <pre>
+ * ParallelDirectoryDeleter deleter = new ParallelDirectoryDeleter(
+ *     "file:///SDCard/cache/", 3, Thread.MIN_PRIORITY, listener
+ * );
+ * deleter.start();
+ * ...
+ * deleter.cancel();
+ * </pre>
+ *
+ * <p>
+ * The first error stops the delete, the entries deleted so far stay deleted.
+ * The same happens on {@link #cancel()}. Use {@link #waitFor()} or the
+ * {@link DeleteProgressListener} to learn the outcome.
+ * </p>
+ *
+ * <p>The class is thread safe.</p>
+ */
+public class ParallelDirectoryDeleter {
+
+    /** Max number of files deleted by a single task, so a large directory is shared among the workers. */
+    public static final int FILES_PER_TASK = 64;
+
+    private final String url;
+    private final int concurrency;
+    private final int threadPriority;
+    private final DeleteProgressListener listener;
+
+    /** Tasks waiting for a worker, the last one is run first, so the subtrees are finished early. */
+    private final Vector queue = new Vector();
+
+    private int runningTasks;
+    private boolean started;
+    private boolean finished;
+    private boolean cancelled;
+    private Throwable error;
+
+    private int filesDeleted;
+    private int dirsDeleted;
+
+    private long startTime;
+
+    /**
+     * @param url - url of the directory (or a file) to delete, e.g. <code>"file:///SDCard/cache/"</code>.
+     * @param concurrency - number of worker threads. Keep it low (2 - 4) while the UI is in use,
+     * the file system does not get much faster with more workers anyway.
+     * @param threadPriority - priority of the worker threads, e.g. <code>Thread.MIN_PRIORITY</code>
+     * so the delete does not starve the UI.
+     * @param listener - gets notified about the progress and the outcome, can be null.
+     *
+     * @throws IllegalArgumentException if <code>concurrency</code> is less than 1.
+     */
+    public ParallelDirectoryDeleter(String url, int concurrency, int threadPriority,
+            DeleteProgressListener listener) {
+
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("invalid concurrency " + concurrency);
+        }
+        this.url = url;
+        this.concurrency = concurrency;
+        this.threadPriority = threadPriority;
+        this.listener = listener;
+    }
+
+    /**
+     * Starts the worker threads.
+     *
+     * @throws IllegalStateException if the deleter has been already started.
+     */
+    public void start() {
+        boolean done;
+        synchronized (this) {
+            if (started) {
+                throw new IllegalStateException("already started: " + url);
+            }
+            started = true;
+            startTime = IOMetrics.start();
+            if (!cancelled) {
+                queue.addElement(new Task(new DirNode(url, null), null));
+            }
+            done = checkFinished();
+        }
+        if (done) {
+            notifyFinished();
+            return;
+        }
+
+        for (int i = 0; i < concurrency; i++) {
+            final Thread worker = new Thread() {
+                public void run() {
+                    runWorker();
+                }
+            };
+            worker.setPriority(threadPriority);
+            worker.start();
+        }
+    }
+
+    /**
+     * Stops the delete. The tasks being run are stopped after the current entry,
+     * the entries deleted so far stay deleted. Does nothing if the delete is finished.
+     */
+    public void cancel() {
+        boolean done;
+        synchronized (this) {
+            if (finished || cancelled) {
+                return;
+            }
+            cancelled = true;
+            queue.removeAllElements();
+            notifyAll();
+            done = checkFinished();
+        }
+        if (done) {
+            notifyFinished();
+        }
+    }
+
+    /**
+     * Waits until the delete is finished.
+     *
+     * @return true if the tree has been deleted, false if the delete has been cancelled.
+     *
+     * @throws IllegalStateException if the deleter has not been started.
+     * @throws InterruptedIOException if the thread is interrupted while waiting.
+     * @throws IOException the error the delete has failed with.
+     */
+    public synchronized boolean waitFor() throws IOException {
+        if (!started) {
+            throw new IllegalStateException("not started: " + url);
+        }
+        while (!finished) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted while waiting for delete of " + url);
+            }
+        }
+        if (error instanceof IOException) {
+            throw (IOException) error;
+        }
+        if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        }
+        if (error != null) {
+            throw new IOException(error.toString());
+        }
+        return !cancelled;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return the error the delete has failed with, or null.
+     */
+    public synchronized Throwable getError() {
+        return error;
+    }
+
+    public synchronized int getFilesDeleted() {
+        return filesDeleted;
+    }
+
+    public synchronized int getDirsDeleted() {
+        return dirsDeleted;
+    }
+
+    private void runWorker() {
+        Task task;
+        while ((task = nextTask()) != null) {
+            Throwable failure = null;
+            try {
+                if (task.fileNames == null) {
+                    listDirectory(task.dir);
+                } else {
+                    deleteFiles(task.dir, task.fileNames);
+                }
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+            taskDone(failure);
+        }
+    }
+
+    /**
+     * @return the next task to run, or null if the worker should exit.
+     */
+    private synchronized Task nextTask() {
+        while (queue.isEmpty() && runningTasks > 0 && !isStopping()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                /* keep waiting */
+            }
+        }
+        if (queue.isEmpty() || isStopping()) {
+            return null;
+        }
+        final int last = queue.size() - 1;
+        final Task task = (Task) queue.elementAt(last);
+        queue.removeElementAt(last);
+        runningTasks++;
+        return task;
+    }
+
+    private void taskDone(Throwable failure) {
+        boolean done;
+        synchronized (this) {
+            runningTasks--;
+            if (failure != null && error == null && !cancelled) {
+                Logger.debug(ParallelDirectoryDeleter.class, "failed to delete " + url + ": " + failure);
+                error = failure;
+                queue.removeAllElements();
+            }
+            notifyAll();
+            done = checkFinished();
+        }
+        if (done) {
+            notifyFinished();
+        }
+    }
+
+    /**
+     * @param owner - directory the task is counted for: the one the files are in
+     * or the parent of the directory to list.
+     */
+    private synchronized void enqueue(Task task, DirNode owner) {
+        owner.pending++;
+        queue.addElement(task);
+        notify();
+    }
+
+    private void listDirectory(DirNode dir) throws IOException {
+        Vector fileNames = null;
+
+        final FileConnection fc = IOUtils.open(dir.url, Connector.READ_WRITE);
+        try {
+            if (!fc.exists()) {
+                if (dir.parent == null) {
+                    return; /* nothing to delete */
+                }
+            } else if (!fc.isDirectory()) {
+                /* the root is a file */
+                fc.delete();
+                synchronized (this) {
+                    filesDeleted++;
+                }
+                notifyProgress();
+                return;
+            } else {
+                for (Enumeration e = fc.list(); e.hasMoreElements();) {
+                    if (isStopping()) {
+                        return;
+                    }
+                    final String name = IOUtils.removeEncExtension((String) e.nextElement());
+                    if (name.charAt(name.length() - 1) == Characters.SOLIDUS) {
+                        enqueue(new Task(new DirNode(dir.url + name, dir), null), dir);
+                        continue;
+                    }
+                    if (fileNames == null) {
+                        fileNames = new Vector(FILES_PER_TASK);
+                    }
+                    fileNames.addElement(name);
+                    if (fileNames.size() == FILES_PER_TASK) {
+                        enqueue(new Task(dir, fileNames), dir);
+                        fileNames = null;
+                    }
+                }
+            }
+        } finally {
+            IOUtils.safelyCloseStream(fc);
+        }
+
+        /* the last batch is deleted right away, no need to queue it */
+        if (fileNames != null) {
+            deleteFiles(dir, fileNames);
+        } else {
+            childDone(dir);
+        }
+    }
+
+    private void deleteFiles(DirNode dir, Vector fileNames) throws IOException {
+        final int size = fileNames.size();
+        for (int i = 0; i < size; i++) {
+            if (isStopping()) {
+                return;
+            }
+            final FileConnection fc = IOUtils.open(dir.url + fileNames.elementAt(i), Connector.READ_WRITE);
+            try {
+                if (fc.exists()) {
+                    fc.delete();
+                }
+            } finally {
+                IOUtils.safelyCloseStream(fc);
+            }
+        }
+        synchronized (this) {
+            filesDeleted += size;
+        }
+        notifyProgress();
+        childDone(dir);
+    }
+
+    /**
+     * Marks a task or a subdirectory of the directory done, deletes the directory if it was the last one
+     * (and then the parent directory if that was the last one for it and so on).
+     */
+    private void childDone(DirNode dir) throws IOException {
+        for (DirNode node = dir; node != null; node = node.parent) {
+            synchronized (this) {
+                if (--node.pending > 0 || isStopping()) {
+                    return;
+                }
+            }
+
+            final FileConnection fc = IOUtils.open(node.url, Connector.READ_WRITE);
+            try {
+                if (!fc.exists()) {
+                    continue; /* deleted by someone else meanwhile */
+                }
+                fc.delete();
+            } finally {
+                IOUtils.safelyCloseStream(fc);
+            }
+            synchronized (this) {
+                dirsDeleted++;
+            }
+            notifyProgress();
+        }
+    }
+
+    private synchronized boolean isStopping() {
+        return cancelled || error != null;
+    }
+
+    /**
+     * @return true if the delete has just got finished, the caller must call {@link #notifyFinished()}.
+     */
+    private boolean checkFinished() {
+        if (!started || finished || runningTasks > 0 || !queue.isEmpty()) {
+            return false;
+        }
+        finished = true;
+        notifyAll();
+        return true;
+    }
+
+    private void notifyFinished() {
+        final Throwable failure;
+        final boolean wasCancelled;
+        synchronized (this) {
+            failure = error;
+            wasCancelled = cancelled;
+        }
+
+        IOUtils.METADATA_CACHE.invalidateTree(url);
+        IOUtils.fireFileChanged(failure == null && !wasCancelled
+                ? FileChangeListener.FILE_DELETED : FileChangeListener.FILE_CHANGED, url, null);
+        final int errorCode;
+        if (failure == null) {
+            errorCode = IOMetrics.NO_ERROR;
+        } else if (failure instanceof IOException) {
+            errorCode = IOMetrics.getErrorCode((IOException) failure);
+        } else {
+            errorCode = IOMetrics.ERROR_OTHER;
+        }
+        IOMetrics.record(IOMetrics.OP_DELETE_DIR, url, 0, startTime, errorCode);
+
+        if (listener != null) {
+            listener.deleteFinished(url, failure, wasCancelled);
+        }
+    }
+
+    private void notifyProgress() {
+        if (listener == null) {
+            return;
+        }
+        final int files;
+        final int dirs;
+        synchronized (this) {
+            files = filesDeleted;
+            dirs = dirsDeleted;
+        }
+        listener.progressChanged(files, dirs);
+    }
+
+    private static class DirNode {
+
+        final String url;
+        final DirNode parent;
+
+        /** Unfinished tasks and subdirectories, 1 for the listing task initially. */
+        int pending = 1;
+
+        DirNode(String url, DirNode parent) {
+            this.url = url;
+            this.parent = parent;
+        }
+    }
+
+    private static class Task {
+
+        final DirNode dir;
+
+        /** Names of the files to delete, null for the task listing the directory. */
+        final Vector fileNames;
+
+        Task(DirNode dir, Vector fileNames) {
+            this.dir = dir;
+            this.fileNames = fileNames;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.cleverua.bb.utils;
+
+/**
+ * Gets notified when a directory tracked by a {@link DirectorySizeTracker} exceeds its quota,
+ * see {@link DirectorySizeTracker#setQuota(String, long, QuotaListener)}.
+ *
+ * <p>
+ * The method is called on the timer thread of the tracker (or on the thread calling
+ * {@link DirectorySizeTracker#checkQuotas()}), it may do IO.
+ * </p>
+ */
+public interface QuotaListener {
+
+    /**
+     * Called when the directory size exceeds the quota.
+     *
+     * @param dirUrl - url of the directory.
+     * @param size - size of the directory content in bytes.
+     * @param quota - the quota in bytes.
+     * @param candidates - urls of the least recently accessed files (the least recent first),
+     * deleting them brings the directory size within the quota.
+     * @return true to let the tracker delete the candidates, false if the listener
+     * frees the space itself (or does not want to).
+     */
+    boolean quotaExceeded(String dirUrl, long size, long quota, String[] candidates);
+}
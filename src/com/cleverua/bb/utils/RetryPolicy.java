@@ -0,0 +1,203 @@
+package com.cleverua.bb.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Random;
+
+/**
+ * Retries IO operations failed with a transient error
+ * (see {@link IOUtils#isTransientFileIOException(Throwable)}), e.g. when the device is busy.
+ *
+ * <pre>
+ * byte[] data = (byte[]) RetryPolicy.DEFAULT.execute("load settings", new RetryableOperation() {
+ *     public Object run() throws IOException {
+ *         return IOUtils.getFileData(url);
+ *     }
+ * });
+ * </pre>
+ *
+ * <p>
+ * The delay before a retry grows exponentially from <code>initialDelayMillis</code>
+ * up to <code>maxDelayMillis</code>, a random jitter (up to a half of the delay) is subtracted,
+ * so threads failed at the same moment do not retry all at once. Fatal errors are thrown
+ * at once, transient ones are thrown once the next retry would not start before the deadline
+ * (<code>deadlineMillis</code> after the first attempt).
+ * </p>
+ *
+ * <p>
+ * The retries are counted per operation name: {@link #getRetriesCount(String)},
+ * {@link #getAddedLatencyMillis(String)} (the time spent in failed attempts and delays),
+ * {@link #getGiveUpsCount(String)}.
+ * </p>
+ *
+ * <p>The class is thread safe.</p>
+ */
+public class RetryPolicy {
+
+    /** 50 ms initial delay, 1 second max delay, 5 seconds deadline. */
+    public static final RetryPolicy DEFAULT = new RetryPolicy(50, 1000, 5000);
+
+    /* indices in the stats arrays */
+    private static final int CALLS        = 0;
+    private static final int RETRIES      = 1;
+    private static final int ADDED_MILLIS = 2;
+    private static final int GIVE_UPS     = 3;
+    private static final int STATS_SIZE   = 4;
+
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private final long deadlineMillis;
+
+    private final Random random = new Random();
+
+    /** operation name -> long[STATS_SIZE] */
+    private final Hashtable stats = new Hashtable();
+
+    /**
+     * @param initialDelayMillis - delay before the first retry, in milliseconds.
+     * @param maxDelayMillis - max delay between retries, in milliseconds.
+     * @param deadlineMillis - max time since the first attempt a retry may start at, in milliseconds.
+     *
+     * @throws IllegalArgumentException if a value is not positive or
+     * <code>maxDelayMillis</code> is less than <code>initialDelayMillis</code>.
+     */
+    public RetryPolicy(long initialDelayMillis, long maxDelayMillis, long deadlineMillis) {
+        if (initialDelayMillis <= 0 || maxDelayMillis < initialDelayMillis || deadlineMillis <= 0) {
+            throw new IllegalArgumentException("invalid delays: initial " + initialDelayMillis
+                    + ", max " + maxDelayMillis + ", deadline " + deadlineMillis);
+        }
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * Runs the operation retrying it on transient errors.
+     *
+     * @param name - name of the operation the retries are counted for, e.g. "copyFile".
+     * @param operation - the operation.
+     * @return the result of the operation.
+     *
+     * @throws IOException the error of the last attempt.
+     * @throws InterruptedIOException if the thread is interrupted while waiting for a retry.
+     */
+    public Object execute(String name, RetryableOperation operation) throws IOException {
+        final long start = System.currentTimeMillis();
+        long delay = initialDelayMillis;
+        int retries = 0;
+        long failedSince = 0;
+
+        try {
+            while (true) {
+                final long attemptStart = System.currentTimeMillis();
+                try {
+                    final Object result = operation.run();
+                    record(name, retries, failedSince == 0 ? 0 : attemptStart - failedSince, false);
+                    return result;
+                } catch (IOException e) {
+                    if (failedSince == 0) {
+                        failedSince = attemptStart;
+                    }
+                    if (!IOUtils.isTransientFileIOException(e)) {
+                        record(name, retries, attemptStart - failedSince, false);
+                        throw e;
+                    }
+
+                    final long sleep = delay - (delay > 1 ? nextJitter(delay / 2) : 0);
+                    if (System.currentTimeMillis() + sleep - start > deadlineMillis) {
+                        record(name, retries, System.currentTimeMillis() - failedSince, true);
+                        throw e;
+                    }
+                    Logger.debug(RetryPolicy.class, name + " failed (" + e + "), retrying in " + sleep + " ms");
+
+                    Thread.sleep(sleep);
+                    retries++;
+                    delay = Math.min(delay * 2, maxDelayMillis);
+                }
+            }
+        } catch (InterruptedException e) {
+            record(name, retries, System.currentTimeMillis() - failedSince, true);
+            throw new InterruptedIOException("interrupted while waiting to retry " + name);
+        }
+    }
+
+    /**
+     * @return number of retries done for the operations with the name.
+     */
+    public long getRetriesCount(String name) {
+        return getStat(name, RETRIES);
+    }
+
+    /**
+     * @return number of times the operations with the name have been executed.
+     */
+    public long getCallsCount(String name) {
+        return getStat(name, CALLS);
+    }
+
+    /**
+     * @return total time in milliseconds the retries have added to the operations with the name
+     * (failed attempts and delays).
+     */
+    public long getAddedLatencyMillis(String name) {
+        return getStat(name, ADDED_MILLIS);
+    }
+
+    /**
+     * @return number of times the operations with the name have failed with a transient error
+     * despite the retries.
+     */
+    public long getGiveUpsCount(String name) {
+        return getStat(name, GIVE_UPS);
+    }
+
+    /**
+     * @return a human readable dump of the retry statistics, one line per operation name.
+     */
+    public synchronized String getSnapshot() {
+        final StringBuffer sb = new StringBuffer();
+        for (Enumeration e = stats.keys(); e.hasMoreElements();) {
+            final String name = (String) e.nextElement();
+            final long[] values = (long[]) stats.get(name);
+            sb.append(name)
+              .append(": calls=").append(values[CALLS])
+              .append(", retries=").append(values[RETRIES])
+              .append(", addedMs=").append(values[ADDED_MILLIS])
+              .append(", giveUps=").append(values[GIVE_UPS])
+              .append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Forgets the statistics.
+     */
+    public synchronized void resetStats() {
+        stats.clear();
+    }
+
+    private synchronized long nextJitter(long bound) {
+        return (random.nextLong() & Long.MAX_VALUE) % bound;
+    }
+
+    private synchronized long getStat(String name, int index) {
+        final long[] values = (long[]) stats.get(name);
+        return values == null ? 0 : values[index];
+    }
+
+    private synchronized void record(String name, int retries, long addedMillis, boolean gaveUp) {
+        long[] values = (long[]) stats.get(name);
+        if (values == null) {
+            values = new long[STATS_SIZE];
+            stats.put(name, values);
+        }
+        values[CALLS]++;
+        values[RETRIES] += retries;
+        values[ADDED_MILLIS] += addedMillis;
+        if (gaveUp) {
+            values[GIVE_UPS]++;
+        }
+    }
+}
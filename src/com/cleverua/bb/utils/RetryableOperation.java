@@ -0,0 +1,17 @@
+package com.cleverua.bb.utils;
+
+import java.io.IOException;
+
+/**
+ * An IO operation that may be retried by a {@link RetryPolicy}, 
+ * so it must be safe to run it several times.
+ */
+public interface RetryableOperation {
+    
+    /**
+     * @return the result of the operation, can be null.
+     * 
+     * @throws IOException if the operation fails.
+     */
+    Object run() throws IOException;
+}
@@ -0,0 +1,24 @@
+package com.cleverua.bb.utils;
+
+import java.io.IOException;
+
+import javax.microedition.io.file.FileConnection;
+
+/**
+ * A {@link DirectoryVisitor} that visits everything and does nothing. 
+ * Subclasses override the callbacks they need.
+ */
+public class SimpleDirectoryVisitor implements DirectoryVisitor {
+    
+    public int preVisitDirectory(String url, FileConnection dir, int depth) throws IOException {
+        return CONTINUE;
+    }
+    
+    public int visitFile(String url, FileConnection file, int depth) throws IOException {
+        return CONTINUE;
+    }
+    
+    public int postVisitDirectory(String url, FileConnection dir, int depth) throws IOException {
+        return CONTINUE;
+    }
+}
@@ -0,0 +1,171 @@
+package com.cleverua.bb.utils;
+
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+import net.rim.device.api.io.file.FileIOException;
+
+/**
+ * Keeps track of the free space of file system roots and of the bytes reserved by writes
+ * that are in progress, so concurrent writes do not both pass a free space check and then
+ * fail halfway with {@link FileIOException#FILESYSTEM_FULL}.
+ *
+ * <pre>
+ * SpaceReservationLedger.Reservation reservation = ledger.reserve(url, size);
+ * boolean written = false;
+ * try {
+ *     ... write the file ...
+ *     written = true;
+ * } finally {
+ *     reservation.release(written);
+ * }
+ * </pre>
+ *
+ * <p>
+ * The free space of a root is read once and cached for <code>maxAgeMillis</code>. The bytes
+ * of the successful writes are subtracted from the cached figure until it is read again.
+ * Space freed by deletes is not tracked and the bytes already written by the writes in
+ * progress are counted twice after a re-read, so the figure errs on the low side: a reservation
+ * that does not fit the cached figure re-reads the free space before failing.
+ * </p>
+ *
+ * <p>The class is thread safe.</p>
+ */
+public class SpaceReservationLedger {
+
+    private final long maxAgeMillis;
+
+    /** root url -> RootState */
+    private final Hashtable roots = new Hashtable();
+
+    /**
+     * @param maxAgeMillis - how long the free space figure of a root is trusted, in milliseconds.
+     */
+    public SpaceReservationLedger(long maxAgeMillis) {
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Reserves space for a write to the url.
+     *
+     * @param url - url of the file to be written.
+     * @param bytes - amount of bytes to be written.
+     * @return the reservation, it must be released when the write is finished.
+     *
+     * @throws IllegalArgumentException if the <code>url</code> is invalid
+     * or <code>bytes</code> is negative.
+     * @throws FileIOException with {@link FileIOException#FILESYSTEM_FULL} code
+     * if the bytes do not fit the free space left by the other reservations.
+     * @throws IOException if the free space can not be read.
+     */
+    public synchronized Reservation reserve(String url, long bytes) throws IOException {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("invalid bytes " + bytes);
+        }
+        final String rootUrl = IOUtils.getRootUrl(url);
+        RootState root = (RootState) roots.get(rootUrl);
+        if (root == null) {
+            root = new RootState();
+            roots.put(rootUrl, root);
+        }
+
+        if (root.isStale(maxAgeMillis) || root.getAvailable() < bytes) {
+            root.refresh(rootUrl);
+        }
+        // -1 means the file system is not accessible, let the write itself fail then
+        if (root.free >= 0 && root.getAvailable() < bytes) {
+            throw new FileIOException(FileIOException.FILESYSTEM_FULL);
+        }
+
+        root.reserved += bytes;
+        return new Reservation(root, bytes);
+    }
+
+    /**
+     * @return the bytes reserved by the writes to the root that are in progress.
+     */
+    public synchronized long getReservedBytes(String rootUrl) {
+        final RootState root = (RootState) roots.get(rootUrl);
+        return root == null ? 0 : root.reserved;
+    }
+
+    /**
+     * Forgets the cached free space of all the roots, so the next reservations read it again.
+     * Call it after freeing a lot of space.
+     */
+    public synchronized void invalidate() {
+        for (Enumeration e = roots.elements(); e.hasMoreElements();) {
+            ((RootState) e.nextElement()).readAt = 0;
+        }
+    }
+
+    private synchronized void release(Reservation reservation, boolean written) {
+        final RootState root = reservation.root;
+        root.reserved -= reservation.bytes;
+        if (written) {
+            root.written += reservation.bytes;
+        }
+    }
+
+    /**
+     * Space reserved for a write, see {@link SpaceReservationLedger#reserve(String, long)}.
+     */
+    public final class Reservation {
+
+        private final RootState root;
+        private final long bytes;
+        private boolean released;
+
+        private Reservation(RootState root, long bytes) {
+            this.root = root;
+            this.bytes = bytes;
+        }
+
+        /**
+         * Gives the reservation back. Subsequent calls do nothing.
+         *
+         * @param written - true if the data has been written, i.e. the space is taken now.
+         */
+        public void release(boolean written) {
+            synchronized (SpaceReservationLedger.this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                SpaceReservationLedger.this.release(this, written);
+            }
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+    }
+
+    private static class RootState {
+
+        /** free space as read from the file system, -1 if it is not accessible */
+        long free;
+        long readAt;
+
+        /** bytes written since the free space has been read */
+        long written;
+
+        /** bytes of the writes in progress */
+        long reserved;
+
+        boolean isStale(long maxAgeMillis) {
+            return readAt == 0 || System.currentTimeMillis() - readAt > maxAgeMillis;
+        }
+
+        long getAvailable() {
+            return free - written - reserved;
+        }
+
+        void refresh(String rootUrl) throws IOException {
+            free = FileSystemStats.read(rootUrl).getAvailableSize();
+            readAt = System.currentTimeMillis();
+            written = 0;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.cleverua.bb.utils;
+
+import java.util.Vector;
+
+/**
+ * Actions that bring a destination directory in sync with a source directory,
+ * made by {@link DirectorySync#plan(String, String, int)}. Nothing is changed until
+ * the plan is passed to {@link DirectorySync#apply(SyncPlan, BatchCopyListener)},
+ * so a plan serves as a dry run as well.
+ *
+ * <p>
+ * The actions are in the order they are applied: deletes first (freeing the space),
+ * then directory creations (parents first), then copies.
+ * </p>
+ */
+public class SyncPlan {
+
+    private final String sourceDirUrl;
+    private final String destinationDirUrl;
+
+    private final Vector actions = new Vector();
+
+    private int copiesCount;
+    private int deletesCount;
+    private long bytesToCopy;
+    private int unchangedCount;
+
+    SyncPlan(String sourceDirUrl, String destinationDirUrl) {
+        this.sourceDirUrl = sourceDirUrl;
+        this.destinationDirUrl = destinationDirUrl;
+    }
+
+    public String getSourceDirUrl() {
+        return sourceDirUrl;
+    }
+
+    public String getDestinationDirUrl() {
+        return destinationDirUrl;
+    }
+
+    /**
+     * @return the actions in the order they are applied.
+     */
+    public Action[] getActions() {
+        final Action[] result = new Action[actions.size()];
+        actions.copyInto(result);
+        return result;
+    }
+
+    /**
+     * @return true if the directories are in sync already.
+     */
+    public boolean isEmpty() {
+        return actions.isEmpty();
+    }
+
+    /**
+     * @return number of files to copy.
+     */
+    public int getCopiesCount() {
+        return copiesCount;
+    }
+
+    /**
+     * @return number of files and directories to delete (a directory is deleted with its content,
+     * which is not counted).
+     */
+    public int getDeletesCount() {
+        return deletesCount;
+    }
+
+    /**
+     * @return total size of the files to copy in bytes.
+     */
+    public long getBytesToCopy() {
+        return bytesToCopy;
+    }
+
+    /**
+     * @return number of the source files the destination already has up to date.
+     */
+    public int getUnchangedCount() {
+        return unchangedCount;
+    }
+
+    /**
+     * @return a human readable dump of the plan, one line per action.
+     */
+    public String toString() {
+        final StringBuffer sb = new StringBuffer();
+        sb.append("SyncPlan [").append(sourceDirUrl).append(" -> ").append(destinationDirUrl)
+          .append(": copy ").append(copiesCount).append(" files (").append(bytesToCopy)
+          .append(" bytes), delete ").append(deletesCount)
+          .append(", unchanged ").append(unchangedCount).append("]\n");
+        final int size = actions.size();
+        for (int i = 0; i < size; i++) {
+            sb.append(actions.elementAt(i)).append('\n');
+        }
+        return sb.toString();
+    }
+
+    void addAction(Action action) {
+        actions.addElement(action);
+        if (action.type == Action.COPY) {
+            copiesCount++;
+            bytesToCopy += action.size;
+        } else if (action.type == Action.DELETE) {
+            deletesCount++;
+        }
+    }
+
+    void addUnchanged() {
+        unchangedCount++;
+    }
+
+    /**
+     * A single step of a {@link SyncPlan}.
+     */
+    public static class Action {
+
+        /** Copy the source file over the destination one. */
+        public static final int COPY   = 1;
+
+        /** Delete the destination file, or directory with its content. */
+        public static final int DELETE = 2;
+
+        /** Create the destination directory. */
+        public static final int MKDIR  = 3;
+
+        private static final String[] NAMES = { null, "COPY", "DELETE", "MKDIR" };
+
+        final int type;
+        final String sourceUrl;
+        final String destinationUrl;
+        final long size;
+
+        Action(int type, String sourceUrl, String destinationUrl, long size) {
+            this.type = type;
+            this.sourceUrl = sourceUrl;
+            this.destinationUrl = destinationUrl;
+            this.size = size;
+        }
+
+        /**
+         * @return {@link #COPY}, {@link #DELETE} or {@link #MKDIR}.
+         */
+        public int getType() {
+            return type;
+        }
+
+        /**
+         * @return url of the source file for {@link #COPY}, null for other actions.
+         */
+        public String getSourceUrl() {
+            return sourceUrl;
+        }
+
+        public String getDestinationUrl() {
+            return destinationUrl;
+        }
+
+        /**
+         * @return size of the file to copy in bytes, 0 for other actions.
+         */
+        public long getSize() {
+            return size;
+        }
+
+        public String toString() {
+            return NAMES[type] + ' ' + (sourceUrl == null ? destinationUrl : sourceUrl + " -> " + destinationUrl);
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package com.cleverua.bb.utils;
+
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import net.rim.device.api.system.Application;
+import net.rim.device.api.system.SystemListener;
+
+/**
+ * A write-behind layer over {@link IOUtils#saveDataToFile(String, byte[])} for files
+ * saved many times in a row (e.g. a state file updated on each sync step).
+ *
+ * <p>
+ * {@link #saveDataToFile(String, byte[])} just remembers the latest content of the url,
+ * the file is written later, so intermediate versions are never written at all. Pending
+ * content is flushed:
+ * </p>
+ * <ul>
+ * <li>once <code>delayMillis</code> pass since the first change that has not been flushed yet
+ * (so a file saved continuously is still written at least that often);</li>
+ * <li>at once (in background) when the pending content exceeds <code>maxPendingBytes</code>;</li>
+ * <li>on {@link #flush()}, {@link #flush(String)} and {@link #close()};</li>
+ * <li>on device power off, if the cache is attached to the application with
+ * {@link #attachTo(Application)}.</li>
+ * </ul>
+ *
+ * <p>
+ * There are no shutdown hooks on BlackBerry, so the application must call {@link #close()}
+ * (or {@link #flush()}) on its exit path, before <code>System.exit()</code>.
+ * </p>
+ *
+ * <p>
+ * {@link #getFileData(String)} and {@link #isPresent(String)} see the pending content.
+ * Files are written in no particular order, each of them atomically by
+ * {@link IOUtils#saveDataToFile(String, byte[])}.
+ * </p>
+ *
+ * <p>The class is thread safe.</p>
+ */
+public class WriteBehindCache {
+
+    private final long delayMillis;
+    private final int maxPendingBytes;
+
+    /** url -> the latest byte[] content not written yet */
+    private final Hashtable pending = new Hashtable();
+
+    /** Serializes flushes, so an older version of a file is never written after a newer one. */
+    private final Object flushLock = new Object();
+
+    private final Timer timer = new Timer();
+    private TimerTask scheduledFlush;
+    private long pendingBytes;
+    private boolean closed;
+
+    private Application application;
+    private final SystemListener powerOffListener = new SystemListener() {
+        public void powerOff() {
+            flushSafely();
+        }
+        public void powerUp() {}
+        public void batteryLow() {}
+        public void batteryGood() {}
+        public void batteryStatusChange(int status) {}
+    };
+
+    /**
+     * @param delayMillis - max time in milliseconds a change stays pending.
+     * @param maxPendingBytes - max total size of the pending content, a flush starts once it is exceeded.
+     *
+     * @throws IllegalArgumentException if <code>delayMillis</code> or <code>maxPendingBytes</code> is negative.
+     */
+    public WriteBehindCache(long delayMillis, int maxPendingBytes) {
+        if (delayMillis < 0 || maxPendingBytes < 0) {
+            throw new IllegalArgumentException("invalid delayMillis " + delayMillis
+                    + " or maxPendingBytes " + maxPendingBytes);
+        }
+        this.delayMillis = delayMillis;
+        this.maxPendingBytes = maxPendingBytes;
+    }
+
+    /**
+     * Makes the data the content of the file, the file is written later.
+     * The array is kept as is, so the caller must not modify it afterwards.
+     *
+     * @param url - url of the destination file.
+     * @param data - Array of bytes to save.
+     *
+     * @throws IllegalStateException if the cache is closed.
+     */
+    public synchronized void saveDataToFile(String url, byte[] data) {
+        if (closed) {
+            throw new IllegalStateException("the cache is closed");
+        }
+        final byte[] previous = (byte[]) pending.put(url, data);
+        if (previous != null) {
+            pendingBytes -= previous.length;
+        }
+        pendingBytes += data.length;
+
+        if (pendingBytes > maxPendingBytes) {
+            scheduleFlush(0);
+        } else if (scheduledFlush == null) {
+            scheduleFlush(delayMillis);
+        }
+    }
+
+    /**
+     * Reads file data, the pending content if there is any.
+     *
+     * @param url - url of the source file.
+     * @return Array of bytes, the pending array itself if the url is pending,
+     * it must not be modified.
+     *
+     * @throws IOException see {@link IOUtils#getFileData(String)}.
+     */
+    public byte[] getFileData(String url) throws IOException {
+        synchronized (this) {
+            final byte[] data = (byte[]) pending.get(url);
+            if (data != null) {
+                return data;
+            }
+        }
+        return IOUtils.getFileData(url);
+    }
+
+    /**
+     * @return true if the url is pending or the file exists.
+     *
+     * @throws IOException see {@link IOUtils#isPresent(String)}.
+     */
+    public boolean isPresent(String url) throws IOException {
+        return isPending(url) || IOUtils.isPresent(url);
+    }
+
+    /**
+     * @return true if the url has content that has not been written yet.
+     */
+    public synchronized boolean isPending(String url) {
+        return pending.containsKey(url);
+    }
+
+    /**
+     * @return total size of the content that has not been written yet.
+     */
+    public synchronized long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * Drops the pending content of the url and deletes the file.
+     *
+     * @throws IOException see {@link IOUtils#delete(String)}.
+     */
+    public void delete(String url) throws IOException {
+        synchronized (flushLock) {
+            synchronized (this) {
+                final byte[] previous = (byte[]) pending.remove(url);
+                if (previous != null) {
+                    pendingBytes -= previous.length;
+                }
+            }
+            IOUtils.delete(url);
+        }
+    }
+
+    /**
+     * Writes all the pending content in the calling thread.
+     * If a file can not be written, its content stays pending and the rest
+     * of the files are written anyway.
+     *
+     * @throws IOException the first error occurred.
+     */
+    public void flush() throws IOException {
+        synchronized (flushLock) {
+            final Hashtable snapshot;
+            synchronized (this) {
+                cancelScheduledFlush();
+                snapshot = new Hashtable(pending.size() * 2 + 1);
+                for (Enumeration e = pending.keys(); e.hasMoreElements();) {
+                    final Object url = e.nextElement();
+                    snapshot.put(url, pending.get(url));
+                }
+            }
+
+            IOException error = null;
+            for (Enumeration e = snapshot.keys(); e.hasMoreElements();) {
+                final String url = (String) e.nextElement();
+                try {
+                    write(url, (byte[]) snapshot.get(url));
+                } catch (IOException ex) {
+                    Logger.debug(WriteBehindCache.class, "failed to flush " + url + ": " + ex);
+                    if (error == null) {
+                        error = ex;
+                    }
+                }
+            }
+
+            synchronized (this) {
+                if (!pending.isEmpty() && !closed) {
+                    scheduleFlush(delayMillis); /* new saves or failed writes */
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+
+    /**
+     * Writes the pending content of the url, if any, in the calling thread.
+     *
+     * @throws IOException see {@link IOUtils#saveDataToFile(String, byte[])}.
+     */
+    public void flush(String url) throws IOException {
+        synchronized (flushLock) {
+            final byte[] data;
+            synchronized (this) {
+                data = (byte[]) pending.get(url);
+            }
+            if (data != null) {
+                write(url, data);
+            }
+        }
+    }
+
+    /**
+     * Flushes the pending content on device power off (via a {@link SystemListener}).
+     *
+     * @param app - the application, usually <code>Application.getApplication()</code>.
+     */
+    public synchronized void attachTo(Application app) {
+        detach();
+        application = app;
+        application.addSystemListener(powerOffListener);
+    }
+
+    /**
+     * Undoes {@link #attachTo(Application)}.
+     */
+    public synchronized void detach() {
+        if (application != null) {
+            application.removeSystemListener(powerOffListener);
+            application = null;
+        }
+    }
+
+    /**
+     * Flushes the pending content and stops the flush timer.
+     * Does nothing if the cache is already closed.
+     *
+     * @throws IOException see {@link #flush()}, the content that has not been written is lost then.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            detach();
+        }
+        try {
+            flush();
+        } finally {
+            timer.cancel();
+        }
+    }
+
+    /**
+     * Writes the file and drops its pending content unless it has been replaced meanwhile.
+     * The caller holds {@link #flushLock}.
+     */
+    private void write(String url, byte[] data) throws IOException {
+        IOUtils.saveDataToFile(url, data);
+        synchronized (this) {
+            if (pending.get(url) == data) {
+                pending.remove(url);
+                pendingBytes -= data.length;
+            }
+        }
+    }
+
+    private void scheduleFlush(long delay) {
+        cancelScheduledFlush();
+        scheduledFlush = new TimerTask() {
+            public void run() {
+                flushSafely();
+            }
+        };
+        timer.schedule(scheduledFlush, delay);
+    }
+
+    private void cancelScheduledFlush() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel();
+            scheduledFlush = null;
+        }
+    }
+
+    private void flushSafely() {
+        try {
+            flush();
+        } catch (Throwable e) {
+            // failed files stay pending and are retried on the next scheduled flush
+            Logger.debug(WriteBehindCache.class, "flush failed: " + e);
+        }
+    }
+}